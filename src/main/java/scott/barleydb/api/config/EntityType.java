@@ -26,10 +26,12 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import scott.barleydb.api.core.util.EnvironmentAccessor;
 import scott.barleydb.api.specification.EntitySpec;
@@ -71,6 +73,18 @@ public class EntityType implements Serializable {
 
     private Map<String,NodeType> nodeTypes = new LinkedHashMap<>();
 
+    /**
+     * the node types by index, the nodes of the parent entity type come first.
+     */
+    private NodeType[] nodeTypesByIndex;
+
+    private int keyNodeIndex;
+
+    /**
+     * the node index for each getter and setter of the entity's proxy interface, worked out on first use.
+     */
+    private transient volatile Map<Method, Integer> proxyMethodNodeIndexes;
+
     public static EntityType create(Definitions definitions, EntitySpec entityTypeSpec) {
 //        System.out.println("Creating entity type: " + entityTypeSpec.getClassName());
         if (entityTypeSpec.getTableName() == null) {
@@ -104,6 +118,8 @@ public class EntityType implements Serializable {
           entityType.keyGenSpec = KeyGenSpec.CLIENT;
         }
         createNodeTypesFromEntitySpec(entityType, entityTypeSpec);
+        entityType.nodeTypesByIndex = entityType.nodeTypes.values().toArray(new NodeType[entityType.nodeTypes.size()]);
+        entityType.keyNodeIndex = entityType.getNodeType(entityType.keyNodeName, true).getIndex();
         return entityType;
       }
 
@@ -113,6 +129,8 @@ public class EntityType implements Serializable {
         }
         for (NodeSpec nodeTypeSpec: entityTypeSpec.getNodeSpecs()) {
             NodeType nt = NodeType.create(entityType, nodeTypeSpec);
+            NodeType overridden = entityType.nodeTypes.get(nt.getName());
+            nt.setIndex(overridden != null ? overridden.getIndex() : entityType.nodeTypes.size());
             entityType.nodeTypes.put(nt.getName(), nt);
         }
     }
@@ -177,6 +195,10 @@ public class EntityType implements Serializable {
         return keyNodeName;
     }
 
+    public int getKeyNodeIndex() {
+        return keyNodeIndex;
+    }
+
     public String getKeyColumn() {
         return getNodeType(keyNodeName, true).getColumnName();
     }
@@ -185,6 +207,41 @@ public class EntityType implements Serializable {
         return Collections.unmodifiableCollection(nodeTypes.values());
     }
 
+    public int getNodeTypeCount() {
+        return nodeTypesByIndex.length;
+    }
+
+    public NodeType getNodeType(int index) {
+        return nodeTypesByIndex[index];
+    }
+
+    /**
+     * @return the index of the named node type or -1 if it does not exist and mustExist is false.
+     */
+    public int getNodeIndex(String name, boolean mustExist) {
+        NodeType nt = getNodeType(name, mustExist);
+        return nt != null ? nt.getIndex() : -1;
+    }
+
+    /**
+     * The cache of node indexes for the proxy methods of this entity type.
+     *
+     * The cache lives as long as the entity type, so it does not keep proxy classes and their class loaders alive
+     * after the definitions are discarded.
+     */
+    public Map<Method, Integer> getProxyMethodNodeIndexes() {
+        Map<Method, Integer> result = proxyMethodNodeIndexes;
+        if (result == null) {
+            synchronized(this) {
+                result = proxyMethodNodeIndexes;
+                if (result == null) {
+                    proxyMethodNodeIndexes = result = new ConcurrentHashMap<>();
+                }
+            }
+        }
+        return result;
+    }
+
     public boolean supportsOptimisticLocking() {
         for (NodeType nd : nodeTypes.values()) {
             if (nd.isOptimisticLock()) {
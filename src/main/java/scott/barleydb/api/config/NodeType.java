@@ -56,6 +56,11 @@ public class NodeType implements Serializable, Cloneable {
 
     private JdbcType jdbcType;
 
+    /**
+     * the length of the column, null if not specified.
+     */
+    private Integer length;
+
     private String typeConverterFqn;
 
     private Boolean optimisticLock;
@@ -72,6 +77,13 @@ public class NodeType implements Serializable, Cloneable {
 
     private Object fixedValue;
 
+    private Boolean lowCardinality;
+
+    /**
+     * the position of the node type in the entity type.
+     */
+    private int index = -1;
+
     public static NodeType create(EntityType entityType, NodeSpec nodeSpec) {
         NodeType nodeType = new NodeType(entityType);
         nodeType.name = nodeSpec.getName();
@@ -90,6 +102,7 @@ public class NodeType implements Serializable, Cloneable {
         }
         nodeType.columnName = nodeSpec.getColumnName();
         nodeType.jdbcType = nodeSpec.getJdbcType();
+        nodeType.length = nodeSpec.getLength();
         nodeType.mandatory = nodeSpec.getNullable() == Nullable.NOT_NULL;
         nodeType.optimisticLock = nodeSpec.isOptimisticLock();
         nodeType.enumSpec = nodeSpec.getEnumSpec();
@@ -110,6 +123,7 @@ public class NodeType implements Serializable, Cloneable {
         }
         nodeType.suppressionSpec = nodeSpec.getSuppression();
         nodeType.typeConverterFqn = nodeSpec.getTypeConverter();
+        nodeType.lowCardinality = nodeSpec.getLowCardinality();
         return nodeType;
     }
 
@@ -207,6 +221,25 @@ public class NodeType implements Serializable, Cloneable {
         return name;
     }
 
+    /**
+     * The stable position of this node type in it's entity type, the nodes of an entity are stored at this index.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * @return true if equal values read from the database should share the same instance,
+     * false if they never should and null if not specified.
+     */
+    public Boolean getLowCardinality() {
+        return lowCardinality;
+    }
+
     public Object getFixedValue() {
         return fixedValue;
     }
@@ -239,6 +272,13 @@ public class NodeType implements Serializable, Cloneable {
         return jdbcType;
     }
 
+    /**
+     * @return the length of the column, null if not specified.
+     */
+    public Integer getLength() {
+        return length;
+    }
+
     public String getForeignNodeName() {
         return relation != null ? relation.getForeignNodeName() : null;
     }
@@ -22,6 +22,11 @@ package scott.barleydb.api.core;
  * #L%
  */
 
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.annotation.PostConstruct;
 
 import org.slf4j.Logger;
@@ -41,6 +46,7 @@ import scott.barleydb.api.persist.NoopAccessRightsChecker;
 import scott.barleydb.api.query.QueryObject;
 import scott.barleydb.api.query.RuntimeProperties;
 import scott.barleydb.server.jdbc.query.QueryPreProcessor;
+import scott.barleydb.server.jdbc.query.QueryTemplateCache;
 import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.IEntityContextServices;
 
@@ -52,7 +58,6 @@ import scott.barleydb.api.core.IEntityContextServices;
  */
 public final class Environment {
 
-    @SuppressWarnings("unused")
     private static final Logger LOG = LoggerFactory.getLogger(Environment.class);
 
     private final DefinitionsSet definitionsSet;
@@ -67,6 +72,16 @@ public final class Environment {
 
     private Auditor auditor = new LoggingAuditor();
 
+    /**
+     * Caches the generated SQL of query structures, null means no caching.
+     */
+    private QueryTemplateCache queryTemplateCache = new QueryTemplateCache();
+
+    /**
+     * Runs the asynchronous queries of the entity contexts, created on first use if not set.
+     */
+    private Executor asyncQueryExecutor;
+
     public Environment(IEntityContextServices entityContextServices) {
         this.entityContextServices = entityContextServices;
         this.definitionsSet = new DefinitionsSet();
@@ -115,6 +130,50 @@ public final class Environment {
       this.auditor = auditor;
     }
 
+    public QueryTemplateCache getQueryTemplateCache() {
+        return queryTemplateCache;
+    }
+
+    public void setQueryTemplateCache(QueryTemplateCache queryTemplateCache) {
+        this.queryTemplateCache = queryTemplateCache;
+    }
+
+    /**
+     * The executor for {@link EntityContext#performQueryAsync(QueryObject)} and {@link EntityContext#performQueriesAsync(QueryBatcher)}.
+     *
+     * Defaults to a virtual thread per task when the JVM supports virtual threads, otherwise to a cached pool of daemon threads.
+     */
+    public synchronized Executor getAsyncQueryExecutor() {
+        if (asyncQueryExecutor == null) {
+            asyncQueryExecutor = newDefaultAsyncQueryExecutor();
+        }
+        return asyncQueryExecutor;
+    }
+
+    public synchronized void setAsyncQueryExecutor(Executor asyncQueryExecutor) {
+        this.asyncQueryExecutor = asyncQueryExecutor;
+    }
+
+    private static Executor newDefaultAsyncQueryExecutor() {
+        try {
+            //looked up reflectively as virtual threads are only available from Java 21
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor)method.invoke(null);
+        }
+        catch (NoSuchMethodException x) {
+            LOG.debug("Virtual threads are not supported, using a cached thread pool for asynchronous queries");
+        }
+        catch (ReflectiveOperationException x) {
+            LOG.warn("Could not create the virtual thread executor, using a cached thread pool for asynchronous queries", x);
+        }
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "barleydb-async-query-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     public IEntityContextServices getEntityContextServices() {
         return entityContextServices;
     }
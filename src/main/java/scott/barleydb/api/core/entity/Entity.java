@@ -26,12 +26,14 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
 
 import org.slf4j.Logger;
@@ -49,6 +51,7 @@ import scott.barleydb.api.core.entity.Node;
 import scott.barleydb.api.core.entity.RefNode;
 import scott.barleydb.api.core.entity.ToManyNode;
 import scott.barleydb.api.core.entity.ValueNode;
+import scott.barleydb.api.core.entity.context.EntityInfo;
 
 public class Entity implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -57,10 +60,29 @@ public class Entity implements Serializable {
 
     private EntityContext entityContext;
     private EntityType entityType;
-    private LinkedHashMap<String, Node> children;
+    /**
+     * the child nodes, indexed by {@link NodeType#getIndex()}.
+     */
+    private Node[] children;
     private EntityConstraint constraints;
     private EntityState entityState;
     private UUID uuid;
+    /**
+     * the info of the entity in it's context, for LRU eviction.
+     */
+    private transient EntityInfo entityInfo;
+    /**
+     * true if every change made by the user since the entity was loaded from the database was recorded.
+     */
+    private boolean changeTracking;
+    /**
+     * the indexes of the nodes changed by the user, null until the first change.
+     */
+    private BitSet changedNodes;
+    /**
+     * the values of the changed nodes before the first change, the entity key for ref nodes.
+     */
+    private Object[] originalValues;
 
     /**
      * Copy constructor, a new version of the entity in a different context with the same uuid
@@ -94,7 +116,7 @@ public class Entity implements Serializable {
     private Entity(EntityContext context, EntityState entityState, EntityType entityType, Object key, UUID uuid, EntityConstraint constraints) {
         this.entityContext = context;
         this.entityType = entityType;
-        this.children = new LinkedHashMap<String, Node>();
+        this.children = new Node[entityType.getNodeTypeCount()];
         this.constraints = constraints != null ? constraints : new EntityConstraint(false, false);
         this.entityState = entityState;
         if (constraints.isMustExistInDatabase()) {
@@ -199,7 +221,7 @@ public class Entity implements Serializable {
     }
 
     public final ValueNode getKey() {
-        return getChild(entityType.getKeyNodeName(), ValueNode.class);
+        return (ValueNode)children[entityType.getKeyNodeIndex()];
     }
 
     public void setValueNode(String name, Object value) {
@@ -207,17 +229,30 @@ public class Entity implements Serializable {
     }
 
     public Node getChild(String name) {
-        return children.get(name);
+        NodeType nodeType = entityType.getNodeType(name, false);
+        return nodeType != null ? children[nodeType.getIndex()] : null;
+    }
+
+    /**
+     * @param index the {@link NodeType#getIndex()} of the node
+     */
+    public Node getChild(int index) {
+        return children[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Node> T getChild(int index, Class<T> type) {
+        return (T) children[index];
     }
 
     @SuppressWarnings("unchecked")
     public <T extends Node> T getChild(String name, Class<T> type) {
-        return (T) children.get(name);
+        return (T) getChild(name);
     }
 
     @SuppressWarnings("unchecked")
     public <T extends Node> T getChild(String name, Class<T> type, boolean mustExist) {
-        T child = (T) children.get(name);
+        T child = (T) getChild(name);
         if (child == null && mustExist) {
             throw new IllegalStateException("Node '" + name + "' must exist in entity " + entityType.getInterfaceName());
         }
@@ -240,13 +275,12 @@ public class Entity implements Serializable {
 
     public void downcast(EntityType newEntityType, EntityConstraint constrainsForCreatedRefs) {
         LOG.debug("Downcasting entity {} to type {}", this, newEntityType);
-        List<Node> toAdd = new LinkedList<Node>();
-        for (Iterator<Node> i = children.values().iterator(); i.hasNext();) {
-            Node existing = i.next();
+        Node newChildren[] = new Node[newEntityType.getNodeTypeCount()];
+        for (Node existing: children) {
+            NodeType ndNew = newEntityType.getNodeType(existing.getName(), true);
+            newChildren[ ndNew.getIndex() ] = existing;
             if (existing instanceof ValueNode) {
-                NodeType ndNew = newEntityType.getNodeType(existing.getName(), true);
                 if (ndNew.isForeignKey()) {
-                    i.remove();
                     //tricky: creating a refnode with this entity and the newEntityType
                     //which is NOT YET associated with this entity
                     //this is unusual but required for example for abstract syntaxes
@@ -262,13 +296,11 @@ public class Entity implements Serializable {
                         }
                         refNode.setReference( e );
                     }
-                    toAdd.add(refNode);
+                    newChildren[ ndNew.getIndex() ] = refNode;
                 }
             }
         }
-        for (Node n : toAdd) {
-            children.put(n.getName(), n);
-        }
+        this.children = newChildren;
         this.entityType = newEntityType;
         for (Node newNode : initNodes()) {
             if (newNode instanceof RefNode) {
@@ -310,7 +342,110 @@ public class Entity implements Serializable {
     }
 
     public Iterable<Node> getChildren() {
-        return Collections.unmodifiableCollection(children.values());
+        return Collections.unmodifiableList(Arrays.asList(children));
+    }
+
+    /**
+     * Records that the entity was accessed, a loaded entity becomes the most recently used entity of it's context.
+     */
+    public void touch() {
+        if (entityInfo != null && entityState == EntityState.LOADED) {
+            entityContext.touch(entityInfo);
+        }
+    }
+
+    void setEntityInfo(EntityInfo entityInfo) {
+        this.entityInfo = entityInfo;
+    }
+
+    /**
+     * @return true if the user changed a node of the entity since it was loaded or last persisted.
+     */
+    public boolean isModified() {
+        return changedNodes != null && !changedNodes.isEmpty();
+    }
+
+    /**
+     * Called when a node of the entity is changed, only changes made by the user are recorded.
+     *
+     * @param originalValue the value before the change, the entity key for ref nodes and null for to many nodes.
+     */
+    void recordChange(Node node, Object originalValue) {
+        if (!entityContext.isUser()) {
+            return;
+        }
+        int index = node.getNodeType().getIndex();
+        if (changedNodes == null) {
+            changedNodes = new BitSet(children.length);
+            originalValues = new Object[children.length];
+        }
+        if (!changedNodes.get(index)) {
+            changedNodes.set(index);
+            originalValues[index] = originalValue;
+        }
+        else if (node instanceof ValueNode && Objects.equals(originalValues[index], ((ValueNode)node).getValueNoFetch())) {
+            //changed back to the original value
+            changedNodes.clear(index);
+            originalValues[index] = null;
+        }
+    }
+
+    /**
+     * @return true if the user changed the node since the entity was loaded.
+     */
+    public boolean isChanged(Node node) {
+        return changedNodes != null && changedNodes.get(node.getNodeType().getIndex());
+    }
+
+    /**
+     * @return the value of the node before the user changed it, the entity key for ref nodes.
+     */
+    public Object getOriginalValue(Node node) {
+        return isChanged(node) ? originalValues[node.getNodeType().getIndex()] : null;
+    }
+
+    /**
+     * @return true if every change made by the user since the entity was loaded from the database was recorded.
+     */
+    public boolean isTrackingChanges() {
+        return changeTracking;
+    }
+
+    /**
+     * @return true if the entity was loaded from the database and it is known that the user
+     * did not change any node since.
+     */
+    public boolean isUnchangedSinceLoad() {
+        return changeTracking && (changedNodes == null || changedNodes.isEmpty());
+    }
+
+    /**
+     * Called when the value of the node is loaded from the database.
+     */
+    void clearChange(Node node) {
+        if (changedNodes != null) {
+            int index = node.getNodeType().getIndex();
+            changedNodes.clear(index);
+            originalValues[index] = null;
+        }
+    }
+
+    /**
+     * Forgets the recorded changes, the values of the entity are known to match the database.
+     */
+    public void resetChangeTracking() {
+        changedNodes = null;
+        originalValues = null;
+        changeTracking = true;
+    }
+
+    /**
+     * Copies the recorded changes of an entity in another context, whose values were copied to us.
+     */
+    void copyChangeTracking(Entity other) {
+        changeTracking = other.changeTracking;
+        changedNodes = other.changedNodes != null ? (BitSet)other.changedNodes.clone() : null;
+        originalValues = other.originalValues != null ? other.originalValues.clone() : null;
     }
 
     public EntityState getEntityState() {
@@ -329,6 +464,15 @@ public class Entity implements Serializable {
         if (other.getEntityType() != entityType) {
             throw new IllegalStateException("Invalid optimistic lock comparison, different entity types.");
         }
+        ValueNode myLock = getOptimisticLock();
+        ValueNode otherLock = other.getOptimisticLock();
+        if (myLock instanceof PrimitiveValueNode && otherLock instanceof PrimitiveValueNode) {
+            PrimitiveValueNode myPrimitive = (PrimitiveValueNode)myLock;
+            PrimitiveValueNode otherPrimitive = (PrimitiveValueNode)otherLock;
+            if (myPrimitive.hasComparablePrimitive(otherPrimitive)) {
+                return Long.compare(myPrimitive.getBits(), otherPrimitive.getBits());
+            }
+        }
         @SuppressWarnings("unchecked")
         Comparable<Object> myValue = (Comparable<Object>) getOptimisticLockValue();
         if (myValue == null) {
@@ -338,7 +482,7 @@ public class Entity implements Serializable {
     }
 
     public ValueNode getOptimisticLock() {
-        for (Node child : children.values()) {
+        for (Node child : children) {
             if (child.getNodeType().isOptimisticLock()) {
                 return (ValueNode) child;
             }
@@ -357,7 +501,7 @@ public class Entity implements Serializable {
         if (getUuid() != null) {
             element.setAttribute("creationId", getUuid().toString());
         }
-        for (Node child : children.values()) {
+        for (Node child : children) {
             Element el = child.toXml(doc);
             element.appendChild(el);
         }
@@ -365,16 +509,20 @@ public class Entity implements Serializable {
     }
 
     public Map<String,Node> toMap() {
-      return Collections.unmodifiableMap(children);
+      Map<String,Node> map = new LinkedHashMap<>();
+      for (Node child : children) {
+          map.put(child.getName(), child);
+      }
+      return Collections.unmodifiableMap(map);
     }
 
     private List<Node> initNodes() {
         List<Node> newNodes = new LinkedList<Node>();
         for (NodeType nd : entityType.getNodeTypes()) {
-            if (!children.containsKey(nd.getName())) {
+            if (children[nd.getIndex()] == null) {
                 Node node = newChild(nd);
                 newNodes.add(node);
-                children.put(nd.getName(), node);
+                children[nd.getIndex()] = node;
             }
         }
         return newNodes;
@@ -405,6 +553,9 @@ public class Entity implements Serializable {
             return new RefNode(this, nd.getName(), entityType.getDefinitions().getEntityTypeMatchingInterface(nd.getRelationInterfaceName(), true));
         } else if (nd.getColumnName() != null) {
             //a value
+            if (PrimitiveValueNode.supports(nd)) {
+                return new PrimitiveValueNode(this, nd.getName(), nd.getJavaType());
+            }
             return new ValueNode(this, nd.getName());
         } else if (nd.getRelationInterfaceName() != null && nd.getForeignNodeName() != null) {
             //1:N relationship
@@ -464,7 +615,10 @@ public class Entity implements Serializable {
         oos.writeUTF(entityType.getInterfaceName());
         oos.writeObject(uuid);
         oos.writeObject(getKey().getValue());
-        oos.writeObject(children);
+        /*
+         * the nodes are written as a map of name to node, so the stream does not depend on the node indexes.
+         */
+        oos.writeObject(new LinkedHashMap<>(toMap()));
     }
 
     @SuppressWarnings("unchecked")
@@ -480,7 +634,7 @@ public class Entity implements Serializable {
         /*
          * Initialize nodes with no values so that the entity is in a better state to be added to the context
          */
-        children = new LinkedHashMap<String, Node>();
+        children = new Node[entityType.getNodeTypeCount()];
         initNodes();
         /*
          * Set the primary key
@@ -32,11 +32,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.ref.WeakReference;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -46,6 +48,10 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Transformer;
@@ -62,6 +68,7 @@ import org.w3c.dom.Element;
 import scott.barleydb.api.audit.AuditInformation;
 import scott.barleydb.api.config.Definitions;
 import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
 import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.QueryBatcher;
 import scott.barleydb.api.core.QueryRegistry;
@@ -73,6 +80,8 @@ import scott.barleydb.api.core.util.EnvironmentAccessor;
 import scott.barleydb.api.dependency.diagram.DependencyDiagram;
 import scott.barleydb.api.dependency.diagram.Link;
 import scott.barleydb.api.dependency.diagram.LinkType;
+import scott.barleydb.api.core.types.JavaType;
+import scott.barleydb.api.exception.BarleyDBRuntimeException;
 import scott.barleydb.api.exception.constraint.EntityConstraintMismatchException;
 import scott.barleydb.api.exception.execution.SortServiceProviderException;
 import scott.barleydb.api.exception.execution.persist.OptimisticLockMismatchException;
@@ -84,13 +93,16 @@ import scott.barleydb.api.exception.model.ProxyCreationException;
 import scott.barleydb.api.persist.OperationType;
 import scott.barleydb.api.persist.PersistAnalyser;
 import scott.barleydb.api.persist.PersistRequest;
+import scott.barleydb.api.query.QProperty;
 import scott.barleydb.api.query.QueryObject;
 import scott.barleydb.api.query.RuntimeProperties;
 import scott.barleydb.api.stream.EntityData;
+import scott.barleydb.api.stream.EntityDataSchema;
 import scott.barleydb.api.stream.EntityStreamException;
 import scott.barleydb.api.stream.ObjectInputStream;
 import scott.barleydb.api.stream.QueryEntityDataInputStream;
 import scott.barleydb.api.stream.QueryEntityInputStream;
+import scott.barleydb.api.stream.RangePartitionedSpliterator;
 import scott.barleydb.server.jdbc.query.QueryGenerator;
 import scott.barleydb.server.jdbc.query.QueryResult;
 import scott.barleydb.server.jdbc.query.QueryGenerator.Param;
@@ -139,6 +151,13 @@ public class EntityContext implements Serializable, AutoCloseable {
 
     private Statistics statistics = new Statistics();
 
+    /**
+     * the maximum number of loaded entities, 0 for no limit.
+     */
+    private int maxLoadedEntities;
+
+    private long numberOfEvictedEntities;
+
 
     public EntityContext(Environment env, String namespace) {
         this.env = env;
@@ -176,6 +195,122 @@ public class EntityContext implements Serializable, AutoCloseable {
       return statistics;
     }
 
+    /**
+     * Limits the number of loaded entities which the context keeps in memory.<br/>
+     * <br/>
+     * When the limit is exceeded at the end of a query or persist, the least recently used loaded entities which were not modified
+     * and are not referenced by modified or new entities are unloaded. An unloaded entity keeps it's key and identity
+     * and is fetched again when it is next accessed.
+     * If garbage collection is not allowed then unloaded entities also become eligible for garbage collection.
+     *
+     * @param maxLoadedEntities the maximum number of loaded entities, 0 for no limit.
+     */
+    public void setMaxLoadedEntities(int maxLoadedEntities) {
+        this.maxLoadedEntities = maxLoadedEntities;
+    }
+
+    public int getMaxLoadedEntities() {
+        return maxLoadedEntities;
+    }
+
+    /**
+     * @return the total number of entities which were unloaded to keep within the maximum number of loaded entities.
+     */
+    public long getNumberOfEvictedEntities() {
+        return numberOfEvictedEntities;
+    }
+
+    /**
+     * Takes a snapshot of the entities in the context by entity type, with their states, estimated retained bytes,
+     * reachable proxies and the number of garbage collected entities reclaimed so far.
+     */
+    public MemoryFootprint getMemoryFootprint() {
+        entities.reclaimCollectedEntities();
+        MemoryFootprint footprint = new MemoryFootprint();
+        for (Entity entity: entities) {
+            footprint.addEntity(entity);
+        }
+        for (WeakReference<Object> ref: new ArrayList<>(proxies.values())) {
+            Object proxy = ref.get();
+            if (proxy instanceof ProxyController) {
+                footprint.addProxy(((ProxyController)proxy).getEntity());
+            }
+        }
+        for (Map.Entry<String, Long> entry: entities.getNumberOfReclaimedEntitiesByType().entrySet()) {
+            footprint.addReclaimed(entry.getKey(), entry.getValue());
+        }
+        return footprint;
+    }
+
+    /**
+     * Logs the memory footprint of the context at info level.
+     */
+    public void dumpMemoryFootprint() {
+        LOG.info("Memory footprint of entity context for {}:\n{}", namespace, getMemoryFootprint());
+    }
+
+    void touch(EntityInfo entityInfo) {
+        entities.touch(entityInfo);
+    }
+
+    /**
+     * Unloads the least recently used clean entities if there are more loaded entities than allowed.<br/>
+     * <br/>
+     * The loaded entities are kept in access order, so only the least recently used entities are visited.
+     * Entities are unloaded down to a low water mark of 90% of the limit, so that the next few loads do not need
+     * to evict again.
+     *
+     * @return the number of entities unloaded
+     */
+    public int evictIfOverBudget() {
+        if (maxLoadedEntities <= 0 || entities.getAccessOrderSize() <= maxLoadedEntities) {
+            return 0;
+        }
+        final int tracked = entities.getAccessOrderSize();
+        final int lowWaterMark = maxLoadedEntities - maxLoadedEntities / 10;
+        int evicted;
+        EntityContextState prev = switchToInternalMode();
+        try {
+            evicted = entities.unloadLeastRecentlyUsed(lowWaterMark, this::evict);
+        }
+        finally {
+            switchToMode(prev);
+        }
+        numberOfEvictedEntities += evicted;
+        LOG.debug("Unloaded {} of {} loaded entities to keep within the limit of {}", evicted, tracked, maxLoadedEntities);
+        return evicted;
+    }
+
+    private boolean evict(Entity entity) {
+        if (!isEvictable(entity)) {
+            return false;
+        }
+        entity.unload(false);
+        entities.allowCollection(entity);
+        return true;
+    }
+
+    /**
+     * An entity can be unloaded if it is loaded and unmodified and no modified or new entity refers to it.
+     */
+    private boolean isEvictable(Entity entity) {
+        if (entity.isModified() || entity.getKey().getValueNoFetch() == null) {
+            return false;
+        }
+        for (ToManyNode toManyNode: entity.getChildren(ToManyNode.class)) {
+            if (!toManyNode.getNewEntities().isEmpty()) {
+                return false;
+            }
+        }
+        for (RefNode refNode: entities.getByUuid(entity.getUuid(), true).getFkReferences()) {
+            Entity referrer = refNode.getParent();
+            if (referrer.isModified() || referrer.isClearlyNotInDatabase()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * registers the given queries to be used for fetching their respective objects.
      * @param qos
@@ -519,7 +654,7 @@ public class EntityContext implements Serializable, AutoCloseable {
      */
     public Entity addEntityLoadedFromDB(EntityData entityData, QueryObject<?> optionalQuery) {
         EntityType entityType = definitions.getEntityTypeMatchingInterface(entityData.getEntityType(), true);
-        Object key = entityData.getData().get( entityType.getKeyNodeName() );
+        Object key = entityData.getKey( entityType );
         LOG.debug("Adding or creating Entity for EntityData {} with key {}", entityType, key);
         Entity entity = getEntity(entityType, key, false);
         if (entity == null) {
@@ -531,7 +666,8 @@ public class EntityContext implements Serializable, AutoCloseable {
             entity.getConstraints().set( entityData.getConstraints() );
             entity.getEntityContext().setAssociatedQuery(entity, optionalQuery);
         }
-        if (entity.getEntityState() == EntityState.NOTLOADED) {
+        final boolean wasNotLoaded = entity.getEntityState() == EntityState.NOTLOADED;
+        if (wasNotLoaded) {
             for (Node child: entity.getChildren()) {
                 if (entity.getKey() == child) {
                     continue;
@@ -550,44 +686,73 @@ public class EntityContext implements Serializable, AutoCloseable {
         /*
          * apply the data from the EntityData object onto the Entitie's nodes.
          */
-        for (Map.Entry<String, Object> entry: entityData.getData().entrySet()) {
-            Node node = entity.getChild( entry.getKey() );
-            Object value = entry.getValue();
-            if (node == entity.getKey()) {
-                continue;
-            }
-            if (node instanceof ValueNode) {
-                LOG.trace("Setting value of {} to {}", node.getName(), value);
-                ((ValueNode)node).setValueNoEvent( value );
-            }
-            else if (node instanceof RefNode) {
-                RefNode refNode = (RefNode)node;
-                refNode.setLoaded(true);
-                if (value != null) {
-                    LOG.trace("Processing RefNode {} with key {}", refNode.getName(), value);
-                    Entity reffed = getEntity(refNode.getEntityType(), value, false);
-                    if (reffed != null) {
-                       //as we have a foreign key in the entity data we assume that FK entity must exist in the database
-                      //(method is called addEntityLoadedFromDB)
-                        reffed.getConstraints().setMustExistInDatabase();
-                    }
-                    else {
-                        //MUST EXIST IN DATABASE BECAUSE of our method name
-                        reffed = newEntity(refNode.getEntityType(), value, EntityConstraint.mustExistInDatabase());
-                    }
-                    refNode.setReference( reffed );
+        if (entityData.isCompact()) {
+            EntityDataSchema schema = entityData.getSchema();
+            /*
+             * the node indexes of the schema are only valid for an entity of exactly the schema's type.
+             */
+            boolean sameType = entity.getEntityType().getInterfaceName().equals(schema.getEntityType());
+            for (int slot=0, n=schema.size(); slot<n; slot++) {
+                int nodeIndex = sameType ? schema.getNodeIndex(slot) : -1;
+                Node node = nodeIndex != -1 ? entity.getChild(nodeIndex) : entity.getChild(schema.getNodeName(slot));
+                if (entityData.isPrimitive(slot) && node instanceof PrimitiveValueNode && node != entity.getKey()) {
+                    //written straight into the node, the value is never boxed
+                    ((PrimitiveValueNode)node).setPrimitiveValueNoEvent(entityData.getPrimitiveValue(slot));
                 }
                 else {
-                    refNode.setReference(null);
+                    applyLoadedValue(entity, node, entityData.getValue(slot));
                 }
             }
         }
+        else {
+            for (Map.Entry<String, Object> entry: entityData.getData().entrySet()) {
+                applyLoadedValue(entity, entity.getChild( entry.getKey() ), entry.getValue());
+            }
+        }
         entity.setEntityState( entityData.getEntityState() );
+        if (wasNotLoaded) {
+            //all values come from the database, so all later changes will be known
+            entity.resetChangeTracking();
+        }
+        entity.touch();
         LOG.debug("--------------------------------------------------------");
         return entity;
     }
 
 
+    private void applyLoadedValue(Entity entity, Node node, Object value) {
+        if (node == entity.getKey()) {
+            return;
+        }
+        if (node instanceof ValueNode) {
+            LOG.trace("Setting value of {} to {}", node.getName(), value);
+            ((ValueNode)node).setValueNoEvent( value );
+        }
+        else if (node instanceof RefNode) {
+            RefNode refNode = (RefNode)node;
+            refNode.setLoaded(true);
+            if (value != null) {
+                LOG.trace("Processing RefNode {} with key {}", refNode.getName(), value);
+                Entity reffed = getEntity(refNode.getEntityType(), value, false);
+                if (reffed != null) {
+                   //as we have a foreign key in the entity data we assume that FK entity must exist in the database
+                  //(method is called addEntityLoadedFromDB)
+                    reffed.getConstraints().setMustExistInDatabase();
+                }
+                else {
+                    //MUST EXIST IN DATABASE BECAUSE of our method name
+                    reffed = newEntity(refNode.getEntityType(), value, EntityConstraint.mustExistInDatabase());
+                }
+                refNode.setReference( reffed );
+            }
+            else {
+                refNode.setReference(null);
+            }
+        }
+        //the node now has the database value
+        entity.clearChange(node);
+    }
+
     private void setAssociatedQuery(Entity entity, QueryObject<?> query) {
     	entities.setAssociatedQuery(entity, query);
 	}
@@ -606,7 +771,7 @@ public class EntityContext implements Serializable, AutoCloseable {
         if (entity.getKey().getValue() != null && getEntity(entity.getEntityType(), entity.getKey().getValue(), false) != null) {
             throw new IllegalStateException("Entity with key '" + entity.getKey().getValue() + "' already exists.");
         }
-        entities.add(entity, optionalQuery);
+        entity.setEntityInfo( entities.add(entity, optionalQuery) );
         LOG.debug("Added to entityContext " + entity);
     }
 
@@ -651,6 +816,8 @@ public class EntityContext implements Serializable, AutoCloseable {
                     ours.getChild(refNode.getName(), RefNode.class).setReference( ourRefEntity );
                 }
             }
+            ours.copyChangeTracking(entity);
+            ours.touch();
             return ours;
         } finally {
             entity.getEntityContext().switchToMode(ecs2);
@@ -777,7 +944,48 @@ public class EntityContext implements Serializable, AutoCloseable {
         /*
          * Copy the result into the original query batcher if required.
          */
-        result.copyTo(this, queryBatcher);
+        mergeQueryResults(result, queryBatcher);
+    }
+
+    public CompletableFuture<QueryBatcher> performQueriesAsync(QueryBatcher queryBatcher) {
+        return performQueriesAsync(queryBatcher, null);
+    }
+
+    /**
+     * Performs the queries on the asynchronous query executor of the environment.<br/>
+     * <br/>
+     * The queries execute in a private operation context outside of any transaction of this context,
+     * neither this context nor the given query batcher are touched by the executor thread.
+     * The future completes with a query batcher holding the results in the private context, which the caller
+     * merges into this context and the given query batcher on it's own thread with {@link #mergeQueryResults(QueryBatcher, QueryBatcher)}.
+     *
+     * @return a future completing with the results in a private context
+     */
+    public CompletableFuture<QueryBatcher> performQueriesAsync(final QueryBatcher queryBatcher, RuntimeProperties runtimeProperties) {
+        final RuntimeProperties props = env.overrideProps( runtimeProperties  );
+        final EntityContext opContext = newEntityContext();
+        final QueryBatcher toExecute = new QueryBatcher();
+        for (QueryObject<?> queryObject: queryBatcher.getQueries()) {
+            toExecute.addQuery(queryObject);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return env.services().execute(opContext, toExecute, props);
+            }
+            catch(SortServiceProviderException | BarleyDBQueryException x) {
+                throw new CompletionException(x);
+            }
+        }, env.getAsyncQueryExecutor());
+    }
+
+    /**
+     * Copies the results of a query batcher from another entity context into this context and the query batcher copyTo,
+     * for example the results of {@link #performQueriesAsync(QueryBatcher)}.
+     */
+    public void mergeQueryResults(QueryBatcher queryResults, QueryBatcher copyTo) {
+        queryResults.copyTo(this, copyTo);
+        entities.reclaimCollectedEntities();
+        evictIfOverBudget();
     }
 
     public <T> ObjectInputStream<T> streamObjectQuery(QueryObject<T> queryObject) throws SortServiceProviderException, BarleyDBQueryException {
@@ -807,6 +1015,123 @@ public class EntityContext implements Serializable, AutoCloseable {
                 createNewCtx));
     }
 
+    /**
+     * Streams the query in parallel by splitting the range of root keys into sub-queries.<br/>
+     * <br/>
+     * The minimum and maximum key matching the query are looked up first, the key must be numeric or a date.
+     * Each partition covers the keys from it's lower bound up to, but not including, the lower bound of the next partition.
+     * SQL date keys are split on day boundaries.
+     * Each sub-query streams on its own connection into its own entity context, so none of the entities are added to this context.
+     * The returned stream should be closed, this closes the connections of any unfinished sub-queries.<br/>
+     * <br/>
+     * Finding the key range requires the database to support limit.
+     *
+     * @param queryObject the query, which must not be paginated
+     * @param runtimeProperties
+     * @param createNewCtx if each object graph should get a new entity context
+     * @param maxPartitions the maximum number of sub-queries
+     * @return a parallel stream
+     */
+    public <T> Stream<T> streamObjectQueryParallel(final QueryObject<T> queryObject, RuntimeProperties runtimeProperties, final boolean createNewCtx, int maxPartitions) throws SortServiceProviderException, BarleyDBQueryException {
+        if (queryObject.getLimit() != null || queryObject.getOffset() != null || queryObject.getSeekAfter() != null) {
+            throw new IllegalQueryStateException("Paginated queries cannot be range partitioned");
+        }
+        final RuntimeProperties props = env.overrideProps( runtimeProperties  );
+        final EntityType entityType = definitions.getEntityTypeMatchingInterface(queryObject.getTypeName(), true);
+        final String keyNodeName = entityType.getKeyNodeName();
+        final JavaType keyType = entityType.getNodeType(keyNodeName, true).getJavaType();
+
+        Object minKey = findKeyBound(queryObject, keyNodeName, true, props);
+        if (minKey == null) {
+            return Stream.empty();
+        }
+        Object maxKey = findKeyBound(queryObject, keyNodeName, false, props);
+        if (maxKey == null) {
+            //deleted since finding the min key
+            return Stream.empty();
+        }
+        final long maxRangeValue = toRangeValue(keyType, maxKey);
+        RangePartitionedSpliterator<T> spliterator = new RangePartitionedSpliterator<T>((fromKey, toKey) -> {
+            try {
+                QueryObject<T> partition = queryObject.copy();
+                QProperty<Object> key = new QProperty<>(partition, keyNodeName);
+                partition.and(key.greaterOrEqual(fromRangeValue(keyType, fromKey)));
+                /*
+                 * the upper bound is the lower bound of the next partition, so a key which the database
+                 * compares at a coarser precision than the range values can only match one partition.
+                 */
+                if (toKey < maxRangeValue) {
+                    partition.and(key.less(fromRangeValue(keyType, toKey + 1)));
+                }
+                else {
+                    partition.and(key.lessOrEqual(fromRangeValue(keyType, toKey)));
+                }
+                return newEntityContext().streamObjectQuery(partition, props, createNewCtx);
+            }
+            catch(SortServiceProviderException | BarleyDBQueryException x) {
+                throw new EntityStreamException("Could not stream keys " + fromKey + " to " + toKey, x);
+            }
+        }, toRangeValue(keyType, minKey), maxRangeValue, maxPartitions);
+
+        return StreamSupport.stream(spliterator, true).onClose(() -> {
+            try {
+                spliterator.close();
+            }
+            catch(EntityStreamException x) {
+                throw new BarleyDBRuntimeException("Error closing the partitioned streams", x);
+            }
+        });
+    }
+
+    /**
+     * Queries the lowest or highest key matching the query.
+     * @return the key or null if there are no matches
+     */
+    private Object findKeyBound(QueryObject<?> queryObject, String keyNodeName, boolean lowest, RuntimeProperties props) throws SortServiceProviderException, BarleyDBQueryException {
+        @SuppressWarnings("unchecked")
+        QueryObject<Object> query = (QueryObject<Object>)queryObject.copy();
+        QProperty<Object> key = new QProperty<>(query, keyNodeName);
+        query.getOrderBy().clear();
+        query.orderBy(key, lowest);
+        query.select(key);
+        query.limit(1);
+        List<Entity> result = newEntityContext().performQuery(query, props).getEntityList();
+        return result.isEmpty() ? null : result.get(0).getKey().getValue();
+    }
+
+    /**
+     * SQL dates are ranged by epoch day so that partitions split on day boundaries, other dates by milliseconds.
+     */
+    private static long toRangeValue(JavaType keyType, Object key) throws IllegalQueryStateException {
+        if (keyType == JavaType.SQL_DATE && key instanceof Date) {
+            return new java.sql.Date(((Date)key).getTime()).toLocalDate().toEpochDay();
+        }
+        if (key instanceof Number) {
+            return ((Number)key).longValue();
+        }
+        if (key instanceof Date) {
+            return ((Date)key).getTime();
+        }
+        throw new IllegalQueryStateException("Key '" + key + "' is not numeric or a date and cannot be range partitioned");
+    }
+
+    private static Object fromRangeValue(JavaType keyType, long value) throws IllegalQueryStateException {
+        switch (keyType) {
+            case LONG:
+                return value;
+            case INTEGER:
+                return (int)value;
+            case SHORT:
+                return (short)value;
+            case UTIL_DATE:
+                return new Date(value);
+            case SQL_DATE:
+                return java.sql.Date.valueOf(LocalDate.ofEpochDay(value));
+            default:
+                throw new IllegalQueryStateException("Key type " + keyType + " cannot be range partitioned");
+        }
+    }
+
     public interface BatchPersistProcessor {
         public void beforePersist(EntityContext ctx);
     }
@@ -902,7 +1227,46 @@ public class EntityContext implements Serializable, AutoCloseable {
         EntityContext opContext = getOperationContext(this, runtimeProperties);
 
         QueryResult<T> queryResult = env.services().execute(opContext, queryObject, runtimeProperties);
-        return queryResult.copyResultTo(this);
+        return mergeQueryResult(queryResult);
+    }
+
+    public <T> CompletableFuture<QueryResult<T>> performQueryAsync(QueryObject<T> queryObject) {
+        return performQueryAsync(queryObject, null);
+    }
+
+    /**
+     * Performs the query on the asynchronous query executor of the environment.<br/>
+     * <br/>
+     * The query executes in a private operation context outside of any transaction of this context,
+     * this context is not touched by the executor thread. The future completes with the result in the private context,
+     * which the caller merges into this context on it's own thread with {@link #mergeQueryResult(QueryResult)}.
+     *
+     * @return a future completing with the query result in a private context
+     */
+    public <T> CompletableFuture<QueryResult<T>> performQueryAsync(final QueryObject<T> queryObject, RuntimeProperties runtimeProperties) {
+        final RuntimeProperties props = env.overrideProps( runtimeProperties  );
+        final EntityContext opContext = newEntityContext();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return env.services().execute(opContext, queryObject, props);
+            }
+            catch(SortServiceProviderException | BarleyDBQueryException x) {
+                throw new CompletionException(x);
+            }
+        }, env.getAsyncQueryExecutor());
+    }
+
+    /**
+     * Copies a query result from another entity context into this context,
+     * for example the result of {@link #performQueryAsync(QueryObject)}.
+     *
+     * @return the query result in this context
+     */
+    public <T> QueryResult<T> mergeQueryResult(QueryResult<T> queryResult) {
+        QueryResult<T> result = queryResult.copyResultTo(this);
+        entities.reclaimCollectedEntities();
+        evictIfOverBudget();
+        return result;
     }
 
     public AuditInformation comapreWithDatabase(ProxyController ...models) throws SortServiceProviderException, SortPersistException  {
@@ -937,6 +1301,9 @@ public class EntityContext implements Serializable, AutoCloseable {
                 if (analyser.getEntityContext() != this) {
                     analyser.applyChanges(this);
                 }
+                else {
+                    analyser.resetChangeTracking();
+                }
                 LOG.debug("Persist completed successfully");
             }
             catch (OptimisticLockMismatchException x) {
@@ -944,6 +1311,8 @@ public class EntityContext implements Serializable, AutoCloseable {
             }
         } finally {
             switchToMode( prev );
+            entities.reclaimCollectedEntities();
+            evictIfOverBudget();
         }
     }
 
@@ -1122,6 +1491,32 @@ public class EntityContext implements Serializable, AutoCloseable {
         return entities.isCompletelyEmpty();
     }
 
+    /**
+     * Removes the garbage collected entities from the context's lookups.<br/>
+     * <br/>
+     * This happens automatically at the end of queries and persists and periodically as entities are added,
+     * lookups by key or uuid never pay for it.
+     *
+     * @return the number of entities reclaimed
+     */
+    public int reclaimCollectedEntities() {
+        return entities.reclaimCollectedEntities();
+    }
+
+    /**
+     * @return the total number of garbage collected entities which were reclaimed from this context.
+     */
+    public long getNumberOfReclaimedEntities() {
+        return entities.getNumberOfReclaimedEntities();
+    }
+
+    /**
+     * @return the number of times that garbage collected entities were reclaimed from this context.
+     */
+    public long getNumberOfReclaimSweeps() {
+        return entities.getNumberOfReclaimSweeps();
+    }
+
     /**
      * Gets an entity by it's type and id from the entity context.<br/>
      * No fetching is performed.
@@ -1191,6 +1586,75 @@ public class EntityContext implements Serializable, AutoCloseable {
         return list;
     }
 
+    /**
+     * Declares a secondary index on a node of an entity type, so that the entities of the type
+     * can be looked up by the node's value with {@link #getEntitiesByIndex(EntityType, String, Object)}.<br/>
+     * <br/>
+     * Value nodes are indexed by value, ref nodes by the referenced entity. The index is kept up to date as
+     * entities are added, changed and removed and only covers entities of exactly the given type.
+     *
+     * @return false if the index already existed.
+     */
+    public boolean addIndex(EntityType entityType, String nodeName) {
+        return entities.addIndex(entityType, nodeName);
+    }
+
+    public boolean addIndex(Class<?> type, String nodeName) {
+        return addIndex(definitions.getEntityTypeForClass(type, true), nodeName);
+    }
+
+    public boolean removeIndex(EntityType entityType, String nodeName) {
+        return entities.removeIndex(entityType, nodeName);
+    }
+
+    public boolean hasIndex(EntityType entityType, String nodeName) {
+        return entities.hasIndex(entityType, nodeName);
+    }
+
+    /**
+     * Looks up entities using a secondary index declared with {@link #addIndex(EntityType, String)}.
+     *
+     * @param value for a value node the value, for a ref node the referenced entity, it's proxy or it's key.
+     * @throws IllegalStateException if there is no such index.
+     */
+    public List<Entity> getEntitiesByIndex(EntityType entityType, String nodeName, Object value) {
+        NodeType nodeType = entityType.getNodeType(nodeName, true);
+        Object indexValue = value;
+        if (nodeType.getRelationInterfaceName() != null && value != null) {
+            if (value instanceof ProxyController) {
+                value = ((ProxyController)value).getEntity();
+            }
+            if (value instanceof Entity) {
+                indexValue = ((Entity)value).getUuid();
+            }
+            else {
+                EntityType refType = definitions.getEntityTypeMatchingInterface(nodeType.getRelationInterfaceName(), true);
+                EntityInfo entityInfo = entities.getByKey(refType, value);
+                if (entityInfo == null) {
+                    if (!entities.hasIndex(entityType, nodeName)) {
+                        throw new IllegalStateException("No index on " + entityType.getInterfaceShortName() + "." + nodeName);
+                    }
+                    //nothing can refer to an entity which is not in the context
+                    return Collections.emptyList();
+                }
+                indexValue = entityInfo.getUuid();
+            }
+        }
+        return entities.getEntitiesByIndex(entityType, nodeName, indexValue);
+    }
+
+    public <T> List<T> getByIndex(Class<T> type, String nodeName, Object value) {
+        EntityType et = definitions.getEntityTypeForClass(type, true);
+        return new ProxyList<T>(this, getEntitiesByIndex(et, nodeName, value));
+    }
+
+    /**
+     * Called by the nodes when a value or reference changes, to maintain the secondary indexes.
+     */
+    void nodeChanged(Node node) {
+        entities.nodeChanged(node);
+    }
+
     public <T> Collection<T> getByType(Class<T> type) {
         EntityType et = definitions.getEntityTypeForClass(type, true);
         return new ProxyList<T>(this, entities.getEntitiesByType(et));
@@ -0,0 +1,233 @@
+package scott.barleydb.api.core.entity;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * A snapshot of the entities held by an entity context, broken down by entity type.
+ *
+ * The retained bytes are an estimate based on the number of nodes and the sizes of their values
+ * assuming a 64 bit JVM with compressed references, they are intended for capacity planning and
+ * for comparing entity types, not as an exact measurement.
+ *
+ * @author scott
+ *
+ */
+public class MemoryFootprint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int ENTITY_BYTES = 48;
+    private static final int ENTITY_INFO_BYTES = 80;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int VALUE_NODE_BYTES = 24;
+    private static final int PRIMITIVE_VALUE_NODE_BYTES = 40;
+    private static final int REF_NODE_BYTES = 32;
+    private static final int TO_MANY_NODE_BYTES = 64;
+
+    private final Map<String, TypeFootprint> types = new TreeMap<>();
+
+    /**
+     * The footprint of the entities of a single entity type.
+     */
+    public static class TypeFootprint implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String interfaceName;
+        private final int countByState[] = new int[EntityState.values().length];
+        private int entities;
+        private long estimatedBytes;
+        private int proxies;
+        private long reclaimed;
+
+        TypeFootprint(String interfaceName) {
+            this.interfaceName = interfaceName;
+        }
+
+        public String getInterfaceName() {
+            return interfaceName;
+        }
+
+        /**
+         * @return the number of live entities
+         */
+        public int getEntities() {
+            return entities;
+        }
+
+        public int getEntities(EntityState entityState) {
+            return countByState[ entityState.ordinal() ];
+        }
+
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        /**
+         * @return the number of proxies which are still reachable
+         */
+        public int getProxies() {
+            return proxies;
+        }
+
+        /**
+         * @return the number of garbage collected entities which were reclaimed from the context
+         */
+        public long getReclaimed() {
+            return reclaimed;
+        }
+    }
+
+    void addEntity(Entity entity) {
+        TypeFootprint type = getOrCreate(entity.getEntityType().getInterfaceName());
+        type.entities++;
+        type.countByState[ entity.getEntityState().ordinal() ]++;
+        type.estimatedBytes += estimateBytes(entity);
+    }
+
+    void addProxy(Entity entity) {
+        getOrCreate(entity.getEntityType().getInterfaceName()).proxies++;
+    }
+
+    void addReclaimed(String interfaceName, long reclaimed) {
+        getOrCreate(interfaceName).reclaimed += reclaimed;
+    }
+
+    public Collection<TypeFootprint> getTypes() {
+        return Collections.unmodifiableCollection(types.values());
+    }
+
+    /**
+     * @return the footprint of the entity type or null if the context has no information about it
+     */
+    public TypeFootprint getType(String interfaceName) {
+        return types.get(interfaceName);
+    }
+
+    public int getTotalEntities() {
+        int total = 0;
+        for (TypeFootprint type: types.values()) {
+            total += type.entities;
+        }
+        return total;
+    }
+
+    public long getTotalEstimatedBytes() {
+        long total = 0;
+        for (TypeFootprint type: types.values()) {
+            total += type.estimatedBytes;
+        }
+        return total;
+    }
+
+    private TypeFootprint getOrCreate(String interfaceName) {
+        TypeFootprint type = types.get(interfaceName);
+        if (type == null) {
+            types.put(interfaceName, type = new TypeFootprint(interfaceName));
+        }
+        return type;
+    }
+
+    /**
+     * Estimates the bytes retained by the entity, it's nodes and their values and the context's tracking of the entity.
+     */
+    static long estimateBytes(Entity entity) {
+        long bytes = ENTITY_BYTES + ENTITY_INFO_BYTES;
+        int nodes = 0;
+        for (Node node: entity.getChildren()) {
+            nodes++;
+            if (node instanceof PrimitiveValueNode) {
+                //a primitive is held inside the node, only a value in object form costs more
+                PrimitiveValueNode primitiveNode = (PrimitiveValueNode)node;
+                bytes += PRIMITIVE_VALUE_NODE_BYTES + (primitiveNode.isPrimitive() ? 0 : estimateValueBytes(primitiveNode.getValueNoFetch()));
+            }
+            else if (node instanceof ValueNode) {
+                bytes += VALUE_NODE_BYTES + estimateValueBytes(((ValueNode)node).getValueNoFetch());
+            }
+            else if (node instanceof RefNode) {
+                bytes += REF_NODE_BYTES;
+            }
+            else if (node instanceof ToManyNode) {
+                ToManyNode toManyNode = (ToManyNode)node;
+                bytes += TO_MANY_NODE_BYTES + REFERENCE_BYTES * (toManyNode.getList().size() + toManyNode.getNewEntities().size());
+            }
+        }
+        return bytes + ARRAY_HEADER_BYTES + REFERENCE_BYTES * nodes;
+    }
+
+    /**
+     * @return the estimated size of the value object, 0 for values which are shared or stored as primitives.
+     */
+    static long estimateValueBytes(Object value) {
+        if (value == null || value instanceof NotLoaded || value instanceof Boolean || value instanceof Enum) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + ((String)value).length();
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short) {
+            return 16;
+        }
+        if (value instanceof BigDecimal) {
+            return 40 + ((BigDecimal)value).precision() / 2;
+        }
+        if (value instanceof Date) {
+            return 24;
+        }
+        if (value instanceof UUID) {
+            return 32;
+        }
+        if (value instanceof byte[]) {
+            return ARRAY_HEADER_BYTES + ((byte[])value).length;
+        }
+        return 16;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-50s %10s %10s %10s %10s %10s %14s %10s %10s%n", "Entity type", "Entities", "Loaded", "NotLoaded", "Loading", "NotInDb", "Est. bytes", "Proxies", "Reclaimed"));
+        for (TypeFootprint type: types.values()) {
+            sb.append(String.format("%-50s %10d %10d %10d %10d %10d %14d %10d %10d%n",
+                    type.interfaceName,
+                    type.entities,
+                    type.getEntities(EntityState.LOADED),
+                    type.getEntities(EntityState.NOTLOADED),
+                    type.getEntities(EntityState.LOADING),
+                    type.getEntities(EntityState.NOT_IN_DB),
+                    type.estimatedBytes,
+                    type.proxies,
+                    type.reclaimed));
+        }
+        sb.append(String.format("%-50s %10d %54s %14d%n", "Total", getTotalEntities(), "", getTotalEstimatedBytes()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,238 @@
+package scott.barleydb.api.core.entity;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.core.types.JavaType;
+
+/**
+ * A value node for LONG, INTEGER, SHORT and BOOLEAN values which holds the value as a primitive.
+ *
+ * A value of the node's java type is only ever held in primitive form, whether it is set through a primitive
+ * setter, through setValue() or loaded from the database. getValue() boxes the primitive on each call and the
+ * box is not kept, the primitive getters do not box at all.
+ * Any other value (null, NotLoaded.VALUE or a value of an unexpected type) is stored as is.
+ *
+ * @author scott
+ *
+ */
+public class PrimitiveValueNode extends ValueNode {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * stored as the value when the value is held in bits.
+     * An enum constant, so that it keeps it's identity when the node is serialized.
+     */
+    private enum Held {
+        PRIMITIVE
+    }
+
+    private final JavaType javaType;
+    private long bits;
+
+    public PrimitiveValueNode(Entity parent, String name, JavaType javaType) {
+        super(parent, name);
+        this.javaType = javaType;
+        //a fixed value is held in primitive form too
+        writeValue(super.readValue());
+    }
+
+    /**
+     * @return true if values of the node type can be stored as a primitive.
+     */
+    public static boolean supports(NodeType nodeType) {
+        if (nodeType.getTypeConverterFqn() != null || nodeType.getEnumSpec() != null || nodeType.getJavaType() == null) {
+            return false;
+        }
+        switch (nodeType.getJavaType()) {
+            case LONG:
+            case INTEGER:
+            case SHORT:
+            case BOOLEAN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Boxes a primitive value held as bits.
+     * @param javaType the LONG, INTEGER, SHORT or BOOLEAN java type of the value
+     */
+    public static Object box(JavaType javaType, long bits) {
+        switch (javaType) {
+            case LONG:
+                return bits;
+            case INTEGER:
+                return (int)bits;
+            case SHORT:
+                return (short)bits;
+            case BOOLEAN:
+                return bits != 0;
+            default:
+                throw new IllegalStateException("Unsupported primitive type " + javaType);
+        }
+    }
+
+    @Override
+    protected Object readValue() {
+        Object value = super.readValue();
+        return value == Held.PRIMITIVE ? box(javaType, bits) : value;
+    }
+
+    @Override
+    protected void writeValue(Object value) {
+        if (value != null && value.getClass() == javaType.getJavaTypeClass()) {
+            writeBits(toBits(value));
+        }
+        else {
+            super.writeValue(value);
+        }
+    }
+
+    @Override
+    public boolean isNull() {
+        ensureLoaded();
+        return super.readValue() == null;
+    }
+
+    @Override
+    public long getLongValue() {
+        ensureLoaded();
+        return isPrimitive() && javaType != JavaType.BOOLEAN ? bits : super.getLongValue();
+    }
+
+    @Override
+    public int getIntValue() {
+        ensureLoaded();
+        return isPrimitive() && javaType != JavaType.BOOLEAN ? (int)bits : super.getIntValue();
+    }
+
+    @Override
+    public short getShortValue() {
+        ensureLoaded();
+        return isPrimitive() && javaType != JavaType.BOOLEAN ? (short)bits : super.getShortValue();
+    }
+
+    @Override
+    public boolean getBooleanValue() {
+        ensureLoaded();
+        return isPrimitive() && javaType == JavaType.BOOLEAN ? bits != 0 : super.getBooleanValue();
+    }
+
+    @Override
+    public void setLongValue(long value) {
+        if (javaType == JavaType.LONG && canSetDirectly()) {
+            setBits(value);
+        }
+        else {
+            super.setLongValue(value);
+        }
+    }
+
+    @Override
+    public void setIntValue(int value) {
+        if (javaType == JavaType.INTEGER && canSetDirectly()) {
+            setBits(value);
+        }
+        else {
+            super.setIntValue(value);
+        }
+    }
+
+    @Override
+    public void setShortValue(short value) {
+        if (javaType == JavaType.SHORT && canSetDirectly()) {
+            setBits(value);
+        }
+        else {
+            super.setShortValue(value);
+        }
+    }
+
+    @Override
+    public void setBooleanValue(boolean value) {
+        if (javaType == JavaType.BOOLEAN && canSetDirectly()) {
+            setBits(value ? 1 : 0);
+        }
+        else {
+            super.setBooleanValue(value);
+        }
+    }
+
+    /**
+     * Sets the primitive value without any events, as loaded from the database.
+     * @param bits the value as held by {@link scott.barleydb.api.stream.EntityData#getPrimitiveValue(int)}
+     */
+    public void setPrimitiveValueNoEvent(long bits) {
+        writeBits(bits);
+    }
+
+    /**
+     * Compares the primitive values of two nodes without boxing.
+     * @return true if both nodes hold a numeric primitive value.
+     */
+    boolean hasComparablePrimitive(PrimitiveValueNode other) {
+        return isPrimitive() && other.isPrimitive() && javaType != JavaType.BOOLEAN && javaType == other.javaType;
+    }
+
+    long getBits() {
+        return bits;
+    }
+
+    /**
+     * @return true if the value is held as a primitive.
+     */
+    boolean isPrimitive() {
+        return super.readValue() == Held.PRIMITIVE;
+    }
+
+    /**
+     * Keys and fixed values must go through setValue for the checks and events.
+     */
+    private boolean canSetDirectly() {
+        return getParent().getKey() != this && getNodeType().getFixedValue() == null;
+    }
+
+    private void setBits(long bits) {
+        if (!isPrimitive() || this.bits != bits) {
+            Object origValue = getEntityContext().isUser() ? readValue() : null;
+            writeBits(bits);
+            getParent().recordChange(this, origValue);
+            getEntityContext().nodeChanged(this);
+        }
+    }
+
+    private void writeBits(long bits) {
+        this.bits = bits;
+        super.writeValue(Held.PRIMITIVE);
+    }
+
+    private long toBits(Object value) {
+        if (javaType == JavaType.BOOLEAN) {
+            return ((Boolean)value) ? 1 : 0;
+        }
+        return ((Number)value).longValue();
+    }
+
+}
@@ -81,6 +81,7 @@ public final class RefNode extends Node {
             return;
         }
         getParent().fetchIfRequiredAndAllowed();
+        getParent().touch();
         //perhaps the entity was fetched, but this column was lazy
         if (!loaded) {
             //will only fetch if not in internal mode
@@ -93,7 +94,10 @@ public final class RefNode extends Node {
     }
 
     public void setLoaded(boolean loaded) {
-        this.loaded = loaded;
+        if (this.loaded != loaded) {
+            this.loaded = loaded;
+            getEntityContext().nodeChanged(this);
+        }
     }
 
     public boolean isLoaded() {
@@ -132,6 +136,8 @@ public final class RefNode extends Node {
         if (reference != null) {
             getEntityContext().addReference(this, reference);
         }
+        getParent().recordChange(this, origReference != null ? origReference.getKey().getValue() : null);
+        getEntityContext().nodeChanged(this);
     }
 
     /**
@@ -193,6 +199,7 @@ public final class RefNode extends Node {
         if (this.reference  != null) {
             getEntityContext().addReference(this, this.reference);
         }
+        getEntityContext().nodeChanged(this);
     }
 
     @Override
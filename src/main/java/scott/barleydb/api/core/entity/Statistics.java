@@ -52,6 +52,11 @@ public class Statistics implements Serializable {
 
   private int numberOfRecordDeletes;
 
+  /**
+   * the largest number of records written by a single batch
+   */
+  private int largestBatchSize;
+
   public Statistics(Statistics src) {
     this.numberOfQueries = src.numberOfQueries;
     this.numberQueryDatabseCalls = src.numberQueryDatabseCalls;
@@ -62,6 +67,7 @@ public class Statistics implements Serializable {
     this.numberOfRecordInserts = src.numberOfRecordInserts;
     this.numberOfRecordUpdates = src.numberOfRecordUpdates;
     this.numberOfRecordDeletes = src.numberOfRecordDeletes;
+    this.largestBatchSize = src.largestBatchSize;
   }
 
   public Statistics() {
@@ -135,10 +141,34 @@ public class Statistics implements Serializable {
     this.numberOfRecordDeletes += numberOfRecordDeletes;
   }
 
+  public int getLargestBatchSize() {
+    return largestBatchSize;
+  }
+
+  public void addBatchSize(int batchSize) {
+    this.largestBatchSize = Math.max(largestBatchSize, batchSize);
+  }
+
   public void addNumberOfRowsRead(int numberOfRowsRead) {
     this.numberOfRowsRead += numberOfRowsRead;
   }
 
+  /**
+   * Adds the counts of the other statistics to this statistics.
+   */
+  public void add(Statistics other) {
+    this.numberOfQueries += other.numberOfQueries;
+    this.numberQueryDatabseCalls += other.numberQueryDatabseCalls;
+    this.numberOfRowsRead += other.numberOfRowsRead;
+    this.numberOfBatchInserts += other.numberOfBatchInserts;
+    this.numberOfBatchUpdates += other.numberOfBatchUpdates;
+    this.numberOfBatchDeletes += other.numberOfBatchDeletes;
+    this.numberOfRecordInserts += other.numberOfRecordInserts;
+    this.numberOfRecordUpdates += other.numberOfRecordUpdates;
+    this.numberOfRecordDeletes += other.numberOfRecordDeletes;
+    this.largestBatchSize = Math.max(largestBatchSize, other.largestBatchSize);
+  }
+
   public void clear() {
     numberOfBatchDeletes =
         numberOfBatchInserts =
@@ -148,7 +178,8 @@ public class Statistics implements Serializable {
         numberOfRowsRead =
         numberOfRecordDeletes =
         numberOfRecordInserts =
-        numberOfRecordUpdates = 0;
+        numberOfRecordUpdates =
+        largestBatchSize = 0;
   }
 
 }
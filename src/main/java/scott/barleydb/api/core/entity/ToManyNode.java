@@ -196,6 +196,7 @@ public class ToManyNode extends Node {
             newEntities.add(entity);
         }
         entities.add(index, entity);
+        getParent().recordChange(this, null);
     }
 
     public void addIfAbsent(Entity e) {
@@ -215,6 +216,7 @@ public class ToManyNode extends Node {
             newEntities.add(entity);
         }
         entities.add(entity);
+        getParent().recordChange(this, null);
     }
 
     public List<Entity> getList() {
@@ -225,6 +227,7 @@ public class ToManyNode extends Node {
         Entity entity = entities.remove(index);
         if (entity != null) {
             newEntities.remove(entity);
+            getParent().recordChange(this, null);
         }
         return entity;
     }
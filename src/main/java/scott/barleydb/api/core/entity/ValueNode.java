@@ -42,15 +42,37 @@ public class ValueNode extends Node {
         value = parent.getEntityType().getNodeType(name, true).getFixedValue();
     }
 
+    /**
+     * @return the stored value, null or NotLoaded.VALUE
+     */
+    protected Object readValue() {
+        return value;
+    }
+
+    /**
+     * Stores the value, subclasses can store the value in a different form.
+     */
+    protected void writeValue(Object value) {
+        this.value = value;
+    }
+
     @SuppressWarnings("unchecked")
     public <T> T getValueNoFetch() {
-      return (T)value;
+      return (T)readValue();
     }
 
     @SuppressWarnings("unchecked")
     public <T> T getValue() {
+        ensureLoaded();
+        return (T) readValue();
+    }
+
+    /**
+     * Fetches the value if required, afterwards the value is loaded.
+     */
+    protected void ensureLoaded() {
         fetchParentIfRequiredAndAllowed();
-        if (value == NotLoaded.VALUE) {
+        if (readValue() == NotLoaded.VALUE) {
             if (getParent().getKey().getValue() != null) {
                 //normal fetch didn't work, we force a load of this specific property
                 getEntityContext().fetch(getParent(), false, true, true, getName());
@@ -62,15 +84,62 @@ public class ValueNode extends Node {
                 throw new IllegalStateException("Value not loaded, but entity has no key.");
             }
         }
-        return (T) value;
+    }
+
+    /**
+     * @return true if the value is null, fetching the value if required.
+     */
+    public boolean isNull() {
+        return getValue() == null;
+    }
+
+    public long getLongValue() {
+        return getNonNullValue(Number.class).longValue();
+    }
+
+    public int getIntValue() {
+        return getNonNullValue(Number.class).intValue();
+    }
+
+    public short getShortValue() {
+        return getNonNullValue(Number.class).shortValue();
+    }
+
+    public boolean getBooleanValue() {
+        return getNonNullValue(Boolean.class);
+    }
+
+    public void setLongValue(long value) {
+        setValue(value);
+    }
+
+    public void setIntValue(int value) {
+        setValue(value);
+    }
+
+    public void setShortValue(short value) {
+        setValue(value);
+    }
+
+    public void setBooleanValue(boolean value) {
+        setValue(value);
+    }
+
+    private <T> T getNonNullValue(Class<T> type) {
+        Object value = getValue();
+        if (value == null) {
+            throw new IllegalStateException("Value of " + getParent().getEntityType().getInterfaceShortName() + "." + getName() + " is null");
+        }
+        return type.cast(value);
     }
 
     public boolean isLoaded() {
-        return value != NotLoaded.VALUE;
+        return readValue() != NotLoaded.VALUE;
     }
 
     public void setValueNoEvent(Object value) {
-        this.value = value;
+        writeValue(value);
+        getEntityContext().nodeChanged(this);
     }
 
     public void setValue(Object value) {
@@ -79,17 +148,20 @@ public class ValueNode extends Node {
           throw new BarleyDBRuntimeException("Entity property " + getName() + " has a fixed-value defined and cannot be changed.");
         }
       }
-      Object origValue = this.value;
+      Object origValue = readValue();
       setValueNoEvent(value);
-      if (getParent().getKey() == this && !Objects.equals(origValue, value)) {
-          getParent().handleKeySet(origValue);
+      if (!Objects.equals(origValue, value)) {
+          getParent().recordChange(this, origValue);
+          if (getParent().getKey() == this) {
+              getParent().handleKeySet(origValue);
+          }
       }
   }
 
     @Override
     public Element toXml(Document doc) {
         Element element = doc.createElement(getName());
-        org.w3c.dom.Node text = doc.createTextNode(String.valueOf(value));
+        org.w3c.dom.Node text = doc.createTextNode(String.valueOf(readValue()));
         element.appendChild(text);
         return element;
     }
@@ -100,17 +172,19 @@ public class ValueNode extends Node {
     }
 
     public void copyFrom(ValueNode other) {
-        this.value = other.value;
+        writeValue(other.readValue());
+        getEntityContext().nodeChanged(this);
     }
 
     @Override
     public String toString() {
-        return String.valueOf(value);
+        return String.valueOf(readValue());
     }
 
     private void fetchParentIfRequiredAndAllowed() {
         if (getParent().getKey() != this) {
             getParent().fetchIfRequiredAndAllowed();
+            getParent().touch();
         }
     }
 
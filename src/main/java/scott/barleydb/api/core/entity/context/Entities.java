@@ -30,16 +30,20 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.WeakHashMap;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
 import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.core.entity.Node;
 import scott.barleydb.api.query.QueryObject;
 
 public final class Entities implements Iterable<Entity>, Serializable {
@@ -48,6 +52,11 @@ public final class Entities implements Iterable<Entity>, Serializable {
     private static final Logger LOG = LoggerFactory.getLogger(Entities.class);
     public static final Logger GC_LOG = LoggerFactory.getLogger("gc." + Entities.class.getName());
 
+    /**
+     * The number of adds and removes after which the entities which were garbage collected are reclaimed.
+     */
+    private static final int RECLAIM_INTERVAL = 1024;
+
     private volatile boolean allowGarbageCollection;
 
     private Collection<Entity> collectionPreventingGarbageCollection;
@@ -67,26 +76,50 @@ public final class Entities implements Iterable<Entity>, Serializable {
      */
     private WeakHashMap<Entity, EntityInfo> entityInfos;
 
-    private Map<UUID, EntityInfo> entityByUuid;
-    private Map<EntityPkKey,EntityInfo> entityByPk;
+    private UuidEntityInfoMap entityByUuid;
+    /**
+     * The primary key index of each entity type, by interface name.
+     */
+    private Map<String,EntityPkIndex> entityByPk;
     private Map<EntityType,Set<EntityInfo>> entitiesByType;
+    /**
+     * The declared secondary indexes of each entity type, by node index.
+     */
+    private Map<EntityType,EntityIndex[]> indexesByType;
+
+    /**
+     * The accessed loaded entities from the least to the most recently used,
+     * linked through the entity infos so that the order does not prevent garbage collection.
+     */
+    private EntityInfo leastRecentlyUsed;
+    private EntityInfo mostRecentlyUsed;
+    private int accessOrderSize;
+
+    private int operationsSinceReclaim;
+    private long numberOfReclaimedEntities;
+    private long numberOfReclaimSweeps;
+    private Map<String, Long> numberOfReclaimedEntitiesByType = new HashMap<>();
 
     public Entities(boolean allowGarbageCollection) {
         this.allowGarbageCollection = allowGarbageCollection;
         this.collectionPreventingGarbageCollection = new HashSet<Entity>();
         this.entityReferenceQueue = new ReferenceQueue<>();
         this.entityInfos = new WeakHashMap<>();
-        this.entityByUuid = new HashMap<>();
+        this.entityByUuid = new UuidEntityInfoMap();
         this.entityByPk = new HashMap<>();
         this.entitiesByType = new HashMap<>();
+        this.indexesByType = new HashMap<>();
     }
 
     public boolean isAllowGarbageCollection() {
         return allowGarbageCollection;
     }
 
-    public void add(Entity entity, QueryObject<?> optionalQuery) {
-        pollForCollectedEntities();
+    /**
+     * @return the entity info of the entity, which is used to {@link #touch(EntityInfo)} it.
+     */
+    public EntityInfo add(Entity entity, QueryObject<?> optionalQuery) {
+        reclaimIfDue();
         EntityInfo entityInfo = entityInfos.get(entity);
         if (entityInfo == null) {
             entityInfo = new EntityInfo(entity, entityReferenceQueue, optionalQuery);
@@ -94,32 +127,44 @@ public final class Entities implements Iterable<Entity>, Serializable {
             addEntityByType(entityInfo);
             entityByUuid.put(entity.getUuid(), entityInfo);
             if (entity.getKey().getValue() != null) {
-                entityByPk.put(new EntityPkKey(entity), entityInfo);
+                putByPk(entity.getEntityType().getInterfaceName(), entity.getKey().getValue(), entityInfo);
+            }
+            if (!indexesByType.isEmpty()) {
+                addToIndexes(entity, entityInfo);
             }
             if (!allowGarbageCollection) {
                 collectionPreventingGarbageCollection.add(entity);
             }
         }
+        return entityInfo;
     }
 
     public void remove(Entity entity) {
-        pollForCollectedEntities();
+        reclaimIfDue();
         final Object pk = entity.getKey().getValue();
         if (pk != null) {
-            entityByPk.remove( new EntityPkKey(entity) );
+            removeByPk(entity.getEntityType().getInterfaceName(), pk);
         }
         entityByUuid.remove( entity.getUuid() );
         EntityInfo entityInfo = entityInfos.remove(entity);
         removeEntityByType(entityInfo);
+        if (entityInfo != null && !indexesByType.isEmpty()) {
+            removeFromIndexes(entityInfo);
+        }
+        if (entityInfo != null) {
+            detach(entityInfo);
+        }
         if (!collectionPreventingGarbageCollection.isEmpty()) {
             collectionPreventingGarbageCollection.remove(entity);
         }
     }
 
+    /**
+     * Lookups do not reclaim collected entities, an entity info whose entity was collected is treated as missing.
+     */
     public EntityInfo getByUuid(UUID uuid, boolean mustExist) {
-        pollForCollectedEntities();
         EntityInfo entityInfo = entityByUuid.get(uuid);
-        if (entityInfo != null) {
+        if (entityInfo != null && entityInfo.get() != null) {
             return entityInfo;
         }
         if (mustExist) {
@@ -129,9 +174,9 @@ public final class Entities implements Iterable<Entity>, Serializable {
     }
 
     public EntityInfo getByKey(EntityType entityType, Object key) {
-        pollForCollectedEntities();
-        final EntityPkKey pkKey = new EntityPkKey(entityType.getInterfaceName(), key);
-        return entityByPk.get(pkKey);
+        final EntityPkIndex pkIndex = entityByPk.get(entityType.getInterfaceName());
+        final EntityInfo entityInfo = pkIndex != null ? pkIndex.get(key) : null;
+        return entityInfo != null && entityInfo.get() != null ? entityInfo : null;
     }
 
     public EntityInfo keyChanged(Entity entity, Object origKey) {
@@ -140,11 +185,11 @@ public final class Entities implements Iterable<Entity>, Serializable {
         final Object key = entity.getKey().getValue();
         EntityInfo entityInfo = entityByUuid.get(entity.getUuid());
         if (origKey == null && key != null) {
-            entityByPk.put(new EntityPkKey(iname, key), entityInfo);
+            putByPk(iname, key, entityInfo);
             entityInfo.setPrimaryKey(entity.getKey().getValue());
         }
         else if (origKey != null && key == null) {
-            entityByPk.remove(new EntityPkKey(iname, origKey));
+            removeByPk(iname, origKey);
             entityInfo.setPrimaryKey(null);
         }
         else {
@@ -168,6 +213,238 @@ public final class Entities implements Iterable<Entity>, Serializable {
         return result;
     }
 
+    /**
+     * Declares a secondary index on a node of an entity type, the entities of the type which are
+     * already in the context are indexed straight away.<br/>
+     * <br/>
+     * The index only covers entities of exactly the given type, not of it's subtypes.
+     *
+     * @return false if the index already existed.
+     */
+    public boolean addIndex(EntityType entityType, String nodeName) {
+        NodeType nodeType = entityType.getNodeType(nodeName, true);
+        if (nodeType.isOneToManyRelation()) {
+            throw new IllegalArgumentException("Cannot index the to many node " + nodeType.getShortId());
+        }
+        EntityIndex indexes[] = indexesByType.get(entityType);
+        if (indexes == null) {
+            indexesByType.put(entityType, indexes = new EntityIndex[ entityType.getNodeTypeCount() ]);
+        }
+        if (indexes[ nodeType.getIndex() ] != null) {
+            return false;
+        }
+        EntityIndex index = new EntityIndex(entityType, nodeType);
+        Set<EntityInfo> infos = entitiesByType.get(entityType);
+        if (infos != null) {
+            for (EntityInfo entityInfo: infos) {
+                Entity entity = entityInfo.get();
+                if (entity != null) {
+                    index.update(entityInfo, entity.getChild(nodeType.getIndex()));
+                }
+            }
+        }
+        indexes[ nodeType.getIndex() ] = index;
+        LOG.debug("Added {}", index);
+        return true;
+    }
+
+    /**
+     * @return false if there was no such index.
+     */
+    public boolean removeIndex(EntityType entityType, String nodeName) {
+        EntityIndex index = getIndex(entityType, nodeName);
+        if (index == null) {
+            return false;
+        }
+        EntityIndex indexes[] = indexesByType.get(entityType);
+        indexes[ index.getNodeType().getIndex() ] = null;
+        for (EntityIndex other: indexes) {
+            if (other != null) {
+                return true;
+            }
+        }
+        indexesByType.remove(entityType);
+        return true;
+    }
+
+    public boolean hasIndex(EntityType entityType, String nodeName) {
+        return getIndex(entityType, nodeName) != null;
+    }
+
+    /**
+     * Looks up entities by a secondary index.
+     * @param indexValue the value of a value node or the uuid of the entity referenced by a ref node.
+     * @throws IllegalStateException if there is no such index.
+     */
+    public List<Entity> getEntitiesByIndex(EntityType entityType, String nodeName, Object indexValue) {
+        EntityIndex index = getIndex(entityType, nodeName);
+        if (index == null) {
+            throw new IllegalStateException("No index on " + entityType.getInterfaceShortName() + "." + nodeName);
+        }
+        Collection<EntityInfo> infos = index.get(indexValue);
+        List<Entity> result = new ArrayList<>(infos.size());
+        for (EntityInfo entityInfo: infos) {
+            Entity entity = entityInfo.get();
+            if (entity != null) {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Updates the secondary index of the node, if there is one.
+     *
+     * Called when the value of a value node or the reference of a ref node changes.
+     */
+    public void nodeChanged(Node node) {
+        if (indexesByType.isEmpty()) {
+            return;
+        }
+        Entity entity = node.getParent();
+        EntityIndex indexes[] = indexesByType.get(entity.getEntityType());
+        if (indexes == null) {
+            return;
+        }
+        int nodeIndex = node.getNodeType().getIndex();
+        if (nodeIndex < 0 || nodeIndex >= indexes.length || indexes[ nodeIndex ] == null) {
+            return;
+        }
+        EntityInfo entityInfo = entity.getUuid() != null ? entityByUuid.get(entity.getUuid()) : null;
+        if (entityInfo != null && entityInfo.get() == entity) {
+            indexes[ nodeIndex ].update(entityInfo, node);
+        }
+    }
+
+    private EntityIndex getIndex(EntityType entityType, String nodeName) {
+        EntityIndex indexes[] = indexesByType.get(entityType);
+        if (indexes == null) {
+            return null;
+        }
+        int nodeIndex = entityType.getNodeIndex(nodeName, true);
+        return indexes[ nodeIndex ];
+    }
+
+    private void addToIndexes(Entity entity, EntityInfo entityInfo) {
+        EntityIndex indexes[] = indexesByType.get(entity.getEntityType());
+        if (indexes != null) {
+            for (EntityIndex index: indexes) {
+                if (index != null) {
+                    index.update(entityInfo, entity.getChild(index.getNodeType().getIndex()));
+                }
+            }
+        }
+    }
+
+    private void removeFromIndexes(EntityInfo entityInfo) {
+        EntityIndex indexes[] = indexesByType.get(entityInfo.getEntityType());
+        if (indexes != null) {
+            for (EntityIndex index: indexes) {
+                if (index != null) {
+                    index.remove(entityInfo);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the entity to the most recently used end of the access order, adding it if required.
+     */
+    public void touch(EntityInfo entityInfo) {
+        if (entityInfo == mostRecentlyUsed || entityInfo.detached) {
+            return;
+        }
+        unlinkFromAccessOrder(entityInfo);
+        linkToAccessOrder(entityInfo);
+    }
+
+    /**
+     * @return the number of entities in the access order, an upper bound for the number of accessed loaded entities.
+     */
+    public int getAccessOrderSize() {
+        return accessOrderSize;
+    }
+
+    /**
+     * Walks the access order from the least recently used entity until at most lowWaterMark entities are left in it.<br/>
+     * <br/>
+     * Entities which are no longer loaded or were collected are dropped from the order.
+     * Each loaded entity is passed to unloader which returns true if it unloaded the entity, the entity then leaves the order.
+     * An entity which was not unloaded is moved to the most recently used end, so that each entity is visited at most once.
+     *
+     * @return the number of entities unloaded.
+     */
+    public int unloadLeastRecentlyUsed(int lowWaterMark, Predicate<Entity> unloader) {
+        int unloaded = 0;
+        for (int toVisit = accessOrderSize; toVisit > 0 && accessOrderSize > lowWaterMark; toVisit--) {
+            EntityInfo entityInfo = leastRecentlyUsed;
+            unlinkFromAccessOrder(entityInfo);
+            Entity entity = entityInfo.get();
+            if (entity == null || !entity.isLoaded()) {
+                continue;
+            }
+            if (unloader.test(entity)) {
+                unloaded++;
+            }
+            else if (!isInAccessOrder(entityInfo)) {
+                linkToAccessOrder(entityInfo);
+            }
+        }
+        return unloaded;
+    }
+
+    private boolean isInAccessOrder(EntityInfo entityInfo) {
+        return entityInfo.lessRecentlyUsed != null || entityInfo == leastRecentlyUsed;
+    }
+
+    private void linkToAccessOrder(EntityInfo entityInfo) {
+        entityInfo.lessRecentlyUsed = mostRecentlyUsed;
+        entityInfo.moreRecentlyUsed = null;
+        if (mostRecentlyUsed != null) {
+            mostRecentlyUsed.moreRecentlyUsed = entityInfo;
+        }
+        else {
+            leastRecentlyUsed = entityInfo;
+        }
+        mostRecentlyUsed = entityInfo;
+        accessOrderSize++;
+    }
+
+    private void unlinkFromAccessOrder(EntityInfo entityInfo) {
+        if (!isInAccessOrder(entityInfo)) {
+            return;
+        }
+        if (entityInfo.lessRecentlyUsed != null) {
+            entityInfo.lessRecentlyUsed.moreRecentlyUsed = entityInfo.moreRecentlyUsed;
+        }
+        else {
+            leastRecentlyUsed = entityInfo.moreRecentlyUsed;
+        }
+        if (entityInfo.moreRecentlyUsed != null) {
+            entityInfo.moreRecentlyUsed.lessRecentlyUsed = entityInfo.lessRecentlyUsed;
+        }
+        else {
+            mostRecentlyUsed = entityInfo.lessRecentlyUsed;
+        }
+        entityInfo.lessRecentlyUsed = null;
+        entityInfo.moreRecentlyUsed = null;
+        accessOrderSize--;
+    }
+
+    private void detach(EntityInfo entityInfo) {
+        unlinkFromAccessOrder(entityInfo);
+        entityInfo.detached = true;
+    }
+
+    /**
+     * Allows the entity to be garbage collected even if garbage collection is not allowed for the context.
+     */
+    public void allowCollection(Entity entity) {
+        if (!collectionPreventingGarbageCollection.isEmpty()) {
+            collectionPreventingGarbageCollection.remove(entity);
+        }
+    }
+
     public void setAllowGarbageCollection(boolean allow) {
         if (allow) {
             this.allowGarbageCollection = allow;
@@ -194,14 +471,34 @@ public final class Entities implements Iterable<Entity>, Serializable {
     }
 
     public void clear() {
+        for (EntityInfo entityInfo: entityInfos.values()) {
+            entityInfo.detached = true;
+        }
+        for (EntityInfo entityInfo = leastRecentlyUsed; entityInfo != null; ) {
+            EntityInfo next = entityInfo.moreRecentlyUsed;
+            entityInfo.lessRecentlyUsed = null;
+            entityInfo.moreRecentlyUsed = null;
+            entityInfo = next;
+        }
+        leastRecentlyUsed = null;
+        mostRecentlyUsed = null;
+        accessOrderSize = 0;
         entityInfos.clear();
         entityByPk.clear();
         entityByUuid.clear();
         entitiesByType.clear();
+        for (EntityIndex indexes[]: indexesByType.values()) {
+            for (EntityIndex index: indexes) {
+                if (index != null) {
+                    index.clear();
+                }
+            }
+        }
         collectionPreventingGarbageCollection.clear();
     }
 
     public boolean isCompletelyEmpty() {
+        reclaimCollectedEntities();
         if (!entityInfos.isEmpty()) {
             return false;
         }
@@ -221,29 +518,115 @@ public final class Entities implements Iterable<Entity>, Serializable {
     }
 
     public int size() {
-        pollForCollectedEntities();
+        reclaimCollectedEntities();
         return entityInfos.size();
     }
 
-    private void pollForCollectedEntities() {
+    /**
+     * @return the total number of garbage collected entities which were reclaimed.
+     */
+    public long getNumberOfReclaimedEntities() {
+        return numberOfReclaimedEntities;
+    }
+
+    /**
+     * @return the number of reclaimed garbage collected entities by entity interface name.
+     */
+    public Map<String, Long> getNumberOfReclaimedEntitiesByType() {
+        return Collections.unmodifiableMap(numberOfReclaimedEntitiesByType);
+    }
+
+    /**
+     * @return the number of times that garbage collected entities were reclaimed.
+     */
+    public long getNumberOfReclaimSweeps() {
+        return numberOfReclaimSweeps;
+    }
+
+    private void reclaimIfDue() {
+        if (++operationsSinceReclaim >= RECLAIM_INTERVAL) {
+            reclaimCollectedEntities();
+        }
+    }
+
+    /**
+     * Removes the entity infos of all garbage collected entities from the lookups.
+     *
+     * Called after every {@link #RECLAIM_INTERVAL} adds and removes and at the end of entity context operations,
+     * never by lookups.
+     *
+     * @return the number of entities reclaimed.
+     */
+    public int reclaimCollectedEntities() {
+        operationsSinceReclaim = 0;
+        int count = 0;
         EntityInfo entityInfo = null;
         while((entityInfo = (EntityInfo)entityReferenceQueue.poll()) != null) {
+            count++;
+            numberOfReclaimedEntitiesByType.merge(entityInfo.getEntityType().getInterfaceName(), 1L, Long::sum);
+            /*
+             * a new entity with the same key or uuid may have been added since the entity was collected.
+             */
             if (entityInfo.getPrimaryKey() != null) {
-                if (entityByPk.remove(new EntityPkKey(entityInfo)) == null) {
+                if (removeByPk(entityInfo.getEntityType().getInterfaceName(), entityInfo.getPrimaryKey(), entityInfo) == null) {
                     GC_LOG.debug("Failed to remove EntityInfo from primary key lookup for {}", entityInfo);
                 }
             }
-            if (entityByUuid.remove(entityInfo.getUuid()) == null) {
+            if (entityByUuid.get(entityInfo.getUuid()) != entityInfo || entityByUuid.remove(entityInfo.getUuid()) == null) {
                 GC_LOG.debug("Failed to remove EntityInfo from UUID lookup for {}", entityInfo);
             }
             if (!removeEntityByType(entityInfo)) {
                 GC_LOG.debug("Failed to remove EntityInfo from set of entities by type {}", entityInfo);
             }
+            if (!indexesByType.isEmpty()) {
+                removeFromIndexes(entityInfo);
+            }
+            detach(entityInfo);
             //calling size on WeakHashMap will force any stale references to be cleared.
             //this is required for our EnityInfo which is stored as a map value.
             entityInfos.size();
-            GC_LOG.debug("Removed entity info " + entityInfo + " for garbage collected entity");
+            GC_LOG.trace("Removed entity info {} for garbage collected entity", entityInfo);
+        }
+        if (count > 0) {
+            numberOfReclaimSweeps++;
+            numberOfReclaimedEntities += count;
+            GC_LOG.debug("Reclaimed {} garbage collected entities", count);
+        }
+        return count;
+    }
+
+    private void putByPk(String interfaceName, Object key, EntityInfo entityInfo) {
+        EntityPkIndex pkIndex = entityByPk.get(interfaceName);
+        if (pkIndex == null) {
+            entityByPk.put(interfaceName, pkIndex = new EntityPkIndex());
+        }
+        pkIndex.put(key, entityInfo);
+    }
+
+    private EntityInfo removeByPk(String interfaceName, Object key) {
+        return removeByPk(interfaceName, key, null);
+    }
+
+    /**
+     * @param expected only remove if the key maps to this entity info, null to always remove.
+     * @return the removed entity info or null
+     */
+    private EntityInfo removeByPk(String interfaceName, Object key, EntityInfo expected) {
+        EntityPkIndex pkIndex = entityByPk.get(interfaceName);
+        if (pkIndex == null) {
+            return null;
+        }
+        if (expected != null && pkIndex.get(key) != expected) {
+            return null;
+        }
+        EntityInfo removed = pkIndex.remove(key);
+        /*
+         * We also remove the index if it is empty, allows entityByPk.isEmpty() to be accurate.
+         */
+        if (pkIndex.isEmpty()) {
+            entityByPk.remove(interfaceName);
         }
+        return removed;
     }
 
     private void addEntityByType(EntityInfo entityInfo) {
@@ -0,0 +1,146 @@
+package scott.barleydb.api.core.entity.context;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.core.entity.Node;
+import scott.barleydb.api.core.entity.NotLoaded;
+import scott.barleydb.api.core.entity.RefNode;
+import scott.barleydb.api.core.entity.ValueNode;
+
+/**
+ * A secondary index of the entities of one entity type by the value of one of their nodes.
+ *
+ * Value nodes are indexed by their value, ref nodes by the uuid of the referenced entity, so that
+ * the index stays valid when a new referenced entity gets it's key.
+ * Entities whose value is not loaded are not in the index.
+ *
+ * The index is maintained by {@link Entities} as entities are added, changed, removed and collected.
+ *
+ * @author scott
+ *
+ */
+final class EntityIndex {
+
+    private final EntityType entityType;
+    private final NodeType nodeType;
+    private final Map<Object, Set<EntityInfo>> entitiesByValue = new HashMap<>();
+    /**
+     * the indexed value of each entity, so the entity can be removed without knowing it's old value.
+     */
+    private final Map<EntityInfo, Object> valuesByEntity = new IdentityHashMap<>();
+
+    EntityIndex(EntityType entityType, NodeType nodeType) {
+        this.entityType = entityType;
+        this.nodeType = nodeType;
+    }
+
+    public EntityType getEntityType() {
+        return entityType;
+    }
+
+    public NodeType getNodeType() {
+        return nodeType;
+    }
+
+    /**
+     * @return the value that the node is indexed by, or NotLoaded.VALUE if the node should not be indexed.
+     */
+    static Object getIndexValue(Node node) {
+        if (node instanceof RefNode) {
+            RefNode refNode = (RefNode)node;
+            if (!refNode.isLoaded()) {
+                return NotLoaded.VALUE;
+            }
+            Entity reference = refNode.getReference(false);
+            return reference != null ? reference.getUuid() : null;
+        }
+        return ((ValueNode)node).getValueNoFetch();
+    }
+
+    public void update(EntityInfo entityInfo, Node node) {
+        Object value = getIndexValue(node);
+        if (valuesByEntity.containsKey(entityInfo)) {
+            Object current = valuesByEntity.get(entityInfo);
+            if (current == value || (current != null && current.equals(value))) {
+                return;
+            }
+            remove(entityInfo);
+        }
+        if (value == NotLoaded.VALUE) {
+            return;
+        }
+        valuesByEntity.put(entityInfo, value);
+        Set<EntityInfo> infos = entitiesByValue.get(value);
+        if (infos == null) {
+            entitiesByValue.put(value, infos = new HashSet<>());
+        }
+        infos.add(entityInfo);
+    }
+
+    public void remove(EntityInfo entityInfo) {
+        if (!valuesByEntity.containsKey(entityInfo)) {
+            return;
+        }
+        Object value = valuesByEntity.remove(entityInfo);
+        Set<EntityInfo> infos = entitiesByValue.get(value);
+        if (infos != null) {
+            infos.remove(entityInfo);
+            if (infos.isEmpty()) {
+                entitiesByValue.remove(value);
+            }
+        }
+    }
+
+    /**
+     * @return the entity infos with the given index value, an entity info may refer to a collected entity.
+     */
+    public Collection<EntityInfo> get(Object value) {
+        Set<EntityInfo> infos = entitiesByValue.get(value);
+        return infos != null ? infos : Collections.<EntityInfo>emptySet();
+    }
+
+    public int size() {
+        return valuesByEntity.size();
+    }
+
+    public void clear() {
+        entitiesByValue.clear();
+        valuesByEntity.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "EntityIndex [" + entityType.getInterfaceShortName() + "." + nodeType.getName() + ", size=" + size() + "]";
+    }
+}
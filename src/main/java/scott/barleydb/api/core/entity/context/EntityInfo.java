@@ -67,6 +67,16 @@ public final class EntityInfo extends WeakReference<Entity>  {
      * The query object responsible for loading the entity (if loaded from a query).
      */
     private QueryObject<?> fromQuery;
+
+    /**
+     * the neighbours in the access order of the entities, see {@link Entities#touch(EntityInfo)}.
+     */
+    EntityInfo lessRecentlyUsed;
+    EntityInfo moreRecentlyUsed;
+    /**
+     * true once the entity info was removed from the entities, it is then no longer put in the access order.
+     */
+    boolean detached;
     
     public EntityInfo(Entity entity, ReferenceQueue<Entity> entityReferenceQueue, QueryObject<?> fromQuery) {
         super(entity, entityReferenceQueue);
@@ -0,0 +1,96 @@
+package scott.barleydb.api.core.entity.context;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The primary key index of the entities of a single entity type.
+ *
+ * LONG, INTEGER and SHORT keys are held in a long keyed table and UUID keys in a UUID table,
+ * so that a lookup by key does not allocate. Any other type of key falls back to a HashMap.
+ *
+ * @author scott
+ *
+ */
+final class EntityPkIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private LongEntityInfoMap byNumber;
+    private UuidEntityInfoMap byUuid;
+    private Map<Object, EntityInfo> byObject;
+
+    public EntityInfo get(Object key) {
+        if (isNumber(key)) {
+            return byNumber != null ? byNumber.get(((Number)key).longValue()) : null;
+        }
+        if (key instanceof UUID) {
+            return byUuid != null ? byUuid.get((UUID)key) : null;
+        }
+        return byObject != null ? byObject.get(key) : null;
+    }
+
+    public void put(Object key, EntityInfo entityInfo) {
+        if (isNumber(key)) {
+            if (byNumber == null) {
+                byNumber = new LongEntityInfoMap();
+            }
+            byNumber.put(((Number)key).longValue(), entityInfo);
+        }
+        else if (key instanceof UUID) {
+            if (byUuid == null) {
+                byUuid = new UuidEntityInfoMap();
+            }
+            byUuid.put((UUID)key, entityInfo);
+        }
+        else {
+            if (byObject == null) {
+                byObject = new HashMap<>();
+            }
+            byObject.put(key, entityInfo);
+        }
+    }
+
+    public EntityInfo remove(Object key) {
+        if (isNumber(key)) {
+            return byNumber != null ? byNumber.remove(((Number)key).longValue()) : null;
+        }
+        if (key instanceof UUID) {
+            return byUuid != null ? byUuid.remove((UUID)key) : null;
+        }
+        return byObject != null ? byObject.remove(key) : null;
+    }
+
+    public boolean isEmpty() {
+        return (byNumber == null || byNumber.isEmpty()) &&
+                (byUuid == null || byUuid.isEmpty()) &&
+                (byObject == null || byObject.isEmpty());
+    }
+
+    private static boolean isNumber(Object key) {
+        return key instanceof Long || key instanceof Integer || key instanceof Short;
+    }
+}
@@ -0,0 +1,151 @@
+package scott.barleydb.api.core.entity.context;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+import java.io.Serializable;
+
+/**
+ * An open addressing map from a long key to an EntityInfo.
+ *
+ * Uses linear probing, a null value marks an empty slot, so neither lookups nor updates allocate
+ * (other than when the table grows).
+ *
+ * @author scott
+ *
+ */
+final class LongEntityInfoMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long keys[];
+    private EntityInfo values[];
+    private int mask;
+    private int size;
+
+    public LongEntityInfoMap() {
+        allocate(16);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public EntityInfo get(long key) {
+        int i = index(key);
+        EntityInfo value;
+        while((value = values[i]) != null) {
+            if (keys[i] == key) {
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public EntityInfo put(long key, EntityInfo value) {
+        int i = index(key);
+        EntityInfo existing;
+        while((existing = values[i]) != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return existing;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > (values.length >> 1) + (values.length >> 2)) {
+            resize();
+        }
+        return null;
+    }
+
+    public EntityInfo remove(long key) {
+        int i = index(key);
+        EntityInfo existing;
+        while((existing = values[i]) != null) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return existing;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public void clear() {
+        allocate(16);
+        size = 0;
+    }
+
+    /**
+     * Closes the gap at the free slot by moving back any following entries which probed past it.
+     */
+    private void shiftBack(int free) {
+        int i = free;
+        while(true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int home = index(keys[i]);
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                keys[free] = keys[i];
+                values[free] = values[i];
+                free = i;
+            }
+        }
+        values[free] = null;
+    }
+
+    private void resize() {
+        long oldKeys[] = keys;
+        EntityInfo oldValues[] = values;
+        allocate(values.length << 1);
+        for (int i=0; i<oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = index(oldKeys[i]);
+                while(values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new EntityInfo[capacity];
+        mask = capacity - 1;
+    }
+
+    private int index(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+}
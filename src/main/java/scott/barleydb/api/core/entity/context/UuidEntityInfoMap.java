@@ -0,0 +1,164 @@
+package scott.barleydb.api.core.entity.context;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * An open addressing map from a UUID to an EntityInfo, the UUID is stored as two longs.
+ *
+ * Uses linear probing, a null value marks an empty slot, so neither lookups nor updates allocate
+ * (other than when the table grows).
+ *
+ * @author scott
+ *
+ */
+final class UuidEntityInfoMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long mostSigBits[];
+    private long leastSigBits[];
+    private EntityInfo values[];
+    private int mask;
+    private int size;
+
+    public UuidEntityInfoMap() {
+        allocate(16);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public EntityInfo get(UUID key) {
+        final long msb = key.getMostSignificantBits();
+        final long lsb = key.getLeastSignificantBits();
+        int i = index(msb, lsb);
+        EntityInfo value;
+        while((value = values[i]) != null) {
+            if (mostSigBits[i] == msb && leastSigBits[i] == lsb) {
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public EntityInfo put(UUID key, EntityInfo value) {
+        final long msb = key.getMostSignificantBits();
+        final long lsb = key.getLeastSignificantBits();
+        int i = index(msb, lsb);
+        EntityInfo existing;
+        while((existing = values[i]) != null) {
+            if (mostSigBits[i] == msb && leastSigBits[i] == lsb) {
+                values[i] = value;
+                return existing;
+            }
+            i = (i + 1) & mask;
+        }
+        mostSigBits[i] = msb;
+        leastSigBits[i] = lsb;
+        values[i] = value;
+        if (++size > (values.length >> 1) + (values.length >> 2)) {
+            resize();
+        }
+        return null;
+    }
+
+    public EntityInfo remove(UUID key) {
+        final long msb = key.getMostSignificantBits();
+        final long lsb = key.getLeastSignificantBits();
+        int i = index(msb, lsb);
+        EntityInfo existing;
+        while((existing = values[i]) != null) {
+            if (mostSigBits[i] == msb && leastSigBits[i] == lsb) {
+                shiftBack(i);
+                size--;
+                return existing;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public void clear() {
+        allocate(16);
+        size = 0;
+    }
+
+    /**
+     * Closes the gap at the free slot by moving back any following entries which probed past it.
+     */
+    private void shiftBack(int free) {
+        int i = free;
+        while(true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int home = index(mostSigBits[i], leastSigBits[i]);
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                mostSigBits[free] = mostSigBits[i];
+                leastSigBits[free] = leastSigBits[i];
+                values[free] = values[i];
+                free = i;
+            }
+        }
+        values[free] = null;
+    }
+
+    private void resize() {
+        long oldMostSigBits[] = mostSigBits;
+        long oldLeastSigBits[] = leastSigBits;
+        EntityInfo oldValues[] = values;
+        allocate(values.length << 1);
+        for (int i=0; i<oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = index(oldMostSigBits[i], oldLeastSigBits[i]);
+                while(values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                mostSigBits[j] = oldMostSigBits[i];
+                leastSigBits[j] = oldLeastSigBits[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mostSigBits = new long[capacity];
+        leastSigBits = new long[capacity];
+        values = new EntityInfo[capacity];
+        mask = capacity - 1;
+    }
+
+    private int index(long msb, long lsb) {
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+}
@@ -27,6 +27,7 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.List;
+import java.util.Map;
 
 import scott.barleydb.api.config.EntityType;
 import scott.barleydb.api.core.entity.Entity;
@@ -83,22 +84,8 @@ public class EntityProxy implements InvocationHandler, Serializable {
         }
 
         boolean set = methodName.startsWith("set");
-        final String nodeName;
-        if (set || methodName.startsWith("get")) {
-            nodeName = Character.toLowerCase(methodName.charAt(3)) + methodName.substring(4);
-        }
-        else if (methodName.startsWith("is")) {
-            nodeName = Character.toLowerCase(methodName.charAt(2)) + methodName.substring(3);
-        }
-        else {
-            throw new IllegalStateException("Child node does not exist " + methodName);
-        }
-
-        Node node = entity.getChild(nodeName, Node.class);
-        if (node == null) {
-            throw new IllegalStateException("No such property '" + nodeName + "'");
-        }
-        else if (node instanceof ValueNode) {
+        final Node node = entity.getChild( getNodeIndex(entity.getEntityType(), method) );
+        if (node instanceof ValueNode) {
             if (set) {
                 ((ValueNode) node).setValue(args[0]);
                 return null;
@@ -158,7 +145,7 @@ public class EntityProxy implements InvocationHandler, Serializable {
                 //and each session must track it's proxies
                 //rather than creating new ones each time.
                 //we always resolve the tomany node based on it's owning entity
-                return new ToManyProxy<Object>(entity.getChild(nodeName, ToManyNode.class));
+                return new ToManyProxy<Object>((ToManyNode)node);
             }
         }
         else {
@@ -166,6 +153,36 @@ public class EntityProxy implements InvocationHandler, Serializable {
         }
     }
 
+    /**
+     * @return the index of the node for the getter or setter, it is only worked out once per entity type.
+     */
+    private static int getNodeIndex(EntityType entityType, Method method) {
+        final Map<Method, Integer> nodeIndexes = entityType.getProxyMethodNodeIndexes();
+        Integer index = nodeIndexes.get(method);
+        if (index == null) {
+            final String nodeName = getNodeName(method);
+            index = entityType.getNodeIndex(nodeName, false);
+            if (index == -1) {
+                throw new IllegalStateException("No such property '" + nodeName + "'");
+            }
+            nodeIndexes.put(method, index);
+        }
+        return index;
+    }
+
+    private static String getNodeName(Method method) {
+        final String methodName = method.getName();
+        if (methodName.startsWith("set") || methodName.startsWith("get")) {
+            return Character.toLowerCase(methodName.charAt(3)) + methodName.substring(4);
+        }
+        else if (methodName.startsWith("is")) {
+            return Character.toLowerCase(methodName.charAt(2)) + methodName.substring(3);
+        }
+        else {
+            throw new IllegalStateException("Child node does not exist " + methodName);
+        }
+    }
+
     ToManyNode resolveToMany(String child) {
         return entity.getChild(child, ToManyNode.class);
     }
@@ -31,6 +31,7 @@ import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -350,6 +351,30 @@ public class PersistAnalyser implements Serializable {
          */
         List<Entity> otherEntities = EntityContextHelper.applyChanges(changed.getEntities(), otherContext, filter);
         EntityContextHelper.copyRefStates(entityContext, otherContext, otherEntities, filter);
+        /*
+         * the inserted and updated entities now match the database.
+         */
+        resetChangeTracking(otherEntities);
+    }
+
+    /**
+     * Called when the persist was executed in our own entity context,
+     * the inserted and updated entities now match the database.
+     */
+    public void resetChangeTracking() {
+        resetChangeTracking(createGroup.mergedCopy(updateGroup).getEntities());
+    }
+
+    private void resetChangeTracking(List<Entity> entities) {
+        Set<UUID> deleted = new HashSet<>();
+        for (Entity e : deleteGroup.getEntities()) {
+            deleted.add(e.getUuid());
+        }
+        for (Entity e : entities) {
+            if (!deleted.contains(e.getUuid())) {
+                e.resetChangeTracking();
+            }
+        }
     }
 
 }
@@ -23,7 +23,15 @@ package scott.barleydb.api.query;
  */
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -33,6 +41,7 @@ import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import scott.barleydb.api.exception.BarleyDBRuntimeException;
 import scott.barleydb.api.exception.model.QPropertyInvalidException;
 import scott.barleydb.api.exception.model.QPropertyMissingException;
 
@@ -77,10 +86,14 @@ public class QueryObject<R> implements Serializable {
     private List<QOrderBy> orderBy;
 
     /*
-     * limit and offset are only usefull on the root query.
+     * limit, offset and seekAfter are only usefull on the root query.
      */
-//    private Integer limit;
-//    private Integer offset;
+    private Integer limit;
+    private Integer offset;
+    /**
+     * keyset pagination, the values of the order by properties of the last row of the previous page.
+     */
+    private List<Object> seekAfter;
     /**
      * Select .. for update
      */
@@ -154,6 +167,13 @@ public class QueryObject<R> implements Serializable {
         return typeName;
     }
 
+    /**
+     * @return the properties explicitly selected for, empty if all properties are selected.
+     */
+    public Set<String> getProjectedProperties() {
+        return Collections.unmodifiableSet(projectedProperties);
+    }
+
     public boolean isProjected(String propertyName) {
         if (projectedProperties.isEmpty()) {
             return true;
@@ -312,15 +332,77 @@ public class QueryObject<R> implements Serializable {
       return this;
     }
 
-//    public QueryObject<R> limit(int limit) {
-//      this.limit = limit;
-//      return this;
-//    }
-//
-//    public QueryObject<R> offset(int offset) {
-//      this.offset = offset;
-//      return this;
-//    }
+    /**
+     * Limits the number of root entities returned.<br/>
+     *<br/>
+     * The limit applies to the root entities, not to the rows returned by joins.
+     * @param limit
+     * @return
+     */
+    public QueryObject<R> limit(int limit) {
+      this.limit = limit;
+      return this;
+    }
+
+    /**
+     * Skips the given number of root entities.
+     * @param offset
+     * @return
+     */
+    public QueryObject<R> offset(int offset) {
+      this.offset = offset;
+      return this;
+    }
+
+    /**
+     * Keyset pagination, only returns root entities which come after the given values in the order by sequence.<br/>
+     *<br/>
+     * One value must be provided for each order by property, these are the values of the last entity of the previous page.
+     * The order by should end with a unique property (like the primary key) so that the position is unambiguous.
+     *
+     * @param orderByValues
+     * @return
+     */
+    public QueryObject<R> seekAfter(Object ...orderByValues) {
+      this.seekAfter = new ArrayList<>(Arrays.asList(orderByValues));
+      return this;
+    }
+
+    public Integer getLimit() {
+      return limit;
+    }
+
+    public Integer getOffset() {
+      return offset;
+    }
+
+    /**
+     * @return the order by values to seek after or null if not using keyset pagination.
+     */
+    public List<Object> getSeekAfter() {
+      return seekAfter;
+    }
+
+    /**
+     * A deep copy of this query, including its joins, conditions and sub-queries.
+     *
+     * The copy is made by serializing the query, in the same way as a query is sent to a remote server.
+     */
+    @SuppressWarnings("unchecked")
+    public QueryObject<R> copy() {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bout)) {
+                out.writeObject(this);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()))) {
+                return (QueryObject<R>)in.readObject();
+            }
+        }
+        catch(IOException | ClassNotFoundException x) {
+            throw new BarleyDBRuntimeException("Could not copy query " + this, x);
+        }
+    }
 
     public QProperty<?> getMandatoryQProperty(String propertyName) throws QPropertyMissingException, QPropertyInvalidException {
         return new QProperty<>(this, propertyName);
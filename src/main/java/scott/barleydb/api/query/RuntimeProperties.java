@@ -46,6 +46,24 @@ public class RuntimeProperties implements Serializable {
         UPDATABLE
     }
 
+    /**
+     * How a persist validates the entities to update and delete against the database.
+     */
+    public static enum PersistValidation {
+        /**
+         * the rows are reloaded to verify the optimistic locks and to compare the values for the audit.
+         */
+        FULL,
+        /**
+         * only the keys and optimistic locks are reloaded, the audit uses the changes recorded on the entities.
+         */
+        OPTIMISTIC_LOCK,
+        /**
+         * nothing is reloaded, the update counts of the statements detect missing rows and optimistic lock mismatches.
+         */
+        UPDATE_COUNTS
+    }
+
     private static final long serialVersionUID = 1L;
 
     private Integer fetchSize;
@@ -56,6 +74,18 @@ public class RuntimeProperties implements Serializable {
 
     private Boolean executeInSameContext;
 
+    private Integer parallelQueryConnections;
+
+    private Boolean hashGraphAssembly;
+
+    private Boolean deduplicateStrings;
+
+    private Integer maxBatchSize;
+
+    private Boolean updateChangedColumnsOnly;
+
+    private PersistValidation persistValidation;
+
     public RuntimeProperties fetchSize(int fetchSize) {
         this.fetchSize = fetchSize;
         return this;
@@ -67,6 +97,12 @@ public class RuntimeProperties implements Serializable {
         rp.executeInSameContext = executeInSameContext != null ? executeInSameContext : props.executeInSameContext;
         rp.scrollType = scrollType != null ? scrollType : props.scrollType;
         rp.concurrency = concurrency != null ? concurrency : props.concurrency;
+        rp.parallelQueryConnections = parallelQueryConnections != null ? parallelQueryConnections : props.parallelQueryConnections;
+        rp.hashGraphAssembly = hashGraphAssembly != null ? hashGraphAssembly : props.hashGraphAssembly;
+        rp.deduplicateStrings = deduplicateStrings != null ? deduplicateStrings : props.deduplicateStrings;
+        rp.maxBatchSize = maxBatchSize != null ? maxBatchSize : props.maxBatchSize;
+        rp.updateChangedColumnsOnly = updateChangedColumnsOnly != null ? updateChangedColumnsOnly : props.updateChangedColumnsOnly;
+        rp.persistValidation = persistValidation != null ? persistValidation : props.persistValidation;
         return rp;
     }
 
@@ -85,6 +121,67 @@ public class RuntimeProperties implements Serializable {
         return this;
     }
 
+    /**
+     * Allows the queries of a QueryBatcher to execute concurrently on up to the given number of pooled connections.<br/>
+     *<br/>
+     * Only applies when the entity context has no transaction, the results are added to the context in batcher order.
+     */
+    public RuntimeProperties parallelQueryConnections(int parallelQueryConnections) {
+        this.parallelQueryConnections = parallelQueryConnections;
+        return this;
+    }
+
+    /**
+     * Controls how a non-streaming query assembles the object graphs from the result rows.<br/>
+     *<br/>
+     * true: the entity data is collected by key as the rows arrive and the graphs are stitched together at the end,
+     * so the rows of a root entity do not need to be adjacent in the result.<br/>
+     * false: a graph is complete when the key of the root entity changes, the rows must be ordered by the root entity.<br/>
+     *<br/>
+     * If not set the graphs are assembled in row order.
+     */
+    public RuntimeProperties hashGraphAssembly(boolean hashGraphAssembly) {
+        this.hashGraphAssembly = hashGraphAssembly;
+        return this;
+    }
+
+    /**
+     * If true the string columns of the query results are sampled and the values of the columns
+     * which repeat (status codes, currencies, ...) share a single instance per query.
+     * Nodes specified as low cardinality are always deduplicated.
+     */
+    public RuntimeProperties deduplicateStrings(boolean deduplicateStrings) {
+        this.deduplicateStrings = deduplicateStrings;
+        return this;
+    }
+
+    /**
+     * The maximum number of statements in a single JDBC batch when persisting,
+     * overrides {@link scott.barleydb.server.jdbc.vendor.Database#getMaxBatchSize()}.
+     */
+    public RuntimeProperties maxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * If true persisted updates only set the columns which changed and the optimistic lock,
+     * entities with the same changed columns share a statement and JDBC batch.
+     */
+    public RuntimeProperties updateChangedColumnsOnly(boolean updateChangedColumnsOnly) {
+        this.updateChangedColumnsOnly = updateChangedColumnsOnly;
+        return this;
+    }
+
+    /**
+     * Decides how much data is reloaded before a persist, {@link PersistValidation#FULL} by default.
+     * Entities whose changes were not recorded are always fully reloaded when updated.
+     */
+    public RuntimeProperties persistValidation(PersistValidation persistValidation) {
+        this.persistValidation = persistValidation;
+        return this;
+    }
+
     public Integer getFetchSize() {
         return fetchSize;
     }
@@ -100,4 +197,28 @@ public class RuntimeProperties implements Serializable {
     public Concurrency getConcurrency() {
         return concurrency;
     }
+
+    public Integer getParallelQueryConnections() {
+        return parallelQueryConnections;
+    }
+
+    public Boolean getHashGraphAssembly() {
+        return hashGraphAssembly;
+    }
+
+    public Boolean getDeduplicateStrings() {
+        return deduplicateStrings;
+    }
+
+    public Integer getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public Boolean getUpdateChangedColumnsOnly() {
+        return updateChangedColumnsOnly;
+    }
+
+    public PersistValidation getPersistValidation() {
+        return persistValidation;
+    }
 }
@@ -94,6 +94,14 @@ public class NodeSpec implements Serializable, Cloneable {
     @XmlAttribute
     private KeyGenSpec keyGenSpec;
 
+    /**
+     * true if the column only has a few distinct values (status codes, currencies, ...),
+     * then equal values read from the database share the same instance.
+     * false to never deduplicate, null to let the query decide.
+     */
+    @XmlAttribute
+    private Boolean lowCardinality;
+
     /**
      * key used to lookup the enumSpec, only required by static definition processing.
      */
@@ -268,6 +276,14 @@ public class NodeSpec implements Serializable, Cloneable {
         this.scale = scale;
     }
 
+    public Boolean getLowCardinality() {
+        return lowCardinality;
+    }
+
+    public void setLowCardinality(Boolean lowCardinality) {
+        this.lowCardinality = lowCardinality;
+    }
+
     public boolean isOptimisticLock() {
         return optimisticLock;
     }
@@ -341,6 +357,10 @@ public class NodeSpec implements Serializable, Cloneable {
             sb.append("\n\tlength=");
             sb.append(length);
         }
+        if (lowCardinality != null) {
+            sb.append("\n\tlowCardinality=");
+            sb.append(lowCardinality);
+        }
         sb.append("\n]");
         return sb.toString();
     }
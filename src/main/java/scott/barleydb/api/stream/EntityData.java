@@ -33,22 +33,60 @@ import scott.barleydb.api.config.EntityType;
 import scott.barleydb.api.core.entity.EntityConstraint;
 import scott.barleydb.api.core.entity.EntityContext;
 import scott.barleydb.api.core.entity.EntityState;
+import scott.barleydb.api.core.entity.PrimitiveValueNode;
 import scott.barleydb.api.core.entity.context.EntityId;
 
+/**
+ * The data of an entity which was read from the database.<br/>
+ * <br/>
+ * Query execution creates compact entity data, the values are held in an array
+ * which is described by an {@link EntityDataSchema} shared by all rows of the projection.<br/>
+ * The map view {@link #getData()} is still available, the first call converts the entity data to the map form.<br/>
+ * <br/>
+ * Compact entity data can hold the values of LONG, INTEGER and SHORT nodes as primitives, they are only
+ * boxed if they are read as objects.
+ */
 public class EntityData implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * stored in the values when the value of the slot is held in primitives.
+     */
+    private enum Held {
+        PRIMITIVE
+    }
+
     private String namespace;
     private String entityType;
     /*
-     * the Value Nodes and RefNodes
+     * the Value Nodes and RefNodes, either as a map or as values described by the schema
+     */
+    private LinkedHashMap<String, Object> data;
+    private EntityDataSchema schema;
+    private Object values[];
+    /**
+     * the primitive values of compact entity data, created on first use.
      */
-    private final LinkedHashMap<String, Object> data = new LinkedHashMap<>();
+    private long primitives[];
     private EntityConstraint constraints;
     private EntityState entityState;
     private UUID uuid;
-    
+
+    public EntityData() {
+        this.data = new LinkedHashMap<>();
+    }
+
+    /**
+     * Creates compact entity data with a value slot for each node in the schema.
+     */
+    public EntityData(EntityDataSchema schema) {
+        this.schema = schema;
+        this.namespace = schema.getNamespace();
+        this.entityType = schema.getEntityType();
+        this.values = new Object[ schema.size() ];
+    }
+
     public String getNamespace() {
         return namespace;
     }
@@ -61,7 +99,83 @@ public class EntityData implements Serializable {
     public void setEntityType(String entityType) {
         this.entityType = entityType;
     }
+
+    /**
+     * @return true if the values are held in an array described by the schema.
+     */
+    public boolean isCompact() {
+        return values != null;
+    }
+
+    /**
+     * @return the schema of compact entity data, null if the data is in map form.
+     */
+    public EntityDataSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return the value in the given schema slot of compact entity data.
+     */
+    public Object getValue(int slot) {
+        Object value = values[ slot ];
+        return value == Held.PRIMITIVE ? PrimitiveValueNode.box(schema.getPrimitiveType(slot), primitives[ slot ]) : value;
+    }
+
+    public void setValue(int slot, Object value) {
+        values[ slot ] = value;
+    }
+
+    /**
+     * @return true if the value in the given schema slot is held as a primitive.
+     */
+    public boolean isPrimitive(int slot) {
+        return values[ slot ] == Held.PRIMITIVE;
+    }
+
+    /**
+     * @return the primitive value in the given schema slot, see {@link #isPrimitive(int)}.
+     */
+    public long getPrimitiveValue(int slot) {
+        return primitives[ slot ];
+    }
+
+    /**
+     * Sets a primitive value, the slot must have a primitive type in the schema.
+     */
+    public void setPrimitiveValue(int slot, long value) {
+        if (primitives == null) {
+            primitives = new long[ values.length ];
+        }
+        primitives[ slot ] = value;
+        values[ slot ] = Held.PRIMITIVE;
+    }
+
+    /**
+     * @return the value of the named node, null if there is no such value.
+     */
+    public Object getValue(String nodeName) {
+        if (values != null) {
+            int slot = schema.getSlot(nodeName);
+            return slot != -1 ? getValue(slot) : null;
+        }
+        return data.get(nodeName);
+    }
+
+    /**
+     * The map view of the data, compact entity data is converted to the map form.
+     */
     public LinkedHashMap<String, Object> getData() {
+        if (values != null) {
+            LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+            for (int i=0; i<values.length; i++) {
+                map.put(schema.getNodeName(i), getValue(i));
+            }
+            data = map;
+            values = null;
+            primitives = null;
+            schema = null;
+        }
         return data;
     }
     public EntityConstraint getConstraints() {
@@ -88,7 +202,10 @@ public class EntityData implements Serializable {
     }
 
     public Object getKey(EntityType entityType) {
-        return data.get( entityType.getKeyNodeName() );
+        if (values != null && schema.getKeySlot() != -1 && schema.getEntityType().equals(entityType.getInterfaceName())) {
+            return getValue( schema.getKeySlot() );
+        }
+        return getValue( entityType.getKeyNodeName() );
     }
 
     public EntityId getEntityId(EntityContext ctx) {
@@ -98,7 +215,21 @@ public class EntityData implements Serializable {
 
     @Override
     public String toString() {
-        return "EntityData [namespace=" + namespace + ", entityType=" + entityType + ", data=" + data + ", constraints="
+        StringBuilder sb = new StringBuilder();
+        if (values != null) {
+            sb.append('{');
+            for (int i=0; i<values.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(schema.getNodeName(i)).append('=').append(getValue(i));
+            }
+            sb.append('}');
+        }
+        else {
+            sb.append(data);
+        }
+        return "EntityData [namespace=" + namespace + ", entityType=" + entityType + ", data=" + sb + ", constraints="
                 + constraints + ", entityState=" + entityState + ", uuid=" + uuid + "]";
     }
 }
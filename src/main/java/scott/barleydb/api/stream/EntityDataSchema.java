@@ -0,0 +1,137 @@
+package scott.barleydb.api.stream;
+
+/*-
+ * #%L
+ * BarleyDB
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2014 - 2017 Scott Sinclair
+ *       <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.core.entity.PrimitiveValueNode;
+import scott.barleydb.api.core.types.JavaType;
+
+/**
+ * Describes the values of compact {@link EntityData}, the entity type and which node each value belongs to.
+ *
+ * A schema is created once per entity type in a projection and shared by all of the rows loaded with it,
+ * so the node names are not repeated for every row.
+ *
+ * @author scott
+ *
+ */
+public class EntityDataSchema implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String namespace;
+    private final String entityType;
+    private final String nodeNames[];
+    /**
+     * the index of each node in the entity type, see {@link scott.barleydb.api.config.NodeType#getIndex()}
+     */
+    private final int nodeIndexes[];
+    private final int keySlot;
+    /**
+     * the java type of each value which can be held as a primitive, null for the other values.
+     */
+    private final JavaType primitiveTypes[];
+    private final Map<String, Integer> slotsByName;
+
+    public EntityDataSchema(EntityType entityType, List<String> nodeNames) {
+        this.namespace = entityType.getDefinitions().getNamespace();
+        this.entityType = entityType.getInterfaceName();
+        this.nodeNames = nodeNames.toArray(new String[nodeNames.size()]);
+        this.nodeIndexes = new int[ this.nodeNames.length ];
+        this.primitiveTypes = new JavaType[ this.nodeNames.length ];
+        this.slotsByName = new HashMap<>();
+        for (int i=0; i<this.nodeNames.length; i++) {
+            nodeIndexes[i] = entityType.getNodeIndex(this.nodeNames[i], false);
+            NodeType nodeType = entityType.getNodeType(this.nodeNames[i], false);
+            if (nodeType != null && !nodeType.isPrimaryKey() && PrimitiveValueNode.supports(nodeType)) {
+                primitiveTypes[i] = nodeType.getJavaType();
+            }
+            slotsByName.put(this.nodeNames[i], i);
+        }
+        Integer slot = slotsByName.get(entityType.getKeyNodeName());
+        this.keySlot = slot != null ? slot : -1;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    /**
+     * @return the number of values
+     */
+    public int size() {
+        return nodeNames.length;
+    }
+
+    public String getNodeName(int slot) {
+        return nodeNames[ slot ];
+    }
+
+    /**
+     * @return the index of the node in the entity type or -1 if the entity type has no such node.
+     */
+    public int getNodeIndex(int slot) {
+        return nodeIndexes[ slot ];
+    }
+
+    /**
+     * @return the java type if the value in the slot can be held as a primitive, otherwise null.
+     */
+    public JavaType getPrimitiveType(int slot) {
+        return primitiveTypes[ slot ];
+    }
+
+    /**
+     * @return the slot of the named node or -1 if the schema does not include it.
+     */
+    public int getSlot(String nodeName) {
+        Integer slot = slotsByName.get(nodeName);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * @return the slot of the primary key or -1 if the schema does not include it.
+     */
+    public int getKeySlot() {
+        return keySlot;
+    }
+
+    @Override
+    public String toString() {
+        return "EntityDataSchema [entityType=" + entityType + ", nodeNames=" + Arrays.toString(nodeNames) + "]";
+    }
+}
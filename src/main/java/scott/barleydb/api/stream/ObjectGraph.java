@@ -25,10 +25,10 @@ package scott.barleydb.api.stream;
  * #L%
  */
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -44,9 +44,12 @@ public class ObjectGraph {
      * The list of entity data which constitutes this query result.
      *  (all of the entity data from all the outer joins 1:1 or 1:N.
      */
-    private final List<EntityData> entityData = new LinkedList<>();
+    private final List<EntityData> entityData = new ArrayList<>();
 
-    private Map<EntityData, QueryObject<?>> entityDataToQueryMap = new HashMap<>();
+    /**
+     * entity data has identity equality, so an identity map does the same job with less overhead.
+     */
+    private final Map<EntityData, QueryObject<?>> entityDataToQueryMap = new IdentityHashMap<>();
 
     private final Set<NodeId> fetchedToManyNodes = new HashSet<>();
 
@@ -56,7 +59,7 @@ public class ObjectGraph {
 
     public void addAll(Collection<EntityData> eds, Map<EntityData, QueryObject<?>> entityDataToQueryMap) {
         entityData.addAll( eds );
-        for (EntityData ed: entityData) {
+        for (EntityData ed: eds) {
             this.entityDataToQueryMap.put(ed, entityDataToQueryMap.get(ed));
         }
     }
@@ -0,0 +1,189 @@
+package scott.barleydb.api.stream;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import scott.barleydb.api.exception.BarleyDBRuntimeException;
+
+/**
+ * A spliterator over a query whose root key range is split into sub ranges.
+ *
+ * Each sub range is streamed by its own sub-query, which is only opened when the first item is read,
+ * so the stream can be processed with real fork-join parallelism.
+ *
+ * @author scott
+ *
+ * @param <T>
+ */
+public class RangePartitionedSpliterator<T> implements Spliterator<T>, AutoCloseable {
+
+    /**
+     * Opens the stream for a range of keys.
+     */
+    public interface PartitionOpener<T> {
+        /**
+         * @param fromKey the lowest key of the range (inclusive)
+         * @param toKey the highest key of the range (inclusive)
+         */
+        DataStream<T> open(long fromKey, long toKey) throws EntityStreamException;
+    }
+
+    private final PartitionOpener<T> opener;
+    private final Set<DataStream<T>> openStreams;
+    private final AtomicInteger numberOfPartitions;
+    private final int maxPartitions;
+    private long fromKey;
+    private final long toKey;
+    private DataStream<T> stream;
+    private boolean finished;
+
+    /**
+     * @param opener opens the stream for a range of keys
+     * @param fromKey the lowest key (inclusive)
+     * @param toKey the highest key (inclusive)
+     * @param maxPartitions the maximum number of partitions the range is split into
+     */
+    public RangePartitionedSpliterator(PartitionOpener<T> opener, long fromKey, long toKey, int maxPartitions) {
+        this(opener, ConcurrentHashMap.newKeySet(), new AtomicInteger(1), maxPartitions, fromKey, toKey);
+    }
+
+    private RangePartitionedSpliterator(PartitionOpener<T> opener, Set<DataStream<T>> openStreams, AtomicInteger numberOfPartitions, int maxPartitions, long fromKey, long toKey) {
+        this.opener = opener;
+        this.openStreams = openStreams;
+        this.numberOfPartitions = numberOfPartitions;
+        this.maxPartitions = maxPartitions;
+        this.fromKey = fromKey;
+        this.toKey = toKey;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (finished) {
+            return false;
+        }
+        try {
+            if (stream == null) {
+                stream = opener.open(fromKey, toKey);
+                openStreams.add(stream);
+            }
+            T item = stream.read();
+            if (item != null) {
+                action.accept(item);
+                return true;
+            }
+            finished = true;
+            closeStream();
+            return false;
+        }
+        catch(EntityStreamException x) {
+            finished = true;
+            BarleyDBRuntimeException x2 = new BarleyDBRuntimeException("Error reading keys " + fromKey + " to " + toKey + " from entity stream", x);
+            try {
+                closeStream();
+            }
+            catch(EntityStreamException x3) {
+                x2.addSuppressed(x3);
+            }
+            throw x2;
+        }
+    }
+
+    /**
+     * Splits off the lower half of the key range, if this partition has not started streaming
+     * and the maximum number of partitions is not reached.
+     */
+    @Override
+    public Spliterator<T> trySplit() {
+        if (stream != null || finished || toKey <= fromKey) {
+            return null;
+        }
+        if (numberOfPartitions.incrementAndGet() > maxPartitions) {
+            numberOfPartitions.decrementAndGet();
+            return null;
+        }
+        //the floor of the average without overflowing, so fromKey <= mid < toKey
+        long mid = (fromKey >> 1) + (toKey >> 1) + (fromKey & toKey & 1);
+        RangePartitionedSpliterator<T> lowerHalf = new RangePartitionedSpliterator<>(opener, openStreams, numberOfPartitions, maxPartitions, fromKey, mid);
+        fromKey = mid + 1;
+        return lowerHalf;
+    }
+
+    /**
+     * The width of the key range, the number of rows is not known.
+     */
+    @Override
+    public long estimateSize() {
+        if (toKey < fromKey) {
+            return 0;
+        }
+        try {
+            return Math.addExact(Math.subtractExact(toKey, fromKey), 1);
+        }
+        catch(ArithmeticException x) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.DISTINCT | Spliterator.NONNULL;
+    }
+
+    /**
+     * Closes the streams of all partitions which are still open.
+     */
+    @Override
+    public void close() throws EntityStreamException {
+        EntityStreamException toThrow = null;
+        for (DataStream<T> s: openStreams) {
+            try {
+                s.close();
+            }
+            catch(EntityStreamException x) {
+                if (toThrow == null) {
+                    toThrow = x;
+                }
+                else {
+                    toThrow.addSuppressed(x);
+                }
+            }
+        }
+        openStreams.clear();
+        if (toThrow != null) {
+            throw toThrow;
+        }
+    }
+
+    private void closeStream() throws EntityStreamException {
+        if (stream != null) {
+            openStreams.remove(stream);
+            stream.close();
+        }
+    }
+}
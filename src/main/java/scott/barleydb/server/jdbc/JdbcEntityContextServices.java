@@ -25,6 +25,7 @@ package scott.barleydb.server.jdbc;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -33,6 +34,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
@@ -48,6 +54,7 @@ import scott.barleydb.api.core.IEntityContextServices;
 import scott.barleydb.api.core.QueryBatcher;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.entity.Statistics;
 import scott.barleydb.api.core.entity.ToManyNode;
 import scott.barleydb.api.core.entity.context.EntityId;
 import scott.barleydb.api.exception.execution.SortServiceProviderException;
@@ -69,6 +76,7 @@ import scott.barleydb.api.query.QueryObject;
 import scott.barleydb.api.query.RuntimeProperties;
 import scott.barleydb.api.stream.EntityData;
 import scott.barleydb.api.stream.EntityStreamException;
+import scott.barleydb.api.stream.ObjectGraph;
 import scott.barleydb.api.stream.ObjectGraph.NodeId;
 import scott.barleydb.api.stream.QueryEntityDataInputStream;
 import scott.barleydb.api.stream.QueryResultItem;
@@ -79,7 +87,9 @@ import scott.barleydb.server.jdbc.query.QueryExecuter;
 import scott.barleydb.server.jdbc.query.QueryExecution;
 import scott.barleydb.server.jdbc.query.QueryGenerator;
 import scott.barleydb.server.jdbc.query.QueryResult;
+import scott.barleydb.server.jdbc.query.QueryTemplateCache;
 import scott.barleydb.server.jdbc.resources.ConnectionResources;
+import scott.barleydb.server.jdbc.resources.StatementCache;
 import scott.barleydb.server.jdbc.vendor.Database;
 
 /**
@@ -102,6 +112,10 @@ public class JdbcEntityContextServices implements IEntityContextServices {
 
     private SequenceGenerator sequenceGenerator;
 
+    private int statementCacheSize = StatementCache.DEFAULT_MAX_SIZE;
+
+    private ExecutorService queryExecutor;
+
     public JdbcEntityContextServices(DataSource dataSource) {
         this.dataSource = dataSource;
         this.typeConverters = new HashMap<>();
@@ -135,6 +149,36 @@ public class JdbcEntityContextServices implements IEntityContextServices {
         this.sequenceGenerator = sequenceGenerator;
     }
 
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of idle prepared statements cached per connection, 0 disables the caching.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * The executor which runs queries in parallel, a cached pool of daemon threads is created if none was set.
+     */
+    public synchronized ExecutorService getQueryExecutor() {
+        if (queryExecutor == null) {
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+            queryExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "barleydb-query-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return queryExecutor;
+    }
+
+    public synchronized void setQueryExecutor(ExecutorService queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
     @Override
     public DefinitionsSet getDefinitionsSet() {
         return env.getDefinitionsSet();
@@ -147,7 +191,7 @@ public class JdbcEntityContextServices implements IEntityContextServices {
     public void joinTransaction(EntityContext newContext, EntityContext context) {
         ConnectionResources conRes = ConnectionResources.get(context);
         if (conRes != null) {
-            ConnectionResources.set(newContext, conRes.getConnection(), conRes.getDatabase());
+            ConnectionResources.join(newContext, conRes);
         }
     }
 
@@ -286,6 +330,7 @@ public class JdbcEntityContextServices implements IEntityContextServices {
         }
 
         QueryExecution<T> execution = new QueryExecution<T>(this, entityContext, query, env.getDefinitions(entityContext.getNamespace()));
+        execution.setDeduplicateStrings( useStringDeduplication(props) );
 
         try{
             QueryExecuter executer = new QueryExecuter(this, conRes, entityContext, props, returnToPool);
@@ -311,6 +356,8 @@ public class JdbcEntityContextServices implements IEntityContextServices {
         }
 
         QueryExecution<T> execution = new QueryExecution<T>(this, entityContext, query, env.getDefinitions(entityContext.getNamespace()));
+        execution.setHashAssembly( useHashAssembly(props) );
+        execution.setDeduplicateStrings( useStringDeduplication(props) );
 
         try (OptionalyClosingResources con = new OptionalyClosingResources(conRes, returnToPool)){
             QueryExecuter executer = new QueryExecuter(this, conRes, entityContext, props, returnToPool);
@@ -324,12 +371,31 @@ public class JdbcEntityContextServices implements IEntityContextServices {
         }
     }
 
+    /**
+     * Assembling the object graphs by key is opt-in, like the string deduplication.
+     */
+    private static boolean useHashAssembly(RuntimeProperties props) {
+        return props != null && Boolean.TRUE.equals(props.getHashGraphAssembly());
+    }
+
+    /**
+     * Sampling the string columns for repeating values is opt-in, low cardinality nodes are deduplicated regardless.
+     */
+    private static boolean useStringDeduplication(RuntimeProperties props) {
+        return props != null && Boolean.TRUE.equals(props.getDeduplicateStrings());
+    }
+
     @Override
     public QueryBatcher execute(EntityContext entityContext, QueryBatcher queryBatcher, RuntimeProperties props) throws SortJdbcException, BarleyDBQueryException {
         if (queryBatcher.getQueries().isEmpty()) {
             return queryBatcher;
         }
         ConnectionResources conRes = ConnectionResources.get(entityContext);
+        if (conRes == null && props != null && props.getParallelQueryConnections() != null
+                && props.getParallelQueryConnections() > 1 && queryBatcher.size() > 1) {
+            //no transaction to respect, so the queries can use their own connections
+            return executeInParallel(entityContext, queryBatcher, props, Math.min(props.getParallelQueryConnections(), queryBatcher.size()));
+        }
         boolean returnToPool = false;
         if (conRes == null) {
             conRes = newConnectionResources(entityContext, true);
@@ -340,7 +406,9 @@ public class JdbcEntityContextServices implements IEntityContextServices {
         int i = 0;
         for (QueryObject<?> queryObject : queryBatcher.getQueries()) {
             env.preProcess(queryObject, entityContext.getDefinitions());
-            queryExecutions[i++] = new QueryExecution<>(this, entityContext, queryObject, env.getDefinitions(entityContext.getNamespace()));
+            QueryExecution<?> execution = new QueryExecution<>(this, entityContext, queryObject, env.getDefinitions(entityContext.getNamespace()));
+            execution.setDeduplicateStrings( useStringDeduplication(props) );
+            queryExecutions[i++] = execution;
         }
 
         try (OptionalyClosingResources con = new OptionalyClosingResources(conRes, returnToPool);) {
@@ -352,6 +420,102 @@ public class JdbcEntityContextServices implements IEntityContextServices {
         }
     }
 
+    /**
+     * Executes the queries of the batcher concurrently on the given number of connections.
+     *
+     * Each connection is used by a worker with its own private entity context, which only reads the object graphs.
+     * The object graphs are then added to the entity context in batcher order by the calling thread.
+     */
+    private QueryBatcher executeInParallel(EntityContext entityContext, QueryBatcher queryBatcher, RuntimeProperties props, int numberOfConnections) throws SortJdbcException, BarleyDBQueryException {
+        final List<QueryObject<?>> queries = new ArrayList<>(queryBatcher.getQueries());
+        for (QueryObject<?> queryObject : queries) {
+            env.preProcess(queryObject, entityContext.getDefinitions());
+        }
+        LOG.debug("Executing {} queries in parallel on {} connections", queries.size(), numberOfConnections);
+        final List<List<ObjectGraph>> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+        final List<Future<Statistics>> futures = new ArrayList<>(numberOfConnections);
+        final ExecutorService executor = getQueryExecutor();
+        for (int i=0; i<numberOfConnections; i++) {
+            final EntityContext workerContext = entityContext.newEntityContext();
+            final int firstQuery = i;
+            futures.add(executor.submit(() -> executeQueriesOnOwnConnection(workerContext, queries, firstQuery, numberOfConnections, props, results)));
+        }
+        try {
+            for (Future<Statistics> future: futures) {
+                entityContext.getStatistics().add( future.get() );
+            }
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            cancel(futures);
+            throw new BarleyDBQueryException("Interrupted while waiting for parallel queries", x);
+        }
+        catch (ExecutionException x) {
+            cancel(futures);
+            Throwable cause = x.getCause();
+            if (cause instanceof SortJdbcException) {
+                throw (SortJdbcException)cause;
+            }
+            if (cause instanceof BarleyDBQueryException) {
+                throw (BarleyDBQueryException)cause;
+            }
+            throw new BarleyDBQueryException("Error executing parallel query", cause);
+        }
+
+        for (int i=0, n=queries.size(); i<n; i++) {
+            queryBatcher.addResult( new QueryResult<>(entityContext) );
+        }
+        for (int i=0, n=queries.size(); i<n; i++) {
+            for (ObjectGraph objectGraph: results.get(i)) {
+                addObjectGraphToBatchResult(entityContext, queryBatcher, i, objectGraph);
+            }
+        }
+        return queryBatcher;
+    }
+
+    /**
+     * Executes every step'th query starting at firstQuery on a new connection.
+     *
+     * @return the statistics of the worker context
+     */
+    private Statistics executeQueriesOnOwnConnection(EntityContext workerContext, List<QueryObject<?>> queries, int firstQuery, int step, RuntimeProperties props, List<List<ObjectGraph>> results) throws SortJdbcException, BarleyDBQueryException {
+        ConnectionResources conRes = newConnectionResources(workerContext, true);
+        try {
+            Definitions definitions = env.getDefinitions(workerContext.getNamespace());
+            for (int i=firstQuery; i<queries.size(); i+=step) {
+                QueryExecution<?> execution = new QueryExecution<>(this, workerContext, queries.get(i), definitions);
+                execution.setDeduplicateStrings( useStringDeduplication(props) );
+                QueryExecuter exec = new QueryExecuter(this, conRes, workerContext, props, false);
+                List<ObjectGraph> objectGraphs = new LinkedList<>();
+                try (QueryEntityDataInputStream in = exec.execute(execution)) {
+                    QueryResultItem qitem;
+                    while( (qitem = in.read()) != null) {
+                        objectGraphs.add( qitem.getObjectGraph() );
+                    }
+                }
+                results.set(i, objectGraphs);
+            }
+        }
+        catch(EntityStreamException x) {
+            throw new BarleyDBQueryException("Error processing entity stream", x);
+        }
+        finally {
+            try {
+                conRes.close();
+            }
+            catch(SQLException x) {
+                throw new SortJdbcException("Error closing connection", x);
+            }
+        }
+        return workerContext.getStatistics();
+    }
+
+    private static void cancel(List<Future<Statistics>> futures) {
+        for (Future<Statistics> future: futures) {
+            future.cancel(true);
+        }
+    }
+
     protected Persister newPersister(Environment env, String namespace) {
         return new Persister(env, namespace, this);
     }
@@ -420,7 +584,7 @@ public class JdbcEntityContextServices implements IEntityContextServices {
 
         try (OptionalyClosingResources con = newOptionallyClosingConnection(entityContext)) {
             try {
-                persister.persist(analyser);
+                persister.persist(analyser, runtimeProperties);
                 return analyser;
             }
             catch(SortPersistException x) {
@@ -485,24 +649,27 @@ public class JdbcEntityContextServices implements IEntityContextServices {
         }
 
         QueryResultItem qitem;
-        Definitions defs = entityContext.getDefinitions();
         while( (qitem = in.read()) != null) {
+            addObjectGraphToBatchResult(entityContext, queryBatcher, qitem.getQueryIndex(), qitem.getObjectGraph());
+        }
+        return queryBatcher;
+    }
 
-            List<Entity> entities = new LinkedList<>();
-            for (EntityData entityData:  qitem.getObjectGraph().getEntityData()) {
-                entities.add( entityContext.addEntityLoadedFromDB( entityData,  qitem.getObjectGraph().getQueryObject(entityData)));
-                if (entities.size() == 1) {
-                    queryBatcher.getResults().get( qitem.getQueryIndex() ).getEntityList().add( entities.get(0));
-                }
-            }
-            for (NodeId nodeId: qitem.getObjectGraph().getFetchedToManyNodes()) {
-                EntityType entityType = defs.getEntityTypeMatchingInterface( nodeId.getEntityType(), true);
-                Entity entity = entityContext.getEntity(entityType, nodeId.getEntityKey(), true);
-                entity.getChild(nodeId.getNodeName(), ToManyNode.class, true).setFetched(true);
-                entity.getChild(nodeId.getNodeName(), ToManyNode.class, true).refresh();
+    private void addObjectGraphToBatchResult(EntityContext entityContext, QueryBatcher queryBatcher, int queryIndex, ObjectGraph objectGraph) {
+        List<Entity> entities = new LinkedList<>();
+        for (EntityData entityData:  objectGraph.getEntityData()) {
+            entities.add( entityContext.addEntityLoadedFromDB( entityData,  objectGraph.getQueryObject(entityData)));
+            if (entities.size() == 1) {
+                queryBatcher.getResults().get( queryIndex ).getEntityList().add( entities.get(0));
             }
         }
-        return queryBatcher;
+        Definitions defs = entityContext.getDefinitions();
+        for (NodeId nodeId: objectGraph.getFetchedToManyNodes()) {
+            EntityType entityType = defs.getEntityTypeMatchingInterface( nodeId.getEntityType(), true);
+            Entity entity = entityContext.getEntity(entityType, nodeId.getEntityKey(), true);
+            entity.getChild(nodeId.getNodeName(), ToManyNode.class, true).setFetched(true);
+            entity.getChild(nodeId.getNodeName(), ToManyNode.class, true).refresh();
+        }
     }
 
 	private OptionalyClosingResources newOptionallyClosingConnection(EntityContext entityContext) throws SortJdbcException {
@@ -538,7 +705,7 @@ public class JdbcEntityContextServices implements IEntityContextServices {
             throw new SetAutoCommitException("SQLException setting auto commit", x);
         }
         Database database = getDatabaseInfo( connection );
-        ConnectionResources cr = ConnectionResources.set(entityContext, connection, database);
+        ConnectionResources cr = ConnectionResources.set(entityContext, connection, database, statementCacheSize);
         return cr;
     }
 
@@ -567,6 +734,13 @@ public class JdbcEntityContextServices implements IEntityContextServices {
         }
     }
 
+    /**
+     * @return the query template cache of the environment or null if not caching.
+     */
+    public QueryTemplateCache getQueryTemplateCache() {
+        return env != null ? env.getQueryTemplateCache() : null;
+    }
+
     public TypeConverter getTypeConverter(String typeConverterFqn) {
         return typeConverters.get(typeConverterFqn);
     }
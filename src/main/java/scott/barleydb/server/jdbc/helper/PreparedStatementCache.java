@@ -24,7 +24,9 @@ package scott.barleydb.server.jdbc.helper;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -47,6 +49,14 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
     private final Map<EntityType, PreparedStatement> inserts = new HashMap<>();
     private final Map<EntityType, PreparedStatement> updates = new HashMap<>();
     private final Map<EntityType, PreparedStatement> deletes = new HashMap<>();
+    /**
+     * multi-row inserts by entity type and number of rows.
+     */
+    private final Map<EntityType, Map<Integer, PreparedStatement>> multiRowInserts = new HashMap<>();
+    /**
+     * updates of a subset of the columns by entity type and the indexes of the changed nodes.
+     */
+    private final Map<EntityType, Map<BitSet, PreparedStatement>> partialUpdates = new HashMap<>();
 
     private final PreparedStatementHelper<PREPARING_PERSIST_EX> helper;
 
@@ -66,10 +76,55 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
             }
             inserts.put(entity.getEntityType(), ps);
         }
-        setInsertParameters(ps, entity, newOptimisticLockTime);
+        setInsertParameters(ps, entity, newOptimisticLockTime, 1);
         return ps;
     }
 
+    /**
+     * Prepares an insert ... values (...),(...) statement which inserts all of the entities, which must be of the same type.
+     *
+     * A statement is prepared and cached for each number of rows, so the caller should use a few distinct sizes.
+     */
+    public PreparedStatement prepareMultiRowInsertStatement(List<Entity> entities, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX, CONNECTION_REQ_EX {
+        if (entities.size() == 1) {
+            return prepareInsertStatement(entities.get(0), newOptimisticLockTime);
+        }
+        Entity first = entities.get(0);
+        Map<Integer, PreparedStatement> bySize = multiRowInserts.get(first.getEntityType());
+        if (bySize == null) {
+            multiRowInserts.put(first.getEntityType(), bySize = new HashMap<>());
+        }
+        PreparedStatement ps = bySize.get(entities.size());
+        if (ps == null) {
+            ConnectionResources conRes = getConnectionResources(first.getEntityContext());
+            try {
+                ps = conRes.getConnection().prepareStatement(generateInsertSql(first, entities.size()));
+            }
+            catch (SQLException x) {
+                throw helper.newPreparingStatementException("SQLException preparing statement", x);
+            }
+            bySize.put(entities.size(), ps);
+        }
+        int i = 1;
+        for (Entity entity: entities) {
+            i = setInsertParameters(ps, entity, newOptimisticLockTime, i);
+        }
+        return ps;
+    }
+
+    /**
+     * @return the number of parameters of each row inserted for the entity.
+     */
+    public static int getInsertColumnCount(Entity entity) {
+        int count = 0;
+        for (Node child : entity.getChildren()) {
+            if (!(child instanceof ToManyNode)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     public PreparedStatement prepareUpdateStatement(Entity entity, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX, CONNECTION_REQ_EX {
         PreparedStatement ps = updates.get(entity.getEntityType());
         if (ps == null) {
@@ -82,7 +137,37 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
                 throw helper.newPreparingStatementException("SQLException preparing statement", x);
             }
         }
-        setUpdateParameters(ps, entity, newOptimisticLockTime);
+        setUpdateParameters(ps, entity, null, newOptimisticLockTime);
+        return ps;
+    }
+
+    /**
+     * Prepares an update statement which only sets the changed nodes and the optimistic lock.
+     *
+     * A statement is prepared and cached for each set of changed nodes.
+     *
+     * @param changedNodes the indexes of the changed nodes, must not be modified afterwards.
+     */
+    public PreparedStatement prepareUpdateStatement(Entity entity, BitSet changedNodes, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX, CONNECTION_REQ_EX {
+        if (changedNodes.isEmpty() && !entity.getEntityType().supportsOptimisticLocking()) {
+            return prepareUpdateStatement(entity, newOptimisticLockTime);
+        }
+        Map<BitSet, PreparedStatement> byChangedNodes = partialUpdates.get(entity.getEntityType());
+        if (byChangedNodes == null) {
+            partialUpdates.put(entity.getEntityType(), byChangedNodes = new HashMap<>());
+        }
+        PreparedStatement ps = byChangedNodes.get(changedNodes);
+        if (ps == null) {
+            ConnectionResources conRes = getConnectionResources(entity.getEntityContext());
+            try {
+                ps = conRes.getConnection().prepareStatement(generateUpdateSql(entity, changedNodes));
+            }
+            catch(SQLException x) {
+                throw helper.newPreparingStatementException("SQLException preparing statement", x);
+            }
+            byChangedNodes.put(changedNodes, ps);
+        }
+        setUpdateParameters(ps, entity, changedNodes, newOptimisticLockTime);
         return ps;
     }
 
@@ -137,12 +222,40 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
                 }
             }
         }
+        for (Map<BitSet, PreparedStatement> byChangedNodes : partialUpdates.values()) {
+            for (PreparedStatement ps : byChangedNodes.values()) {
+                try {
+                    ps.close();
+                }
+                catch (SQLException e) {
+                    if (x == null) {
+                        x = new ClosingStatementException("SQLException closing prepared statement", e);
+                    }
+                }
+            }
+        }
+        for (Map<Integer, PreparedStatement> bySize : multiRowInserts.values()) {
+            for (PreparedStatement ps : bySize.values()) {
+                try {
+                    ps.close();
+                }
+                catch (SQLException e) {
+                    if (x == null) {
+                        x = new ClosingStatementException("SQLException closing prepared statement", e);
+                    }
+                }
+            }
+        }
         if (x != null) {
             throw x;
         }
     }
 
     private String generateInsertSql(Entity entity) {
+        return generateInsertSql(entity, 1);
+    }
+
+    private String generateInsertSql(Entity entity, int rows) {
         StringBuilder sb = new StringBuilder("insert into ");
         sb.append(entity.getEntityType().getTableName());
         sb.append(' ');
@@ -156,19 +269,31 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
             sb.append(',');
         }
         sb.setCharAt(sb.length() - 1, ')');
-        sb.append("values (");
-        for (final Node child : entity.getChildren()) {
-            if (child instanceof ToManyNode) {
-                continue;
+        sb.append("values ");
+        for (int row = 0; row < rows; row++) {
+            sb.append('(');
+            for (final Node child : entity.getChildren()) {
+                if (child instanceof ToManyNode) {
+                    continue;
+                }
+                sb.append("?,");
             }
-            sb.append("?,");
+            sb.setCharAt(sb.length() - 1, ')');
+            sb.append(',');
         }
-        sb.setCharAt(sb.length() - 1, ')');
+        sb.setLength(sb.length() - 1);
         LOG.debug(sb.toString());
         return sb.toString();
     }
 
     private String generateUpdateSql(Entity entity) {
+        return generateUpdateSql(entity, null);
+    }
+
+    /**
+     * @param changedNodes the indexes of the nodes to set, or null for all nodes, the optimistic lock is always set.
+     */
+    private String generateUpdateSql(Entity entity, BitSet changedNodes) {
         StringBuilder sb = new StringBuilder("update ");
         sb.append(entity.getEntityType().getTableName());
         sb.append(" set ");
@@ -177,7 +302,7 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
                 continue;
             }
             final NodeType nd = entity.getEntityType().getNodeType(child.getName(), true);
-            if (!nd.isPrimaryKey()) {
+            if (isUpdated(nd, changedNodes)) {
                 sb.append(nd.getColumnName());
                 sb.append(" = ?,");
             }
@@ -207,8 +332,11 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
         }
     }
 
-    private void setInsertParameters(PreparedStatement ps, Entity entity, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX {
-        int i = 1;
+    /**
+     * @param i the index of the first parameter
+     * @return the index of the next parameter
+     */
+    private int setInsertParameters(PreparedStatement ps, Entity entity, Long newOptimisticLockTime, int i) throws PREPARING_PERSIST_EX {
         for (final Node child : entity.getChildren()) {
             if (child instanceof ToManyNode) {
                 continue;
@@ -221,16 +349,24 @@ public abstract class PreparedStatementCache<PREPARING_PERSIST_EX extends Barley
                 helper.setParameter(ps, i++, child);
             }
         }
+        return i;
+    }
+
+    private static boolean isUpdated(NodeType nd, BitSet changedNodes) {
+        if (nd.isPrimaryKey()) {
+            return false;
+        }
+        return changedNodes == null || nd.isOptimisticLock() || changedNodes.get(nd.getIndex());
     }
 
-    private void setUpdateParameters(PreparedStatement ps, Entity entity, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX {
+    private void setUpdateParameters(PreparedStatement ps, Entity entity, BitSet changedNodes, Long newOptimisticLockTime) throws PREPARING_PERSIST_EX {
         int i = 1;
         for (final Node child : entity.getChildren()) {
             if (child instanceof ToManyNode) {
                 continue;
             }
             final NodeType nd = entity.getEntityType().getNodeType(child.getName(), true);
-            if (!nd.isPrimaryKey()) {
+            if (isUpdated(nd, changedNodes)) {
                 if (nd.isOptimisticLock()) {
                     //we set the new optimistic lock value, the OL node still contains the old value
                     helper.setParameter(ps, i++, child, newOptimisticLockTime);
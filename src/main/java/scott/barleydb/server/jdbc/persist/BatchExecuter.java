@@ -26,6 +26,7 @@ import java.sql.BatchUpdateException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -41,11 +42,17 @@ import scott.barleydb.api.exception.execution.persist.IllegalPersistStateExcepti
 import scott.barleydb.api.exception.execution.persist.PreparingPersistStatementException;
 import scott.barleydb.api.exception.execution.persist.SortPersistException;
 import scott.barleydb.server.jdbc.JdbcEntityContextServices;
+import scott.barleydb.server.jdbc.helper.PreparedStatementCache;
 import scott.barleydb.server.jdbc.vendor.Database;
 
 /**
  * Executes batch operations on a set of entities across various tables.
- * Contiguous entities of the same type will participate together in a JDBC batch operation.
+ * Contiguous entities of the same type will participate together in a JDBC batch operation,
+ * which is executed in chunks of at most maxBatchSize entities.
+ *
+ * If the executer supports multi-row statements and the database supports multi-row inserts,
+ * contiguous entities of the same type are instead written in chunks by multi-row statements.
+ * A failing chunk is attributed to its entities by {@link #handleChunkFailure(List, Throwable)}.
  * @author scott
  *
  */
@@ -56,11 +63,13 @@ abstract class BatchExecuter {
     private final OperationGroup group;
     private final String operationName;
     private final Database database;
+    private final int maxBatchSize;
 
-    public BatchExecuter(OperationGroup group, String operationName, Database database) {
+    public BatchExecuter(OperationGroup group, String operationName, Database database, int maxBatchSize) {
         this.group = group;
         this.operationName = operationName;
         this.database = database;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
     }
 
     public void execute(JdbcEntityContextServices jdbcEntityContextServices, Definitions definitions) throws PreparingPersistStatementException, SortPersistException, SortJdbcException {
@@ -68,11 +77,22 @@ abstract class BatchExecuter {
             return;
         }
         try ( PreparedStatementPersistCache psCache = new PreparedStatementPersistCache(jdbcEntityContextServices, definitions);) {
+            if (supportsMultiRowStatements() && database.getMaxRowsPerInsert() > 1) {
+                executeMultiRow(psCache);
+                return;
+            }
             PreparedStatement psLast = null;
             List<Entity> entities = new LinkedList<>();
             for (Entity entity : group.getEntities()) {
+                /*
+                 * flush a full batch before the next entity's parameters are bound to the statement.
+                 */
+                if (entities.size() >= maxBatchSize) {
+                    executeBatch(psLast, entities);
+                    entities.clear();
+                }
                 PreparedStatement ps = prepareStatement(psCache, entity);
-                if (psLast != null && psLast != ps) {
+                if (psLast != null && psLast != ps && !entities.isEmpty()) {
                     executeBatch(psLast, entities);
                     entities.clear();
                 }
@@ -90,8 +110,61 @@ abstract class BatchExecuter {
         }
     }
 
+    private void executeMultiRow(PreparedStatementPersistCache psCache) throws SortPersistException {
+        List<Entity> run = new ArrayList<>();
+        for (Entity entity : group.getEntities()) {
+            if (!run.isEmpty() && run.get(0).getEntityType() != entity.getEntityType()) {
+                executeRun(psCache, run);
+                run.clear();
+            }
+            run.add(entity);
+        }
+        executeRun(psCache, run);
+    }
+
+    /**
+     * Writes contiguous entities of the same type in chunks.
+     *
+     * Full chunks have the maximum number of rows, the remainder is split into chunks with a power of two rows,
+     * so that only a few distinct statements are prepared for each entity type.
+     */
+    private void executeRun(PreparedStatementPersistCache psCache, List<Entity> run) throws SortPersistException {
+        int columns = Math.max(1, PreparedStatementCache.getInsertColumnCount(run.get(0)));
+        int maxRows = Math.max(1, Math.min(database.getMaxRowsPerInsert(), database.getMaxParametersPerStatement() / columns));
+        int i = 0;
+        while (i < run.size()) {
+            int remaining = run.size() - i;
+            int rows = remaining >= maxRows ? maxRows : Integer.highestOneBit(remaining);
+            executeChunk(psCache, run.subList(i, i + rows));
+            i += rows;
+        }
+    }
+
+    private void executeChunk(PreparedStatementPersistCache psCache, List<Entity> chunk) throws SortPersistException {
+        updateStats(chunk.get(0).getEntityContext(), chunk);
+        chunk.get(0).getEntityContext().getStatistics().addBatchSize(chunk.size());
+        final String contextInfo = "executing " + operationName + " of " + chunk.size() + " rows for " + chunk.get(0).getEntityType();
+        LOG.debug(contextInfo);
+        PreparedStatement ps = prepareMultiRowStatement(psCache, chunk);
+        final int count;
+        try {
+            count = ps.executeUpdate();
+        }
+        catch(SQLException x) {
+            handleChunkFailure(chunk, x);
+            return;
+        }
+        if (count == 0) {
+            handleNoop(chunk.get(0), null);
+        }
+        else if (count != chunk.size()) {
+            throw new IllegalPersistStateException("The update count " + count + " does not match the " + chunk.size() + " rows when " + contextInfo);
+        }
+    }
+
     private void executeBatch(PreparedStatement ps, List<Entity> entities) throws SortPersistException  {
         updateStats(entities.get(0).getEntityContext(), entities);
+        entities.get(0).getEntityContext().getStatistics().addBatchSize(entities.size());
         final String contextInfo = "executing " + operationName + " batch for " + entities.get(0).getEntityType() + " of size " + entities.size();
         LOG.debug(contextInfo);
         try {
@@ -157,6 +230,43 @@ abstract class BatchExecuter {
 
     }
 
+    /**
+     * A multi-row statement fails as a whole, so each entity of the chunk is checked
+     * to find the one which caused the failure.
+     */
+    protected void handleChunkFailure(List<Entity> chunk, Throwable throwable) throws SortPersistException {
+        if (chunk.size() == 1) {
+            handleFailure(chunk.get(0), throwable);
+        }
+        for (Entity entity : chunk) {
+            if (isCauseOfFailure(entity)) {
+                handleFailure(entity, throwable);
+            }
+        }
+        throw new SortPersistException("Could not " + operationName + " " + chunk.size() + " rows for " + chunk.get(0).getEntityType() + ", starting with entity: " + chunk.get(0), throwable);
+    }
+
+    /**
+     * @return true if the entity is known to have caused the failure of its chunk.
+     */
+    protected boolean isCauseOfFailure(Entity entity) {
+        return false;
+    }
+
+    /**
+     * @return true if {@link #prepareMultiRowStatement(PreparedStatementPersistCache, List)} is supported.
+     */
+    protected boolean supportsMultiRowStatements() {
+        return false;
+    }
+
+    /**
+     * Prepares a single statement which writes all of the entities, which are of the same type.
+     */
+    protected PreparedStatement prepareMultiRowStatement(PreparedStatementPersistCache psCache, List<Entity> entities) throws SortPersistException {
+        throw new UnsupportedOperationException("Multi-row " + operationName + " is not supported");
+    }
+
     protected abstract void updateStats(EntityContext entityContext, List<Entity> entities);
 
     protected abstract void handleFailure(Entity entity, Throwable throwable) throws SortPersistException;
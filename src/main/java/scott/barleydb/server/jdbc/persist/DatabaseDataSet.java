@@ -24,15 +24,23 @@ import java.util.Collection;
  * #L%
  */
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
 import scott.barleydb.api.core.QueryBatcher;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
@@ -40,15 +48,13 @@ import scott.barleydb.api.core.entity.EntityContextHelper;
 import scott.barleydb.api.exception.execution.SortServiceProviderException;
 import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
 import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
-import scott.barleydb.api.exception.execution.query.ForUpdateNotSupportedException;
-import scott.barleydb.api.exception.execution.query.IllegalQueryStateException;
-import scott.barleydb.api.query.ConditionVisitor;
-import scott.barleydb.api.query.QCondition;
-import scott.barleydb.api.query.QExists;
-import scott.barleydb.api.query.QLogicalOp;
+import scott.barleydb.api.query.QMathOps;
 import scott.barleydb.api.query.QProperty;
 import scott.barleydb.api.query.QPropertyCondition;
 import scott.barleydb.api.query.QueryObject;
+import scott.barleydb.server.jdbc.JdbcEntityContextServices;
+import scott.barleydb.server.jdbc.query.QueryPreparedStatementHelper;
+import scott.barleydb.server.jdbc.query.StagedKeys;
 import scott.barleydb.server.jdbc.resources.ConnectionResources;
 import scott.barleydb.server.jdbc.vendor.Database;
 
@@ -64,10 +70,11 @@ public class DatabaseDataSet {
 
     private static final Logger LOG = LoggerFactory.getLogger(DatabaseDataSet.class);
 
-    //the max number of conditions a query can have
-    private static final Integer MAX_QUERY_SIZE = 500;
+    //the max number of keys a query can have, unless they are bound as an array or staged
+    private static final int MAX_QUERY_SIZE = 500;
 
     private final boolean loadKeysOnly;
+    private final boolean loadOptimisticLocks;
     private final EntityContext myentityContext;
 
     public DatabaseDataSet(EntityContext entityContext) {
@@ -79,9 +86,19 @@ public class DatabaseDataSet {
      * @param loadKeysOnly if only the keys should be loaded.
      */
     public DatabaseDataSet(EntityContext entityContext, boolean loadKeysOnly) {
+        this(entityContext, loadKeysOnly, false);
+    }
+
+    /**
+     * @param entityContext the entity context to share a transaction with
+     * @param loadKeysOnly if only the keys should be loaded.
+     * @param loadOptimisticLocks if the optimistic locks should be loaded together with the keys.
+     */
+    public DatabaseDataSet(EntityContext entityContext, boolean loadKeysOnly, boolean loadOptimisticLocks) {
         myentityContext = entityContext.newEntityContextSharingTransaction();
         myentityContext.setAllowGarbageCollection(false);
         this.loadKeysOnly = loadKeysOnly;
+        this.loadOptimisticLocks = loadOptimisticLocks;
     }
 
     public void prepopulate(EntityContext other) {
@@ -166,129 +183,193 @@ public class DatabaseDataSet {
      * Loads entities from the database in batches
      * the order of loading on the different tables is fixed
      * by the order of the entities we receive.
+     *
+     * The keys of each entity type are loaded with one of the following strategies:
+     * <ul>
+     * <li>a single IN condition if the keys can be bound as an array parameter.</li>
+     * <li>a join against a temporary table if there are more than MAX_QUERY_SIZE keys and the database supports key staging.</li>
+     * <li>IN conditions of at most MAX_QUERY_SIZE keys, one query each.</li>
+     * </ul>
      */
     private class BatchEntityLoader {
-        private final LinkedHashMap<EntityType, List<QueryObject<Object>>> map;
+        private final LinkedHashMap<EntityType, Set<Object>> map;
+        private final Set<String> stagingTables;
+        private int nextStagingBatchId = 1;
 
         public BatchEntityLoader() {
             this.map = new LinkedHashMap<>();
+            this.stagingTables = new LinkedHashSet<>();
         }
 
         public void addEntities(List<Entity> entities) {
             for (Entity entity : entities) {
                 if (!myentityContext.containsKey(entity)) {
-                    addKeyCondition(entity);
+                    addKey(entity);
                 }
             }
         }
 
         public void load() throws SortServiceProviderException, BarleyDBQueryException  {
-            Database database = ConnectionResources.getMandatoryForQuery(myentityContext).getDatabase();
-            if (!database.supportsBatchUpdateCounts()) {
-                if (database.supportsSelectForUpdate()) {
-                    addForUpdatePessimistickLockToQueries(database);
+            ConnectionResources connectionResources = ConnectionResources.getMandatoryForQuery(myentityContext);
+            Database database = connectionResources.getDatabase();
+            try {
+                List<QueryObject<Object>> queries = new LinkedList<>();
+                for (Map.Entry<EntityType, Set<Object>> entry : map.entrySet()) {
+                    queries.addAll(createQueries(connectionResources, entry.getKey(), entry.getValue()));
+                }
+                if (!database.supportsBatchUpdateCounts()) {
+                    if (database.supportsSelectForUpdate()) {
+                        addForUpdatePessimistickLockToQueries(database, queries);
+                    }
                 }
-            }
 
-            QueryBatcher batcher = new QueryBatcher();
-            for (Map.Entry<EntityType, List<QueryObject<Object>>> entry : map.entrySet()) {
-                for (QueryObject<Object> qo: entry.getValue()) {
+                QueryBatcher batcher = new QueryBatcher();
+                for (QueryObject<Object> qo: queries) {
                     batcher.addQuery(qo);
                 }
+                myentityContext.performQueries(batcher);
+            }
+            finally {
+                clearStagingTables(connectionResources);
             }
-            myentityContext.performQueries(batcher);
         }
 
-        /**
-         * Adds a filter for a specific entity key
-         */
-        private void addKeyCondition(Entity entity) {
-            addKeyCondition(entity.getEntityType(), entity.getKey().getValue());
+        private void addKey(Entity entity) {
+            Set<Object> keys = map.get(entity.getEntityType());
+            if (keys == null) {
+                keys = new LinkedHashSet<>();
+                map.put(entity.getEntityType(), keys);
+            }
+            keys.add(entity.getKey().getValue());
         }
 
-        /**
-         * Adds a filter for a specific entity key
-         * @param entityType
-         * @param entityKey
-         */
-        private void addKeyCondition(final EntityType entityType, Object entityKey) {
-            final QueryObject<Object> query = getQueryForEntityType(entityType, true);
-            final QCondition condition = getKeyCondition(entityType, query, entityKey);
-            if (query.getCondition() == null) {
-                query.where(condition);
+        private List<QueryObject<Object>> createQueries(ConnectionResources connectionResources, EntityType entityType, Set<Object> keys) throws SortJdbcException, BarleyDBQueryException {
+            final Database database = connectionResources.getDatabase();
+            final NodeType keyNodeType = entityType.getNodeType(entityType.getKeyNodeName(), true);
+            final boolean arrayBound = keyNodeType.getTypeConverterFqn() == null &&
+                    keyNodeType.getJdbcType() != null &&
+                    database.getArrayElementTypeName(keyNodeType.getJdbcType()) != null;
+
+            if (!arrayBound && keys.size() > MAX_QUERY_SIZE && keyNodeType.getJdbcType() != null
+                    && database.getKeyStagingTableName(keyNodeType) != null) {
+                StagedKeys stagedKeys = stageKeys(connectionResources, keyNodeType, keys);
+                LOG.debug("Staged {} keys of {} into {}", keys.size(), entityType.getInterfaceShortName(), stagedKeys.getTableName());
+                QueryObject<Object> qo = newQuery(entityType);
+                qo.where(new QPropertyCondition(new QProperty<>(qo, entityType.getKeyNodeName()), QMathOps.IN, stagedKeys));
+                return Collections.singletonList(qo);
+            }
+
+            final int maxKeysPerQuery = arrayBound ? Integer.MAX_VALUE : MAX_QUERY_SIZE;
+            List<QueryObject<Object>> queries = new LinkedList<>();
+            Set<Object> chunk = new LinkedHashSet<>();
+            for (Object key: keys) {
+                chunk.add(key);
+                if (chunk.size() >= maxKeysPerQuery) {
+                    queries.add(newKeyQuery(entityType, chunk));
+                    chunk = new LinkedHashSet<>();
+                }
             }
-            else {
-                query.or(condition);
+            if (!chunk.isEmpty()) {
+                queries.add(newKeyQuery(entityType, chunk));
             }
+            return queries;
         }
 
-        private QCondition getKeyCondition(EntityType entityType, QueryObject<Object> query, Object key) {
-            final QProperty<Object> pk = new QProperty<>(query, entityType.getKeyNodeName());
-            return pk.equal(key);
+        private QueryObject<Object> newKeyQuery(EntityType entityType, Set<Object> keys) {
+            QueryObject<Object> qo = newQuery(entityType);
+            final QProperty<Object> pk = new QProperty<>(qo, entityType.getKeyNodeName());
+            qo.where(pk.in(keys));
+            return qo;
         }
 
-        private QueryObject<Object> getQueryForEntityType(EntityType entityType, boolean newQueryIfMaxSizeReached) {
-            List<QueryObject<Object>> queries = map.get(entityType);
-            if (queries == null) {
-                queries = new LinkedList<>();
-                QueryObject<Object> qo = new QueryObject<>(entityType.getInterfaceName());
-                if (loadKeysOnly) {
-                    QProperty<?> keyProp = new QProperty<>(qo, entityType.getKeyNodeName());
+        private QueryObject<Object> newQuery(EntityType entityType) {
+            QueryObject<Object> qo = new QueryObject<>(entityType.getInterfaceName());
+            if (loadKeysOnly) {
+                QProperty<?> keyProp = new QProperty<>(qo, entityType.getKeyNodeName());
+                NodeType olNodeType = loadOptimisticLocks ? getOptimisticLockNodeType(entityType) : null;
+                if (olNodeType != null) {
+                    qo.select(keyProp, new QProperty<>(qo, olNodeType.getName()));
+                }
+                else {
                     qo.select(keyProp);
                 }
-                queries.add(qo);
-                map.put(entityType, queries);
             }
-            else {
-                QueryObject<Object> qo = queries.get(queries.size()-1);
-                if (newQueryIfMaxSizeReached && countPropertyConditions(qo) >= MAX_QUERY_SIZE) {
-                    qo = new QueryObject<>(entityType.getInterfaceName());
-                    if (loadKeysOnly) {
-                        QProperty<?> keyProp = new QProperty<>(qo, entityType.getKeyNodeName());
-                        qo.select(keyProp);
-                    }
-                    queries.add(qo);
+            return qo;
+        }
+
+        private NodeType getOptimisticLockNodeType(EntityType entityType) {
+            for (NodeType nodeType : entityType.getNodeTypes()) {
+                if (nodeType.isOptimisticLock()) {
+                    return nodeType;
                 }
             }
-            return queries.get(queries.size()-1);
+            return null;
         }
 
-        private int countPropertyConditions(QueryObject<?> query) {
-            PropertyConditionCounter counter = new PropertyConditionCounter();
-            try { query.getCondition().visit(counter); }
-            catch(Exception x) { throw new IllegalStateException("Could not count the property conditions in query object"); }
-            return counter.getCount();
+        /**
+         * Inserts the keys into the temporary staging table using JDBC batches.
+         */
+        private StagedKeys stageKeys(ConnectionResources connectionResources, NodeType keyNodeType, Set<Object> keys) throws SortJdbcException, BarleyDBQueryException {
+            final Database database = connectionResources.getDatabase();
+            final Connection connection = connectionResources.getConnection();
+            final String tableName = database.getKeyStagingTableName(keyNodeType);
+            final int batchId = nextStagingBatchId++;
+            try {
+                if (stagingTables.add(tableName)) {
+                    try (Statement stmt = connection.createStatement()) {
+                        stmt.execute(database.getCreateKeyStagingTableSql(keyNodeType));
+                        //remove any keys left over from a previous load on this connection
+                        stmt.executeUpdate("delete from " + tableName);
+                    }
+                }
+                QueryPreparedStatementHelper helper = new QueryPreparedStatementHelper(getJdbcEntityContextServices(), myentityContext.getDefinitions());
+                try (PreparedStatement ps = connection.prepareStatement("insert into " + tableName + " (batch_id, key_value) values (?, ?)")) {
+                    int count = 0;
+                    for (Object key: keys) {
+                        ps.setInt(1, batchId);
+                        helper.setParameter(ps, 2, keyNodeType, key);
+                        ps.addBatch();
+                        if (++count % MAX_QUERY_SIZE == 0) {
+                            ps.executeBatch();
+                        }
+                    }
+                    if (count % MAX_QUERY_SIZE != 0) {
+                        ps.executeBatch();
+                    }
+                }
+            }
+            catch (SQLException x) {
+                throw new SortJdbcException("SQLException staging keys into " + tableName, x);
+            }
+            return new StagedKeys(tableName, batchId, keys.size());
         }
 
-        private void addForUpdatePessimistickLockToQueries(Database database) {
-            for (Map.Entry<EntityType, List<QueryObject<Object>>> entry : map.entrySet()) {
-                for (QueryObject<Object> query: entry.getValue()) {
-                    if (database.supportsSelectForUpdateWaitN()) {
-                        query.forUpdateWait(10);
-                    } else {
-                        query.forUpdate();
-                    }
+        private void clearStagingTables(ConnectionResources connectionResources) {
+            for (String tableName: stagingTables) {
+                try (Statement stmt = connectionResources.getConnection().createStatement()) {
+                    stmt.executeUpdate("delete from " + tableName);
+                }
+                catch (SQLException x) {
+                    //the next load on the connection will clear the table.
+                    LOG.warn("Could not clear key staging table " + tableName, x);
                 }
             }
+            stagingTables.clear();
         }
 
-    }
-}
+        private JdbcEntityContextServices getJdbcEntityContextServices() {
+            return (JdbcEntityContextServices)myentityContext.getEnv().getEntityContextServices();
+        }
+
+        private void addForUpdatePessimistickLockToQueries(Database database, List<QueryObject<Object>> queries) {
+            for (QueryObject<Object> query: queries) {
+                if (database.supportsSelectForUpdateWaitN()) {
+                    query.forUpdateWait(10);
+                } else {
+                    query.forUpdate();
+                }
+            }
+        }
 
-class PropertyConditionCounter implements ConditionVisitor {
-    private int count = 0;
-    public int getCount() { return count; }
-    @Override
-    public void visitPropertyCondition(final QPropertyCondition qpc) throws IllegalQueryStateException {
-        count++;
-    }
-    @Override
-    public void visitLogicalOp(final QLogicalOp qlo) throws IllegalQueryStateException, ForUpdateNotSupportedException  {
-        qlo.getLeft().visit(this);
-        qlo.getRight().visit(this);
-    }
-    @Override
-    public void visitExists(final QExists exists) throws IllegalQueryStateException, ForUpdateNotSupportedException {
-        exists.getSubQueryObject().getCondition().visit(this);
     }
 }
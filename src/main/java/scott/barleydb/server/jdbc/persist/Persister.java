@@ -23,12 +23,18 @@ package scott.barleydb.server.jdbc.persist;
  */
 
 import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +42,7 @@ import org.slf4j.LoggerFactory;
 import scott.barleydb.api.audit.AuditInformation;
 import scott.barleydb.api.audit.AuditRecord;
 import scott.barleydb.api.audit.Change;
+import scott.barleydb.api.config.EntityType;
 import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
@@ -55,6 +62,8 @@ import scott.barleydb.api.exception.execution.persist.SortPersistException;
 import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
 import scott.barleydb.api.persist.AccessRightsChecker;
 import scott.barleydb.api.persist.PersistAnalyser;
+import scott.barleydb.api.query.RuntimeProperties;
+import scott.barleydb.api.query.RuntimeProperties.PersistValidation;
 import scott.barleydb.api.specification.KeyGenSpec;
 import scott.barleydb.server.jdbc.JdbcEntityContextServices;
 import scott.barleydb.server.jdbc.resources.ConnectionResources;
@@ -92,14 +101,30 @@ public class Persister {
     }
 
     public void persist(PersistAnalyser analyser) throws SortPersistException {
+        persist(analyser, null);
+    }
+
+    /**
+     * @param props the runtime properties or null.
+     */
+    public void persist(PersistAnalyser analyser, RuntimeProperties props) throws SortPersistException {
         if (analyser.getEntityContext().isUser()) {
             throw new IllegalPersistStateException("EntityContext must be set to internal.");
         }
         Database database = ConnectionResources.getMandatoryForPersist(analyser.getEntityContext()).getDatabase();
+        filterOutEntitiesUnchangedSinceLoad(analyser);
+        int maxBatchSize = props != null && props.getMaxBatchSize() != null ? props.getMaxBatchSize() : database.getMaxBatchSize();
+        boolean updateChangedColumnsOnly = props != null && Boolean.TRUE.equals(props.getUpdateChangedColumnsOnly());
+        PersistValidation validation = getPersistValidation(props, database);
         DatabaseDataSet databaseDataSet = new DatabaseDataSet(analyser.getEntityContext());
         databaseDataSet.prepopulate(analyser.getAnalyserContext());
         try {
-            loadAndValidate(databaseDataSet, analyser.getUpdateGroup(), analyser.getDeleteGroup(), analyser.getDependsOnGroup());
+            if (validation == PersistValidation.FULL) {
+                loadAndValidate(databaseDataSet, analyser.getUpdateGroup(), analyser.getDeleteGroup(), analyser.getDependsOnGroup());
+            }
+            else {
+                loadAndValidate(databaseDataSet, analyser, validation);
+            }
         } catch (SortServiceProviderException x) {
             throw new SortPersistException("Error loading original data", x);
         }
@@ -119,7 +144,7 @@ public class Persister {
         logStep("Generating audit logs");
         AuditInformation audit = new AuditInformation();
         audit.add(auditCreate(analyser.getCreateGroup()));
-        audit.add(auditUpdate(databaseDataSet, analyser.getUpdateGroup()));
+        audit.add(auditUpdate(databaseDataSet, analyser.getUpdateGroup(), validation != PersistValidation.FULL));
         audit.add(auditDelete(databaseDataSet, analyser.getDeleteGroup()));
 
         /*
@@ -158,7 +183,7 @@ public class Persister {
          * We always insert before we update, in-case a pending update depends on a created record
          */
         try {
-            insert(analyser.getCreateGroup(), newOptimisticLockTime, database);
+            insert(analyser.getCreateGroup(), newOptimisticLockTime, database, maxBatchSize);
         }
         catch (SortJdbcException x) {
             throw new SortPersistException("Error during insert", x);
@@ -168,14 +193,14 @@ public class Persister {
          * We always update before we delete, in-case a delete depends on a FK removal.
          */
         try {
-            update(analyser.getUpdateGroup(), newOptimisticLockTime, database);
+            update(analyser.getUpdateGroup(), newOptimisticLockTime, database, maxBatchSize, updateChangedColumnsOnly ? audit : null);
         }
         catch (SortJdbcException x) {
             throw new SortPersistException("Error during update", x);
         }
 
         try {
-            delete(analyser.getDeleteGroup(), database);
+            delete(analyser.getDeleteGroup(), database, maxBatchSize);
         }
         catch (SortJdbcException x) {
             throw new SortPersistException("Error during delete", x);
@@ -245,6 +270,53 @@ public class Persister {
         }
     }
 
+    /**
+     * The validation requested by the runtime properties, {@link PersistValidation#FULL} if none was requested.
+     */
+    private PersistValidation getPersistValidation(RuntimeProperties props, Database database) {
+        PersistValidation validation = props != null && props.getPersistValidation() != null ? props.getPersistValidation() : PersistValidation.FULL;
+        if (validation == PersistValidation.UPDATE_COUNTS && !database.supportsBatchUpdateCounts()) {
+            //the optimistic locks are then guaranteed by the pessimistic locks of the reload.
+            LOG.debug(database.getInfo() + " does not support batch update counts, validating the optimistic locks instead.");
+            return PersistValidation.OPTIMISTIC_LOCK;
+        }
+        return validation;
+    }
+
+    /**
+     * Validates without reloading the complete rows.
+     *
+     * The updated entities whose changes were not recorded are still fully reloaded, as their audit requires the database values.
+     * With {@link PersistValidation#OPTIMISTIC_LOCK} the keys and optimistic locks of the other entities are reloaded and verified.
+     * With {@link PersistValidation#UPDATE_COUNTS} the other entities are not reloaded, a missing row or a changed optimistic lock
+     * is then detected by the update count of the update or delete statement.
+     */
+    private void loadAndValidate(DatabaseDataSet databaseDataSet, PersistAnalyser analyser, PersistValidation validation) throws SortServiceProviderException, SortPersistException  {
+        OperationGroup fullReload = new OperationGroup();
+        OperationGroup trackedUpdates = new OperationGroup();
+        for (Entity entity : analyser.getUpdateGroup().getEntities()) {
+            if (entity.isTrackingChanges()) {
+                trackedUpdates.add(entity);
+            }
+            else {
+                fullReload.add(entity);
+            }
+        }
+        if (!fullReload.getEntities().isEmpty()) {
+            loadAndValidate(databaseDataSet, fullReload, new OperationGroup(), new OperationGroup());
+        }
+        if (validation == PersistValidation.OPTIMISTIC_LOCK) {
+            if (trackedUpdates.getEntities().isEmpty() && analyser.getDeleteGroup().getEntities().isEmpty() && analyser.getDependsOnGroup().getEntities().isEmpty()) {
+                return;
+            }
+            DatabaseDataSet lockDataSet = new DatabaseDataSet(analyser.getEntityContext(), true, true);
+            loadAndValidate(lockDataSet, trackedUpdates, analyser.getDeleteGroup(), analyser.getDependsOnGroup());
+        }
+        else {
+            logStep("Skipping the reload of " + trackedUpdates.getEntities().size() + " updates, " + analyser.getDeleteGroup().getEntities().size() + " deletes and " + analyser.getDependsOnGroup().getEntities().size() + " dependencies, relying on update counts");
+        }
+    }
+
     /**
      * Add audit records for create entities
      * We only audit changes, so from null to some value
@@ -292,8 +364,23 @@ public class Persister {
      * @throws IllegalPersistStateException
      */
     private List<AuditRecord> auditUpdate(DatabaseDataSet databaseDataSet, OperationGroup updateGroup) throws IllegalPersistStateException {
+        return auditUpdate(databaseDataSet, updateGroup, false);
+    }
+
+    /**
+     * @param useRecordedChanges if true, entities which track their changes are audited from the recorded changes instead of the database data.
+     */
+    private List<AuditRecord> auditUpdate(DatabaseDataSet databaseDataSet, OperationGroup updateGroup, boolean useRecordedChanges) throws IllegalPersistStateException {
         List<AuditRecord> records = new LinkedList<>();
         for (Entity entity : updateGroup.getEntities()) {
+            if (useRecordedChanges && entity.isTrackingChanges()) {
+                AuditRecord auditRecord = auditRecordedChanges(entity);
+                if (auditRecord != null) {
+                    records.add(auditRecord);
+                    LOG.debug("Recorded changes found for " + entity);
+                }
+                continue;
+            }
             AuditRecord auditRecord = null;
             Entity originalEntity = databaseDataSet.getEntity(entity.getEntityType(), entity.getKey().getValue());
             for (Node node : entity.getChildren()) {
@@ -332,6 +419,38 @@ public class Persister {
         return records;
     }
 
+    /**
+     * Audits the changes recorded on the entity since it was loaded.
+     * @return the audit record or null if there are no changes.
+     */
+    private AuditRecord auditRecordedChanges(Entity entity) throws IllegalPersistStateException {
+        AuditRecord auditRecord = null;
+        for (Node node : entity.getChildren()) {
+            if (!entity.isChanged(node)) {
+                continue;
+            }
+            Object newValue;
+            if (node instanceof ValueNode) {
+                newValue = ((ValueNode) node).getValue();
+            }
+            else if (node instanceof RefNode) {
+                newValue = ((RefNode) node).getEntityKey();
+            }
+            else {
+                continue;
+            }
+            Object oldValue = entity.getOriginalValue(node);
+            if (!Objects.equals(oldValue, newValue)) {
+                if (auditRecord == null) {
+                    //lazy init of audit record
+                    auditRecord = new AuditRecord(entity.getEntityType(), entity.getKey().getValue());
+                }
+                auditRecord.addChange(node, oldValue, newValue);
+            }
+        }
+        return auditRecord;
+    }
+
     /**
      * Only changes are audited, so fields which were null are not included
      * @param databaseDataSet
@@ -387,22 +506,44 @@ public class Persister {
      * @return
      */
     private Set<Entity> analyseRequiredUpdates(AuditInformation audit, OperationGroup updateGroup) {
+        return analyseRequiredUpdates(audit::contains, updateGroup);
+    }
+
+    /**
+     * @param changed decides if an entity is directly modified
+     */
+    private Set<Entity> analyseRequiredUpdates(Predicate<Entity> changed, OperationGroup updateGroup) {
         Set<Entity> updateRequired = new HashSet<>();
         Set<Entity> updateNotRequired = new HashSet<>();
         for (Entity entity : updateGroup.getEntities()) {
-            analyseEntityRequiresUpdate(audit, entity, updateRequired, updateNotRequired);
+            analyseEntityRequiresUpdate(changed, entity, updateRequired, updateNotRequired);
         }
         return updateRequired;
     }
 
+    /**
+     * Removes the entities from the update group which were loaded from the database and not changed since,
+     * unless they require an optimistic lock update because of an owned entity.
+     *
+     * This happens before the update group is loaded from the database, so the removed entities
+     * are neither loaded nor compared.
+     */
+    private void filterOutEntitiesUnchangedSinceLoad(PersistAnalyser analyser) {
+        logStep("Filter out entities unchanged since they were loaded from the update batch group");
+        final Set<Entity> createdOrDeleted = new HashSet<>(analyser.getCreateGroup().getEntities());
+        createdOrDeleted.addAll(analyser.getDeleteGroup().getEntities());
+        Set<Entity> updateRequired = analyseRequiredUpdates(entity -> createdOrDeleted.contains(entity) || !entity.isUnchangedSinceLoad(), analyser.getUpdateGroup());
+        filterOutUnchangedEntities(updateRequired, analyser.getUpdateGroup());
+    }
+
     /**
      * analyses the entity and it's dependents adding it and them to the relevant sets
-     * @param audit
+     * @param changed
      * @param entity
      * @param updateRequired
      * @param updateNotRequired
      */
-    private boolean analyseEntityRequiresUpdate(AuditInformation audit, Entity entity, Set<Entity> updateRequired, Set<Entity> updateNotRequired) {
+    private boolean analyseEntityRequiresUpdate(Predicate<Entity> changed, Entity entity, Set<Entity> updateRequired, Set<Entity> updateNotRequired) {
         if (updateRequired.contains(entity)) {
             return true;
         }
@@ -410,7 +551,7 @@ public class Persister {
             return false;
         }
         //we have an audit record for this entity, it is being directly modified, so tag it as required
-        if (audit.contains(entity)) {
+        if (changed.test(entity)) {
             updateRequired.add(entity);
             return true;
         }
@@ -442,7 +583,7 @@ public class Persister {
             }
             //if we get so far then we own an entity which doesn't have it's own optimistic lock
             //check if it requires an update
-            boolean ownedEntityRequiresUpdate = analyseEntityRequiresUpdate(audit, refNode.getReference(), updateRequired, updateNotRequired);
+            boolean ownedEntityRequiresUpdate = analyseEntityRequiresUpdate(changed, refNode.getReference(), updateRequired, updateNotRequired);
             if (ownedEntityRequiresUpdate) {
                 LOG.debug("Update required to optimistic lock for " + entity + " due to ref to " + refNode.getReference());
                 updateRequired.add(entity);
@@ -474,7 +615,7 @@ public class Persister {
                     ownedEntityRequiresUpdate = true;
                 }
                 else {
-                    ownedEntityRequiresUpdate = analyseEntityRequiresUpdate(audit, toManyEntity, updateRequired, updateNotRequired);
+                    ownedEntityRequiresUpdate = analyseEntityRequiresUpdate(changed, toManyEntity, updateRequired, updateNotRequired);
                 }
                 if (ownedEntityRequiresUpdate) {
                     LOG.debug("Update required to optimistic lock for " + entity + " due to ref to " + toManyEntity);
@@ -561,14 +702,24 @@ public class Persister {
         }
     }
 
-    private void insert(OperationGroup createGroup, final Long optimisticLockTime, final Database database) throws SortPersistException, SortJdbcException  {
+    private void insert(OperationGroup createGroup, final Long optimisticLockTime, final Database database, int maxBatchSize) throws SortPersistException, SortJdbcException  {
         logStep("Performing inserts");
-        BatchExecuter batchExecuter = new BatchExecuter(createGroup, "insert", database) {
+        BatchExecuter batchExecuter = new BatchExecuter(createGroup, "insert", database, maxBatchSize) {
             @Override
             protected PreparedStatement prepareStatement(PreparedStatementPersistCache psCache, Entity entity) throws SortPersistException {
                 return psCache.prepareInsertStatement(entity, optimisticLockTime);
             }
 
+            @Override
+            protected boolean supportsMultiRowStatements() {
+                return true;
+            }
+
+            @Override
+            protected PreparedStatement prepareMultiRowStatement(PreparedStatementPersistCache psCache, List<Entity> entities) throws SortPersistException {
+                return psCache.prepareMultiRowInsertStatement(entities, optimisticLockTime);
+            }
+
             @Override
             protected void handleNoop(Entity entity, Throwable throwable) throws SortPersistException {
                 throw new IllegalPersistStateException("No update count from insert operation for entity " + entity);
@@ -579,6 +730,11 @@ public class Persister {
                 handleInsertFailure(entity, throwable);
             }
 
+            @Override
+            protected boolean isCauseOfFailure(Entity entity) {
+                return existsInDatabase(entity);
+            }
+
             @Override
             protected void updateStats(EntityContext entityContext, List<Entity> entities) {
               entityContext.getStatistics().addNumberOfBatchInserts(1);
@@ -589,11 +745,21 @@ public class Persister {
         batchExecuter.execute(entityContextServices, env.getDefinitions(namespace));
     }
 
-    private void update(OperationGroup updateGroup, final Long newOptimisticLockTime, final Database database) throws PreparingPersistStatementException, SortJdbcException, SortPersistException {
+    /**
+     * @param audit if not null, only the columns changed according to the audit are updated.
+     */
+    private void update(OperationGroup updateGroup, final Long newOptimisticLockTime, final Database database, int maxBatchSize, AuditInformation audit) throws PreparingPersistStatementException, SortJdbcException, SortPersistException {
         logStep("Performing updates");
-        BatchExecuter batchExecuter = new BatchExecuter(updateGroup, "update", database) {
+        final Map<Entity, BitSet> changedNodes = audit != null ? getChangedNodes(audit, updateGroup) : null;
+        if (changedNodes != null) {
+            updateGroup = groupByChangedNodes(updateGroup, changedNodes);
+        }
+        BatchExecuter batchExecuter = new BatchExecuter(updateGroup, "update", database, maxBatchSize) {
             @Override
             protected PreparedStatement prepareStatement(PreparedStatementPersistCache psCache, Entity entity) throws SortPersistException {
+                if (changedNodes != null) {
+                    return psCache.prepareUpdateStatement(entity, changedNodes.get(entity), newOptimisticLockTime);
+                }
                 return psCache.prepareUpdateStatement(entity, newOptimisticLockTime);
             }
             @Override
@@ -613,9 +779,53 @@ public class Persister {
         batchExecuter.execute(entityContextServices, env.getDefinitions(namespace));
     }
 
-    private void delete(OperationGroup deleteGroup, final Database database) throws PreparingPersistStatementException, SortPersistException, SortJdbcException {
+    /**
+     * @return the indexes of the changed nodes of each entity, excluding the optimistic lock.
+     */
+    private Map<Entity, BitSet> getChangedNodes(AuditInformation audit, OperationGroup updateGroup) {
+        Map<Entity, BitSet> result = new HashMap<>();
+        for (Entity entity : updateGroup.getEntities()) {
+            BitSet changed = new BitSet();
+            AuditRecord auditRecord = audit.getAuditRecord(entity);
+            if (auditRecord != null) {
+                for (Change change : auditRecord.changes()) {
+                    if (!change.node.isOptimisticLock()) {
+                        changed.set(change.node.getIndex());
+                    }
+                }
+            }
+            result.put(entity, changed);
+        }
+        return result;
+    }
+
+    /**
+     * Reorders each run of entities of the same type, so that the entities with the same changed nodes
+     * are contiguous and share a JDBC batch.
+     */
+    private OperationGroup groupByChangedNodes(OperationGroup updateGroup, Map<Entity, BitSet> changedNodes) {
+        List<Entity> result = new ArrayList<>(updateGroup.getEntities().size());
+        Map<BitSet, List<Entity>> run = new LinkedHashMap<>();
+        EntityType runType = null;
+        for (Entity entity : updateGroup.getEntities()) {
+            if (entity.getEntityType() != runType) {
+                for (List<Entity> entities : run.values()) {
+                    result.addAll(entities);
+                }
+                run.clear();
+                runType = entity.getEntityType();
+            }
+            run.computeIfAbsent(changedNodes.get(entity), k -> new LinkedList<>()).add(entity);
+        }
+        for (List<Entity> entities : run.values()) {
+            result.addAll(entities);
+        }
+        return new OperationGroup(result);
+    }
+
+    private void delete(OperationGroup deleteGroup, final Database database, int maxBatchSize) throws PreparingPersistStatementException, SortPersistException, SortJdbcException {
         logStep("Performing deletes");
-        BatchExecuter batchExecuter = new BatchExecuter(deleteGroup, "delete", database) {
+        BatchExecuter batchExecuter = new BatchExecuter(deleteGroup, "delete", database, maxBatchSize) {
             @Override
             protected PreparedStatement prepareStatement(PreparedStatementPersistCache psCache, Entity entity) throws SortPersistException {
                 return psCache.prepareDeleteStatement(entity);
@@ -715,20 +925,22 @@ public class Persister {
     }
 
     private void handleInsertFailure(Entity entity, Throwable throwable) throws SortPersistException {
-      Entity loadedEntity =  null;
+      if (existsInDatabase(entity)) {
+          throw new PrimaryKeyExistsException(entity.getEntityType(), entity.getKey().getValue());
+      }
+      else {
+          throw new SortPersistException("Could not insert entity: " + entity, throwable);
+      }
+    }
+
+    private boolean existsInDatabase(Entity entity) {
       try {
           EntityContext tempCtx = entity.getEntityContext().newEntityContextSharingTransaction();
-          loadedEntity = tempCtx.getEntityOrLoadEntity(entity.getEntityType(), entity.getKey().getValue(), false);
+          return tempCtx.getEntityOrLoadEntity(entity.getEntityType(), entity.getKey().getValue(), false) != null;
       }
       catch(IllegalStateException x) {
         //error trying to find the problem, ignore it
-      }
-      if (loadedEntity != null) {
-          throw new PrimaryKeyExistsException(entity.getEntityType(), entity.getKey().getValue());
-      }
-
-      else {
-          throw new SortPersistException("Could not insert entity: " + entity, throwable);
+        return false;
       }
     }
 
@@ -769,7 +981,7 @@ public class Persister {
         if (loadedEntity == null) {
             throw new EntityMissingException(entity.getEntityType(), entity.getKey().getValue());
         }
-        else if (!Objects.equals(loadedEntity.getOptimisticLock().getValue(), entity.getOptimisticLock().getValue())) {
+        else if (entity.getEntityType().supportsOptimisticLocking() && !Objects.equals(loadedEntity.getOptimisticLock().getValue(), entity.getOptimisticLock().getValue())) {
             throw new OptimisticLockMismatchException(entity, loadedEntity);
         }
         else {
@@ -792,7 +1004,7 @@ public class Persister {
         if (loadedEntity == null) {
             throw new EntityMissingException(entity.getEntityType(), entity.getKey().getValue());
         }
-        else if (!Objects.equals(loadedEntity.getOptimisticLock().getValue(), entity.getOptimisticLock().getValue())) {
+        else if (entity.getEntityType().supportsOptimisticLocking() && !Objects.equals(loadedEntity.getOptimisticLock().getValue(), entity.getOptimisticLock().getValue())) {
             throw new OptimisticLockMismatchException(entity, loadedEntity);
         }
         else {
@@ -0,0 +1,457 @@
+package scott.barleydb.server.jdbc.query;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import scott.barleydb.api.config.Definitions;
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.core.entity.PrimitiveValueNode;
+import scott.barleydb.api.core.types.JavaType;
+import scott.barleydb.api.core.types.JdbcType;
+import scott.barleydb.api.exception.execution.TypeConversionException;
+import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
+import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
+import scott.barleydb.api.exception.execution.query.IllegalQueryStateException;
+import scott.barleydb.api.exception.execution.query.InvalidNodeTypeException;
+import scott.barleydb.api.exception.execution.query.ResultDataConversionException;
+import scott.barleydb.api.specification.EnumValueSpec;
+import scott.barleydb.server.jdbc.JdbcEntityContextServices;
+import scott.barleydb.server.jdbc.converter.TypeConverter;
+
+/**
+ * Decodes the value of a single projection column from the current row of a ResultSet.
+ *
+ * The resultset index, java type, type converter and value conversion are all resolved
+ * when the decoder is compiled, so that reading a cell does no lookups.
+ * LONG, INTEGER and SHORT value columns with an integer JDBC type are read as primitives, see {@link #isPrimitive()}.
+ *
+ * @author scott
+ *
+ */
+final class ColumnDecoder {
+
+    /**
+     * converts the raw JDBC value to the value stored in the entity data.
+     */
+    private interface ValueConversion {
+        Object convert(Object value) throws BarleyDBQueryException;
+    }
+
+    private final ProjectionColumn column;
+    private final NodeType nodeType;
+    private final int slot;
+    private final int resultSetIndex;
+    private final boolean readAsTimestamp;
+    private final TypeConverter typeConverter;
+    private final JavaType javaType;
+    private final ValueConversion conversion;
+    private final boolean primitive;
+
+    private ColumnDecoder(ProjectionColumn column, int slot, JavaType javaType, TypeConverter typeConverter) throws InvalidNodeTypeException {
+        this.column = column;
+        this.nodeType = column.getNodeType();
+        this.slot = slot;
+        this.resultSetIndex = slot + 1; //resultset style 1-N index
+        /*
+         * FIX for oracle which returns it's own oracle.sql.TIMESTAMP class
+         * which does extend java.sql.Timestamp  when you call resultSet.getObject()
+         */
+        this.readAsTimestamp = nodeType.getJdbcType() == JdbcType.TIMESTAMP;
+        this.typeConverter = typeConverter;
+        /*
+         * We convert backwards when getting data from the database
+         */
+        this.javaType = typeConverter != null ? typeConverter.getBackwardsJavaType() : javaType;
+        this.conversion = compileConversion();
+        this.primitive = typeConverter == null && !nodeType.isPrimaryKey() && isIntegerColumn(nodeType);
+    }
+
+    /**
+     * BOOLEAN values are read as objects, Boolean.valueOf does not allocate and
+     * the conversion from a numeric column differs from ResultSet.getBoolean().
+     */
+    private static boolean isIntegerColumn(NodeType nodeType) {
+        if (!PrimitiveValueNode.supports(nodeType) || nodeType.getJavaType() == JavaType.BOOLEAN) {
+            return false;
+        }
+        switch (nodeType.getJdbcType()) {
+            case BIGINT:
+            case INT:
+            case SMALLINT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Compiles the decoder for the projection column at the given slot.
+     */
+    static ColumnDecoder compile(ProjectionColumn column, int slot, Definitions definitions, JdbcEntityContextServices entityContextServices) throws BarleyDBQueryException {
+        final NodeType nd = column.getNodeType();
+        if (nd.getJdbcType() == null) {
+            throw new InvalidNodeTypeException(nd, "Node Definition " + nd + " must have a JDBC type");
+        }
+        JavaType javaType = nd.getJavaType();
+        if (javaType == null && nd.getRelationInterfaceName() != null) {
+            /*
+             * If there is no java type then it must be a 1:1 relation (RefNode)
+             * A 1:N relation does not have a projection column
+             */
+            EntityType entityType = definitions.getEntityTypeMatchingInterface(nd.getRelationInterfaceName(), true);
+            javaType = entityType.getNodeType(entityType.getKeyNodeName(), true).getJavaType();
+            if (javaType == null) {
+                throw new InvalidNodeTypeException(nd, "Could not get javaType for projection column " + column);
+            }
+        }
+        TypeConverter typeConverter = null;
+        if (nd.getTypeConverterFqn() != null) {
+            typeConverter = entityContextServices.getTypeConverter(nd.getTypeConverterFqn());
+            if (typeConverter == null) {
+                throw new IllegalQueryStateException("Type converter " + nd.getTypeConverterFqn() + " missing");
+            }
+        }
+        return new ColumnDecoder(column, slot, javaType, typeConverter);
+    }
+
+    public ProjectionColumn getColumn() {
+        return column;
+    }
+
+    public NodeType getNodeType() {
+        return nodeType;
+    }
+
+    /**
+     * @return the 0 based position of the column in the projection
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getResultSetIndex() {
+        return resultSetIndex;
+    }
+
+    /**
+     * @return true if the decoded values are strings which can be deduplicated.
+     * Enums are not included, they are converted to shared instances anyway.
+     */
+    public boolean isDeduplicable() {
+        return javaType == JavaType.STRING
+                && nodeType.getEnumSpec() == null
+                && nodeType.getJdbcType() != JdbcType.CLOB
+                && !Boolean.FALSE.equals(nodeType.getLowCardinality());
+    }
+
+    /**
+     * @return true if the column is read with {@link #decodePrimitive(ResultSet, long[])}.
+     */
+    public boolean isPrimitive() {
+        return primitive;
+    }
+
+    /**
+     * Reads the value of a primitive column from the current row without boxing.
+     *
+     * @param into receives the value at the decoder's slot
+     * @return false if the value is null, into is then unchanged.
+     */
+    public boolean decodePrimitive(ResultSet rs, long into[]) throws SortJdbcException {
+        try {
+            long value = rs.getLong(resultSetIndex);
+            if (rs.wasNull()) {
+                return false;
+            }
+            switch (javaType) {
+                case INTEGER:
+                    into[ slot ] = (int)value;
+                    break;
+                case SHORT:
+                    into[ slot ] = (short)value;
+                    break;
+                default:
+                    into[ slot ] = value;
+            }
+            return true;
+        }
+        catch (SQLException x) {
+            throw new SortJdbcException("SQLException getting long from resultset", x);
+        }
+    }
+
+    /**
+     * Reads and converts the value of this column from the current row.
+     */
+    public Object decode(ResultSet rs) throws SortJdbcException, BarleyDBQueryException {
+        Object value;
+        try {
+            value = readAsTimestamp ? rs.getTimestamp(resultSetIndex) : rs.getObject(resultSetIndex);
+            if (rs.wasNull()) {
+                return null;
+            }
+        }
+        catch (SQLException x) {
+            throw new SortJdbcException("SQLException getting object from resultset", x);
+        }
+        return convertValue(value);
+    }
+
+    private Object convertValue(Object value) throws BarleyDBQueryException {
+        if  (value == null) {
+            return null;
+        }
+        if (typeConverter != null) {
+            try {
+                value = typeConverter.convertBackwards(value);
+            }
+            catch (TypeConversionException e) {
+                throw new IllegalQueryStateException("Type conversion error for column " + nodeType.getColumnName(), e);
+            }
+        }
+        Object result = conversion.convert(value);
+        if (result == null) {
+            if (nodeType.getEnumSpec() == null) {
+                throw new ResultDataConversionException("Could not convert value " + value + " of type " + value.getClass().getName() + " to " + javaType);
+            }
+            else {
+                throw new ResultDataConversionException("Could not convert value " + value + " of type " + value.getClass().getName() + " to " + nodeType.getEnumSpec().getClassName());
+            }
+        }
+        return result;
+    }
+
+    private ValueConversion compileConversion() throws InvalidNodeTypeException {
+        if (nodeType.getEnumSpec() != null) {
+            /*
+             * resolve the enum value of each id up front, so that a row only needs a map lookup.
+             */
+            final Map<Object, Object> enumValues = new HashMap<>();
+            for (EnumValueSpec enumValue: nodeType.getEnumSpec().getEnumValues()) {
+                Object result = NodeType.convertToEnum(nodeType, enumValue.getId());
+                if (result != null) {
+                    enumValues.putIfAbsent(enumValue.getId(), result);
+                }
+            }
+            return value -> {
+                Object result = enumValues.get(value);
+                return result != null ? result : convertToEnum(nodeType, value);
+            };
+        }
+        if (javaType == null) {
+            throw new InvalidNodeTypeException(nodeType, "Could not get javaType for projection column " + column);
+        }
+        switch (javaType) {
+            case BIGDECIMAL:
+                return ColumnDecoder::convertToBigDecimal;
+            case BOOLEAN:
+                return ColumnDecoder::convertToBoolean;
+            case ENUM:
+                /*
+                 * it looks like we should add fallback
+                 * for when the enum classes do not exist, so that
+                 * everything can work in a fully dynamic way..
+                 */
+                return value -> null;
+            case INTEGER:
+                return ColumnDecoder::convertToInteger;
+            case LONG:
+                return ColumnDecoder::convertToLong;
+            case SQL_DATE:
+                return ColumnDecoder::convertToSqlDate;
+            case STRING: {
+                final JdbcType jdbcType = nodeType.getJdbcType();
+                return value -> convertToString(jdbcType, value);
+            }
+            case UTIL_DATE:
+                return ColumnDecoder::convertToUtilDate;
+            case UUID:
+                return ColumnDecoder::convertToUuid;
+            case BYTE_ARRAY:
+                return ColumnDecoder::convertToByteArray;
+            case SHORT:
+                return ColumnDecoder::convertToShort;
+            default:
+                throw new InvalidNodeTypeException(nodeType, "Java type " + javaType + " is not supported");
+        }
+    }
+
+    private static BigDecimal convertToBigDecimal(Object value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal)value;
+        }
+        return null;
+    }
+
+    private static Boolean convertToBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean)value;
+        }
+        if (value instanceof Number) {
+            return ((Number)value).intValue() == 1;
+        }
+        return null;
+    }
+
+    /**
+     * Converts to an enum value if the enum class exists
+     * otherwise converts to a string representation of the enum value.
+     * This way enums are supported with and without generated classes.
+     *
+     * @param nd
+     * @param value
+     * @return
+     * @throws IllegalQueryStateException
+     */
+    private static Object convertToEnum(NodeType nd, Object value) throws IllegalQueryStateException {
+        Object result = NodeType.convertToEnum(nd, value);
+        if (result != null) {
+            return result;
+        }
+        throw new IllegalQueryStateException("Could not convert value '" + value + " to enum of type " + nd.getEnumSpec().getClassName());
+    }
+
+    private static Integer convertToInteger(Object value) {
+        if (value instanceof Number) {
+            return ((Number)value).intValue();
+        }
+        return null;
+    }
+
+    private static Short convertToShort(Object value) {
+      if (value instanceof Number) {
+        return ((Number)value).shortValue();
+      }
+      return null;
+    }
+
+    private static Long convertToLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number)value).longValue();
+        }
+        if (value instanceof java.sql.Timestamp) {
+            return ((java.sql.Timestamp)value).getTime();
+        }
+        if (value instanceof String) {
+            return Long.parseLong((String)value);
+        }
+        return null;
+    }
+
+    private static java.sql.Date convertToSqlDate(Object value) {
+        if (value instanceof java.sql.Date) {
+            return (java.sql.Date)value;
+        }
+        if (value instanceof Long) {
+            return new java.sql.Date((Long)value);
+        }
+        if (value instanceof java.sql.Timestamp) {
+          return new java.sql.Date(((java.sql.Timestamp)value).getTime());
+      }
+        return null;
+    }
+
+    private static String convertToString(JdbcType jdbcType, Object value) throws BarleyDBQueryException {
+        if (value instanceof String) {
+            String str = (String)value;
+            if (jdbcType == JdbcType.CHAR) {
+                str = str.trim();
+            }
+            return str;
+        }
+        else if (value instanceof Clob) {
+            return convertToString((Clob)value);
+        }
+        return null;
+    }
+
+    private static String convertToString(Clob clob) throws BarleyDBQueryException {
+        try ( Reader in = clob.getCharacterStream(); ) {
+            StringWriter out = new StringWriter();
+            char buf[] = new char[1024];
+            int len;
+            while((len = in.read(buf)) >= 0) {
+                out.write(buf, 0, len);
+            }
+            return out.toString();
+        }
+        catch(SQLException | IOException x) {
+            throw new BarleyDBQueryException("Could not convert CLOB to String", x);
+        }
+    }
+
+    private static Date convertToUtilDate(Object value) {
+        if (value instanceof java.sql.Date) {
+            //a java.sql.Date IS A java.util.Date, but we create a fresh java.util.Date to avoid
+            //any possible side-effects.
+            return new Date(((java.sql.Date)value).getTime());
+        }
+        if (value instanceof Timestamp) {
+            //a Timestamp IS A java.util.Date, but we create a fresh java.util.Date to avoid
+            //any possible side-effects.
+            return new Date(((Timestamp)value).getTime());
+        }
+        if (value instanceof Date) {
+            return (Date)value;
+        }
+        if (value instanceof Long) {
+            return new Date((Long)value);
+        }
+        return null;
+    }
+
+    private static UUID convertToUuid(Object value) {
+        if (value instanceof String) {
+            return UUID.fromString((String)value);
+        }
+        else if (value instanceof UUID) {
+            return (UUID)value;
+        }
+        return null;
+    }
+
+    private static byte[] convertToByteArray(Object value) {
+        if (byte[].class.isAssignableFrom( value.getClass() )) {
+            return (byte[])value;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnDecoder [ " + column.getProperty() + "/" + column.getColumn() + "(" + resultSetIndex + ")]";
+    }
+}
@@ -63,7 +63,21 @@ public class ConditionRenderer implements ConditionVisitor {
     public void visitPropertyCondition(QPropertyCondition qpc) throws IllegalQueryStateException {
         EntityType et = definitions.getEntityTypeMatchingInterface(qpc.getProperty().getQueryObject().getTypeName(), true);
         NodeType nodeType = et.getNodeType(qpc.getProperty().getName(), true);
-        sb.append(qpc.getProperty().getQueryObject().getAlias() + "." + nodeType.getColumnName());
+        String column = qpc.getProperty().getQueryObject().getAlias() + "." + nodeType.getColumnName();
+        if ((qpc.getOperator() == QMathOps.IN  || qpc.getOperator() == QMathOps.NOT_IN) && qpc.getValue() instanceof Collection) {
+            InList inList = InList.of(database, definitions, nodeType, (Collection<?>)qpc.getValue());
+            inList.render(database, sb, column, nodeType, qpc.getOperator() == QMathOps.NOT_IN, params, qpc);
+            return;
+        }
+        if ((qpc.getOperator() == QMathOps.IN  || qpc.getOperator() == QMathOps.NOT_IN) && qpc.getValue() instanceof StagedKeys) {
+            StagedKeys stagedKeys = (StagedKeys)qpc.getValue();
+            sb.append(column);
+            sb.append(qpc.getOperator() == QMathOps.NOT_IN ? " not in (" : " in (");
+            sb.append("select key_value from " + stagedKeys.getTableName() + " where batch_id = ?)");
+            params.add(new QueryGenerator.Param(null, stagedKeys.getBatchId(), qpc, 0));
+            return;
+        }
+        sb.append(column);
         switch (qpc.getOperator()) {
         case EQ: {
             sb.append(" = ");
@@ -114,8 +128,9 @@ public class ConditionRenderer implements ConditionVisitor {
         }
 
         if (qpc.getValue() instanceof Collection) {
+          int sourceIndex = 0;
           for (Object value: (Collection<?>)qpc.getValue()) {
-            params.add(new QueryGenerator.Param(nodeType, value));
+            params.add(new QueryGenerator.Param(nodeType, value, qpc, sourceIndex++));
             sb.append("?,");
           }
           sb.setLength(sb.length()-1);
@@ -127,7 +142,7 @@ public class ConditionRenderer implements ConditionVisitor {
             sb.append(prop.getQueryObject().getAlias() + "." + otherNodeType.getColumnName());
         }
         else if (qpc.getValue() != null) {
-          params.add(new QueryGenerator.Param(nodeType, qpc.getValue()));
+          params.add(new QueryGenerator.Param(nodeType, qpc.getValue(), qpc, 0));
           sb.append('?');
         }
         //close the open bracket for in
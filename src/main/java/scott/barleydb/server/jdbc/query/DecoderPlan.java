@@ -0,0 +1,203 @@
+package scott.barleydb.server.jdbc.query;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scott.barleydb.api.config.Definitions;
+import scott.barleydb.api.core.entity.PrimitiveValueNode;
+import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
+import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
+import scott.barleydb.api.query.QueryObject;
+import scott.barleydb.api.stream.EntityData;
+import scott.barleydb.server.jdbc.JdbcEntityContextServices;
+
+/**
+ * A projection compiled into a decoder per column.
+ *
+ * The plan is compiled once per query execution and reused for every row.
+ * The plan itself holds no row state, the values of the current row are
+ * kept in a {@link RowBuffer}.
+ *
+ * @author scott
+ *
+ */
+final class DecoderPlan {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DecoderPlan.class);
+
+    private final ColumnDecoder[] decoders;
+
+    private DecoderPlan(ColumnDecoder[] decoders) {
+        this.decoders = decoders;
+    }
+
+    public static DecoderPlan compile(Projection projection, Definitions definitions, JdbcEntityContextServices entityContextServices) throws BarleyDBQueryException {
+        List<ProjectionColumn> columns = projection.getColumns();
+        ColumnDecoder[] decoders = new ColumnDecoder[ columns.size() ];
+        int slot = 0;
+        for (ProjectionColumn column: columns) {
+            decoders[slot] = ColumnDecoder.compile(column, slot, definitions, entityContextServices);
+            slot++;
+        }
+        return new DecoderPlan(decoders);
+    }
+
+    public int size() {
+        return decoders.length;
+    }
+
+    public ColumnDecoder getDecoder(int slot) {
+        return decoders[ slot ];
+    }
+
+    /**
+     * @return the decoders of the columns which belong to the given query object in projection order.
+     */
+    public ColumnDecoder[] getDecodersFor(QueryObject<?> queryObject) {
+        List<ColumnDecoder> result = new ArrayList<>();
+        for (ColumnDecoder decoder: decoders) {
+            if (decoder.getColumn().getQueryObject() == queryObject) {
+                result.add(decoder);
+            }
+        }
+        return result.toArray(new ColumnDecoder[result.size()]);
+    }
+
+    /**
+     * @param deduplicateStrings if true, string columns which are not known to have low cardinality are sampled
+     * and their values deduplicated if they repeat often enough.
+     */
+    public RowBuffer newRowBuffer(ResultSet resultSet, boolean deduplicateStrings) {
+        return new RowBuffer(this, resultSet, deduplicateStrings);
+    }
+
+    /**
+     * Holds the decoded values of the current row.
+     *
+     * Each column is decoded at most once per row, the buffer is reused across rows.
+     * The string deduplication tables are per buffer, so they last as long as the result set.
+     * The values of primitive columns are kept in a long array, so that they are not boxed.
+     */
+    static final class RowBuffer {
+        private static final Object UNREAD = new Object();
+        private static final Object PRIMITIVE = new Object();
+
+        private final DecoderPlan plan;
+        private final ResultSet resultSet;
+        private final Object values[];
+        private final long primitives[];
+        private final StringDeduplicator deduplicators[];
+
+        private RowBuffer(DecoderPlan plan, ResultSet resultSet, boolean deduplicateStrings) {
+            this.plan = plan;
+            this.resultSet = resultSet;
+            this.values = new Object[ plan.size() ];
+            this.primitives = new long[ plan.size() ];
+            this.deduplicators = new StringDeduplicator[ plan.size() ];
+            for (ColumnDecoder decoder: plan.decoders) {
+                if (!decoder.isDeduplicable()) {
+                    continue;
+                }
+                if (Boolean.TRUE.equals(decoder.getNodeType().getLowCardinality())) {
+                    deduplicators[ decoder.getSlot() ] = new StringDeduplicator(false);
+                }
+                else if (deduplicateStrings) {
+                    deduplicators[ decoder.getSlot() ] = new StringDeduplicator(true);
+                }
+            }
+            clear();
+        }
+
+        public void clear() {
+            Arrays.fill(values, UNREAD);
+        }
+
+        public Object getValue(ColumnDecoder decoder) throws SortJdbcException, BarleyDBQueryException {
+            final int slot = decoder.getSlot();
+            Object value = read(decoder);
+            return value == PRIMITIVE ? PrimitiveValueNode.box(decoder.getNodeType().getJavaType(), primitives[ slot ]) : value;
+        }
+
+        /**
+         * Copies the value of the column into the given slot of the entity data, without boxing primitive values.
+         */
+        public void copyValue(ColumnDecoder decoder, EntityData entityData, int entitySlot) throws SortJdbcException, BarleyDBQueryException {
+            Object value = read(decoder);
+            if (value == PRIMITIVE) {
+                entityData.setPrimitiveValue(entitySlot, primitives[ decoder.getSlot() ]);
+            }
+            else {
+                entityData.setValue(entitySlot, value);
+            }
+        }
+
+        private Object read(ColumnDecoder decoder) throws SortJdbcException, BarleyDBQueryException {
+            final int slot = decoder.getSlot();
+            Object value = values[ slot ];
+            if (value == UNREAD) {
+                if (decoder.isPrimitive()) {
+                    value = decoder.decodePrimitive(resultSet, primitives) ? PRIMITIVE : null;
+                }
+                else {
+                    value = decoder.decode(resultSet);
+                    if (deduplicators[ slot ] != null) {
+                        value = deduplicators[ slot ].dedupe(value);
+                    }
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(String.format("%-5s%-20s%-15s = %s", decoder.getResultSetIndex(), decoder.getNodeType().getEntityType().getInterfaceShortName(), decoder.getColumn().getColumn(),
+                            value == PRIMITIVE ? String.valueOf(primitives[ slot ]) : String.valueOf(value)));
+                }
+                values[ slot ] = value;
+            }
+            return value;
+        }
+
+        public DecoderPlan getPlan() {
+            return plan;
+        }
+
+        /**
+         * Logs how well the string deduplication worked for each column.
+         */
+        public void logDeduplication() {
+            if (!LOG.isDebugEnabled()) {
+                return;
+            }
+            for (int i=0; i<deduplicators.length; i++) {
+                StringDeduplicator dedup = deduplicators[ i ];
+                if (dedup != null && dedup.getLookups() > 0) {
+                    LOG.debug("Deduplicated {} of {} values of column {} with {} distinct values{}", dedup.getHits(), dedup.getLookups(),
+                            plan.decoders[ i ].getColumn().getColumn(), dedup.size(), dedup.isActive() ? "" : " (dropped, too few repeats)");
+                }
+            }
+        }
+    }
+}
@@ -23,20 +23,20 @@ package scott.barleydb.server.jdbc.query;
  */
 
 import java.sql.ResultSet;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 import scott.barleydb.api.config.Definitions;
 import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.exception.execution.query.IllegalQueryStateException;
 import scott.barleydb.api.query.QueryObject;
 import scott.barleydb.api.stream.EntityData;
-import scott.barleydb.server.jdbc.JdbcEntityContextServices;
-import scott.barleydb.server.jdbc.converter.TypeConverter;
+import scott.barleydb.server.jdbc.query.DecoderPlan.RowBuffer;
 
 /**
  * Builds and maintains a set of entity loaders for a given projection, resultset and entitycontext
@@ -45,32 +45,37 @@ import scott.barleydb.server.jdbc.converter.TypeConverter;
  *
  */
 final class EntityLoaders implements Iterable<EntityLoader> {
-    private final JdbcEntityContextServices entityContextServices;
     private final List<EntityLoader> entityLoadersList;
+    private final RowBuffer rowBuffer;
     private final Definitions definitions;
     private final LinkedHashMap<EntityKey, EntityData> loadedEntityData = new LinkedHashMap<>();
     private final Map<EntityData, QueryObject<?>> entityDataToQueryMap;
 
-    public EntityLoaders(JdbcEntityContextServices entityContextServices, Definitions definitions, Projection projection, ResultSet resultSet, Map<EntityData, QueryObject<?>> entityDataToQueryMap) {
-        this.entityContextServices = entityContextServices;
+    /**
+     * @param deduplicateStrings true to sample the string columns and deduplicate the values of columns which repeat.
+     * @param boundQueryObjects maps the query objects of the decoder plan to the query objects being executed, null if they are the same.
+     */
+    public EntityLoaders(Definitions definitions, DecoderPlan decoderPlan, ResultSet resultSet, boolean deduplicateStrings, Map<EntityData, QueryObject<?>> entityDataToQueryMap, Map<QueryObject<?>, QueryObject<?>> boundQueryObjects) throws IllegalQueryStateException {
         this.definitions = definitions;
         this.entityDataToQueryMap = entityDataToQueryMap;
-        this.entityLoadersList = build(projection, resultSet);
+        this.rowBuffer = decoderPlan.newRowBuffer(resultSet, deduplicateStrings);
+        this.entityLoadersList = build(decoderPlan, boundQueryObjects);
     }
 
     public Definitions getDefinitions() {
         return definitions;
     }
 
-    public TypeConverter getTypeConverter(String typeConverterFqn) {
-        return entityContextServices.getTypeConverter(typeConverterFqn);
-    }
-
     public LinkedHashMap<EntityKey, EntityData> getLoadedEntityData() {
         return loadedEntityData;
     }
 
+    public void logDeduplication() {
+        rowBuffer.logDeduplication();
+    }
+
     public void clearRowCache() {
+        rowBuffer.clear();
         for (EntityLoader entityLoader : entityLoadersList) {
             entityLoader.clearRowCache();
         }
@@ -81,13 +86,21 @@ final class EntityLoaders implements Iterable<EntityLoader> {
         return entityLoadersList.iterator();
     }
 
-    private List<EntityLoader> build(Projection projection, ResultSet resultSet) {
-        List<EntityLoader> loadable = new LinkedList<>();
+    private List<EntityLoader> build(DecoderPlan decoderPlan, Map<QueryObject<?>, QueryObject<?>> boundQueryObjects) throws IllegalQueryStateException {
+        List<EntityLoader> loadable = new ArrayList<>();
         QueryObject<?> queryObject = null;
-        for (ProjectionColumn column : projection.getColumns()) {
+        for (int i=0, n=decoderPlan.size(); i<n; i++) {
+            ProjectionColumn column = decoderPlan.getDecoder(i).getColumn();
             if (queryObject == null || queryObject != column.getQueryObject()) {
                 queryObject = column.getQueryObject();
-                loadable.add(new EntityLoader(this, projection, queryObject, resultSet));
+                QueryObject<?> boundQueryObject = queryObject;
+                if (boundQueryObjects != null) {
+                    boundQueryObject = boundQueryObjects.get(queryObject);
+                    if (boundQueryObject == null) {
+                        throw new IllegalQueryStateException("Could not bind query object " + queryObject + " to the executing query");
+                    }
+                }
+                loadable.add(new EntityLoader(this, decoderPlan, queryObject, boundQueryObject, rowBuffer));
             }
         }
         return loadable;
@@ -0,0 +1,246 @@
+package scott.barleydb.server.jdbc.query;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import scott.barleydb.api.config.Definitions;
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.core.types.JdbcType;
+import scott.barleydb.server.jdbc.query.QueryGenerator.Param;
+import scott.barleydb.server.jdbc.vendor.Database;
+
+/**
+ * The parameters of an IN / NOT IN condition with a collection of values.
+ *
+ * The rendered SQL must not depend on the exact number of values, otherwise every list length
+ * produces a new statement for the statement cache and the database plan cache.
+ *
+ * If the database supports it, the values are bound as a single JDBC array parameter.
+ * Otherwise the values are split into chunks of at most {@link Database#getMaxInListSize()} placeholders and
+ * the last chunk is padded to a power of two by repeating its last value.
+ *
+ * Both the {@link ConditionRenderer} and the {@link QueryFingerprint} use this class, so that they agree on the
+ * parameter values.
+ *
+ * @author scott
+ *
+ */
+final class InList {
+
+    private final String arrayElementTypeName;
+    private final List<Object> parameterValues;
+    private final int chunkSize;
+    private final int numberOfChunks;
+
+    private InList(String arrayElementTypeName, List<Object> parameterValues, int chunkSize, int numberOfChunks) {
+        this.arrayElementTypeName = arrayElementTypeName;
+        this.parameterValues = parameterValues;
+        this.chunkSize = chunkSize;
+        this.numberOfChunks = numberOfChunks;
+    }
+
+    public static InList of(Database database, Definitions definitions, NodeType nodeType, Collection<?> values) {
+        String arrayElementTypeName = getArrayElementTypeName(database, definitions, nodeType);
+        if (arrayElementTypeName != null) {
+            Object[] elements = toArrayElements(getJdbcType(definitions, nodeType), values);
+            if (elements != null) {
+                return new InList(arrayElementTypeName, Collections.singletonList(new ArrayValue(arrayElementTypeName, elements)), 0, 1);
+            }
+        }
+        if (values.isEmpty()) {
+            return new InList(null, Collections.emptyList(), 0, 0);
+        }
+        final int maxSize = Math.max(1, database.getMaxInListSize());
+        final List<Object> list = new ArrayList<>(values);
+        final int numberOfChunks = (list.size() + maxSize - 1) / maxSize;
+        final int lastChunkSize = bucketSize(list.size() - (numberOfChunks - 1) * maxSize, maxSize);
+        final int chunkSize = numberOfChunks == 1 ? lastChunkSize : maxSize;
+        List<Object> padded = new ArrayList<>((numberOfChunks - 1) * maxSize + lastChunkSize);
+        padded.addAll(list);
+        Object last = list.get(list.size() - 1);
+        while(padded.size() < (numberOfChunks - 1) * maxSize + lastChunkSize) {
+            padded.add(last);
+        }
+        return new InList(null, padded, chunkSize, numberOfChunks);
+    }
+
+    /**
+     * @return the smallest power of two which is >= size, but not more than maxSize.
+     */
+    static int bucketSize(int size, int maxSize) {
+        int bucket = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        return Math.min(bucket, maxSize);
+    }
+
+    /**
+     * A description of the rendered SQL for the query fingerprint.
+     */
+    public String getShape() {
+        if (arrayElementTypeName != null) {
+            return "array";
+        }
+        return numberOfChunks + "x" + chunkSize + "+" + parameterValues.size();
+    }
+
+    /**
+     * @return the values to bind in prepared statement order.
+     */
+    public List<Object> getParameterValues() {
+        return parameterValues;
+    }
+
+    /**
+     * @param source the condition which the parameters come from.
+     */
+    public void render(Database database, StringBuilder sb, String column, NodeType nodeType, boolean not, List<Param> params, Object source) {
+        if (arrayElementTypeName != null) {
+            database.appendArrayInCondition(sb, column, not);
+            params.add(new Param(nodeType, parameterValues.get(0), source, 0));
+            return;
+        }
+        if (parameterValues.isEmpty()) {
+            sb.append(not ? "1 = 1" : "1 = 0");
+            return;
+        }
+        if (numberOfChunks > 1) {
+            sb.append('(');
+        }
+        int i = 0;
+        for (int chunk=0; chunk<numberOfChunks; chunk++) {
+            if (chunk > 0) {
+                sb.append(not ? " AND " : " OR ");
+            }
+            sb.append(column);
+            sb.append(not ? " not in (" : " in (");
+            int end = Math.min(i + chunkSize, parameterValues.size());
+            for (; i<end; i++) {
+                params.add(new Param(nodeType, parameterValues.get(i), source, i));
+                sb.append("?,");
+            }
+            sb.setLength(sb.length() - 1);
+            sb.append(')');
+        }
+        if (numberOfChunks > 1) {
+            sb.append(')');
+        }
+    }
+
+    private static String getArrayElementTypeName(Database database, Definitions definitions, NodeType nodeType) {
+        if (nodeType.getTypeConverterFqn() != null || nodeType.getEnumSpec() != null) {
+            return null;
+        }
+        JdbcType jdbcType = getJdbcType(definitions, nodeType);
+        return jdbcType != null ? database.getArrayElementTypeName(jdbcType) : null;
+    }
+
+    private static JdbcType getJdbcType(Definitions definitions, NodeType nodeType) {
+        if (nodeType.getJdbcType() != null) {
+            return nodeType.getJdbcType();
+        }
+        if (nodeType.getRelationInterfaceName() != null) {
+            EntityType et = definitions.getEntityTypeMatchingInterface(nodeType.getRelationInterfaceName(), true);
+            NodeType keyNodeType = et.getNodeType(et.getKeyNodeName(), true);
+            if (keyNodeType.getTypeConverterFqn() == null) {
+                return keyNodeType.getJdbcType();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Converts the values to the element type of the SQL array.
+     * @return the array elements or null if a value cannot be converted.
+     */
+    private static Object[] toArrayElements(JdbcType jdbcType, Collection<?> values) {
+        Object[] elements = new Object[values.size()];
+        int i = 0;
+        for (Object value: values) {
+            Object element = toArrayElement(jdbcType, value);
+            if (element == null) {
+                return null;
+            }
+            elements[i++] = element;
+        }
+        return elements;
+    }
+
+    private static Object toArrayElement(JdbcType jdbcType, Object value) {
+        switch (jdbcType) {
+            case BIGINT:
+                return value instanceof Number ? ((Number)value).longValue() : null;
+            case INT:
+                return value instanceof Number ? ((Number)value).intValue() : null;
+            case SMALLINT:
+                return value instanceof Number ? ((Number)value).shortValue() : null;
+            case DECIMAL:
+                return value instanceof BigDecimal ? value : null;
+            case VARCHAR:
+            case NVARCHAR:
+                return value instanceof String ? value : null;
+            case UUID:
+                if (value instanceof UUID) {
+                    return value;
+                }
+                return value instanceof String ? UUID.fromString((String)value) : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * A collection of values bound as a single JDBC array parameter.
+     */
+    static final class ArrayValue {
+        private final String elementTypeName;
+        private final Object[] elements;
+
+        ArrayValue(String elementTypeName, Object[] elements) {
+            this.elementTypeName = elementTypeName;
+            this.elements = elements;
+        }
+
+        public String getElementTypeName() {
+            return elementTypeName;
+        }
+
+        public Object[] getElements() {
+            return elements;
+        }
+
+        @Override
+        public String toString() {
+            if (elements.length <= 10) {
+                return elementTypeName + Arrays.toString(elements);
+            }
+            return elementTypeName + "[" + elements.length + " elements]";
+        }
+    }
+}
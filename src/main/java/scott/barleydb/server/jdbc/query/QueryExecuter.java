@@ -38,6 +38,7 @@ import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
 import scott.barleydb.api.exception.execution.persist.PreparingPersistStatementException;
 import scott.barleydb.api.exception.execution.query.ForUpdateNotSupportedException;
 import scott.barleydb.api.exception.execution.query.IllegalQueryStateException;
+import scott.barleydb.api.exception.execution.query.PreparingQueryStatementException;
 import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
 import scott.barleydb.api.query.RuntimeProperties;
 import scott.barleydb.api.stream.EntityStreamException;
@@ -123,10 +124,9 @@ public class QueryExecuter {
                 //stmts cant close before rs
                 try {
                     PreparedStatement stmt = prepareStatement(sql, runtimeProperties);
-
-                    setFetch(stmt, runtimeProperties);
-
                     try {
+                        setFetch(stmt, runtimeProperties);
+
                         //the first query execution will set all parameters
                         setParameters(stmt, params);
                         if (!stmt.execute()) {
@@ -137,8 +137,13 @@ public class QueryExecuter {
                         return new StreamingQueryExecutionProcessor(resultManager);
                     }
                     catch (SQLException x) {
+                        connectionResources.getStatementCache().discard(stmt);
                         throw new SortJdbcException("SQLException on prepared statement execute", x);
                     }
+                    catch (SortJdbcException | BarleyDBQueryException x) {
+                        connectionResources.getStatementCache().discard(stmt);
+                        throw x;
+                    }
                 }
                 catch(SQLException x) {
                     throw new PreparingPersistStatementException("SQLException creating prepared statement", x);
@@ -170,10 +175,11 @@ public class QueryExecuter {
     /**
      * Executes a single query expecting one resultset.
      * @param queryExecution
+     * @return the statement which was executed, positioned on its resultset.
      * @throws BarleyDBQueryException
      * @throws SQLException
      */
-    private ResultSet executeQuery(QueryExecution<?> queryExecution) throws SortJdbcException, PreparingPersistStatementException, BarleyDBQueryException  {
+    private Statement executeQuery(QueryExecution<?> queryExecution) throws SortJdbcException, PreparingPersistStatementException, BarleyDBQueryException  {
         List<Param> params = new LinkedList<Param>();
         String sql = queryExecution.getSql(params);
 
@@ -181,18 +187,31 @@ public class QueryExecuter {
         LOG.debug("Executing individual query:\n" + sql);
 
         if (!params.isEmpty()) {
+            PreparedStatement stmt;
+            try {
+                stmt = prepareStatement(sql, runtimeProperties);
+            }
+            catch (SQLException x) {
+                throw new PreparingPersistStatementException("SQLException preparing statement", x);
+            }
             try {
-                PreparedStatement stmt = prepareStatement(sql, runtimeProperties);
-
                 setFetch(stmt, runtimeProperties);
 
                 setParameters(stmt, params);
 
-                return stmt.executeQuery();
+                if (!stmt.execute()) {
+                    throw new IllegalQueryStateException("Query did not return a result set");
+                }
+                return stmt;
             }
             catch (SQLException x) {
+                connectionResources.getStatementCache().discard(stmt);
                 throw new PreparingPersistStatementException("SQLException preparing statement", x);
             }
+            catch (SortJdbcException | BarleyDBQueryException x) {
+                connectionResources.getStatementCache().discard(stmt);
+                throw x;
+            }
         }
         else {
             try {
@@ -200,7 +219,10 @@ public class QueryExecuter {
 
                 setFetch(stmt, runtimeProperties);
 
-                return stmt.executeQuery(sql);
+                if (!stmt.execute(sql)) {
+                    throw new IllegalQueryStateException("Query did not return a result set");
+                }
+                return stmt;
             }
             catch (SQLException x) {
                 throw new SortJdbcException("SQLException creating statement", x);
@@ -220,8 +242,22 @@ public class QueryExecuter {
         }
     }
 
+    /**
+     * Prepared statements come from the statement cache of the connection and must be released
+     * with {@link #releaseStatement(Statement)}.
+     */
     private PreparedStatement prepareStatement(String sql, RuntimeProperties runtimeProperties) throws BarleyDBQueryException, SQLException {
-        return connection.prepareStatement(sql, getResultSetType(runtimeProperties), getResultSetConcurrency(runtimeProperties));
+        return connectionResources.getStatementCache().checkOut(connection, sql, getResultSetType(runtimeProperties), getResultSetConcurrency(runtimeProperties));
+    }
+
+    /**
+     * Returns prepared statements to the statement cache, other statements are closed.
+     */
+    private void releaseStatement(Statement stmt) throws SQLException {
+        if (stmt instanceof PreparedStatement && connectionResources.getStatementCache().checkIn((PreparedStatement)stmt)) {
+            return;
+        }
+        stmt.close();
     }
 
     private Statement createStatement(RuntimeProperties runtimeProperties) throws BarleyDBQueryException, SQLException {
@@ -262,7 +298,27 @@ public class QueryExecuter {
         int i = 1;
         QueryPreparedStatementHelper helper = new QueryPreparedStatementHelper(jdbcEntityContextServices, entityContext.getDefinitions());
         for (QueryGenerator.Param param : params) {
-            helper.setParameter(stmt, i++, param.getNodeType(), param.getValue());
+            if (param.getValue() instanceof InList.ArrayValue) {
+                InList.ArrayValue array = (InList.ArrayValue)param.getValue();
+                try {
+                    stmt.setArray(i++, connection.createArrayOf(array.getElementTypeName(), array.getElements()));
+                }
+                catch (SQLException x) {
+                    throw new PreparingQueryStatementException("SQLException setting array parameter", x);
+                }
+            }
+            else if (param.getNodeType() == null) {
+                //limit and offset parameters
+                try {
+                    stmt.setInt(i++, (Integer)param.getValue());
+                }
+                catch (SQLException x) {
+                    throw new PreparingQueryStatementException("SQLException setting integer parameter", x);
+                }
+            }
+            else {
+                helper.setParameter(stmt, i++, param.getNodeType(), param.getValue());
+            }
         }
     }
 
@@ -324,8 +380,8 @@ public class QueryExecuter {
                     return false;
                 }
                 try {
-                    resultSet = executeQuery( queryExecutions[ queryIndex ] );
-                    stmt = resultSet.getStatement();
+                    stmt = executeQuery( queryExecutions[ queryIndex ] );
+                    resultSet = stmt.getResultSet();
                     /*
                      * after we get the result set, we "fall through" and call resultSet.next so that
                      * the cursor is at the correct position.
@@ -373,15 +429,18 @@ public class QueryExecuter {
                     resultSet.close();
                 }
                 catch (SQLException x) {
-                    try {
-                        stmt.close();
-                    }
-                    catch(SQLException x2) {
-                        x.addSuppressed(x2);
+                    if (stmt instanceof PreparedStatement) {
+                        connectionResources.getStatementCache().discard((PreparedStatement)stmt);
                     }
-                    finally {
-                        stmt = null;
+                    else {
+                        try {
+                            stmt.close();
+                        }
+                        catch(SQLException x2) {
+                            x.addSuppressed(x2);
+                        }
                     }
+                    stmt = null;
                     throw new EntityStreamException("Error closing ResultSet", x);
                 }
                 finally {
@@ -390,8 +449,8 @@ public class QueryExecuter {
             }
             if (stmt != null) {
                 try {
-                    LOG.trace("Closing statement");
-                    stmt.close();
+                    LOG.trace("Releasing statement");
+                    releaseStatement(stmt);
                 }
                 catch(SQLException x) {
                     throw new EntityStreamException("Error closing Statement", x);
@@ -505,8 +564,8 @@ public class QueryExecuter {
                 sqlx = x;
             }
             try {
-                LOG.debug("Closing statement");
-                stmt.close();
+                LOG.debug("Releasing statement");
+                releaseStatement(stmt);
             }
             catch(SQLException x) {
                 if (sqlx == null) {
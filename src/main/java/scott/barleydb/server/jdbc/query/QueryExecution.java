@@ -24,11 +24,16 @@ package scott.barleydb.server.jdbc.query;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
@@ -71,26 +76,102 @@ public class QueryExecution<T> {
     private final Definitions definitions;
     private final Projection projection;
     private final Database database;
+    private final QueryTemplateCache templateCache;
+    private final QueryFingerprint fingerprint;
+    private QueryTemplate template;
+    /**
+     * true if the projection came from a cached template of another query
+     */
+    private final boolean fromTemplateCache;
+    private DecoderPlan decoderPlan;
     private EntityLoaders entityLoaders;
     private final Map<EntityData, QueryObject<?>> entityDataToQueryMap;
     private QueryGenerator qGen;
     private int rowCount = 1;
+    private boolean hashAssembly;
+    private boolean deduplicateStrings;
+    /**
+     * the object graphs which were assembled in hash mode and not yet read.
+     */
+    private LinkedList<Collection<EntityData>> assembledGraphs;
 
     public QueryExecution(JdbcEntityContextServices entityContextServices, EntityContext entityContext, QueryObject<T> query, Definitions definitions) throws QueryConnectionRequiredException {
         this.entityContextServices = entityContextServices;
         this.query = query;
         this.definitions = definitions;
-        this.projection = new Projection(definitions);
         this.entityDataToQueryMap = new ConcurrentHashMap<>();
         this.database = ConnectionResources.getMandatoryForQuery(entityContext).getDatabase();
-        projection.build(query);
+        this.templateCache = entityContextServices.getQueryTemplateCache();
+        if (templateCache != null) {
+            this.fingerprint = QueryFingerprint.of(query, database, definitions);
+            this.template = templateCache.get(database, definitions.getNamespace(), fingerprint);
+        }
+        else {
+            this.fingerprint = null;
+        }
+        this.fromTemplateCache = template != null;
+        if (fromTemplateCache) {
+            LOG.debug("Using cached query template for {}", query);
+            this.projection = template.getProjection();
+        }
+        else {
+            this.projection = new Projection(definitions);
+            projection.build(query);
+        }
     }
-    
+
+    /**
+     * Gets the SQL for the query, adding the parameters to queryParameters.
+     *
+     * If the query structure has a cached template then the template SQL is returned
+     * and only the parameter values are bound.
+     */
     public String getSql(List<Param> queryParameters) throws IllegalQueryStateException, ForUpdateNotSupportedException {
+        if (template != null) {
+            template.bindParameters(fingerprint.getParameterValues(), queryParameters);
+            return template.getSql();
+        }
+        List<Param> params = new LinkedList<>();
         qGen = new QueryGenerator(database, query, definitions);
-        return qGen.generateSQL(projection, queryParameters);
+        String sql = qGen.generateSQL(projection, params);
+        queryParameters.addAll(params);
+        if (templateCache != null && fingerprint.isCacheable()) {
+            template = QueryTemplate.create(sql, projection, params, fingerprint);
+            if (template != null) {
+                templateCache.put(database, definitions.getNamespace(), fingerprint, template);
+            }
+            else {
+                LOG.warn("Query fingerprint did not collect every parameter of the generated SQL, not caching {}", query);
+            }
+        }
+        return sql;
+    }
+
+
+    /**
+     * In hash mode the whole resultset is read on the first call to readObjectGraph, the entity data is collected by key
+     * and the object graphs are then stitched together. So the rows of a root entity do not need to be adjacent
+     * and the query does not need to be ordered by the root entity.
+     */
+    public void setHashAssembly(boolean hashAssembly) {
+        this.hashAssembly = hashAssembly;
     }
 
+    public boolean isHashAssembly() {
+        return hashAssembly;
+    }
+
+    /**
+     * If true, string columns are sampled while reading the resultset and the values of columns which repeat
+     * share a single instance. Columns specified as low cardinality are always deduplicated.
+     */
+    public void setDeduplicateStrings(boolean deduplicateStrings) {
+        this.deduplicateStrings = deduplicateStrings;
+    }
+
+    public boolean isDeduplicateStrings() {
+        return deduplicateStrings;
+    }
 
     /**
      *
@@ -100,6 +181,9 @@ public class QueryExecution<T> {
      * @throws EntityStreamException
      */
     public boolean readObjectGraph(ResultSet resultSet, ObjectGraph objectGraph, Statistics statistics) throws EntityStreamException {
+        if (hashAssembly) {
+            return readAssembledObjectGraph(resultSet, objectGraph, statistics);
+        }
         LOG.debug("Reading object graph from ResultSet...");
 
         /*
@@ -115,7 +199,9 @@ public class QueryExecution<T> {
             Object rootEntityKey = null;
             do {
                 prepareEntityLoadersForNewRow(resultSet);
-                LOG.debug("PROCESSING ROW {} -------------------------------------", rowCount);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("PROCESSING ROW {} -------------------------------------", rowCount);
+                }
 
                 Iterator<EntityLoader> i = entityLoaders.iterator();
                 EntityLoader entityDataLoader = i.next();
@@ -162,12 +248,74 @@ public class QueryExecution<T> {
         }
         else {
             LOG.debug("Fully read in Object Graph, reached end of ResultSet...");
+            entityLoaders.logDeduplication();
         }
 
         prepareObjectGraphFromLoadedData( objectGraph );
         return moreData;
     }
 
+    private boolean readAssembledObjectGraph(ResultSet resultSet, ObjectGraph objectGraph, Statistics statistics) throws EntityStreamException {
+        if (assembledGraphs == null) {
+            assembledGraphs = assembleObjectGraphs(resultSet, statistics);
+        }
+        objectGraph.addAll(assembledGraphs.removeFirst(), entityDataToQueryMap);
+        if (!assembledGraphs.isEmpty()) {
+            return true;
+        }
+        /*
+         * the fetched flags are set on the last graph, by then every entity has been read from the stream.
+         */
+        setFetchedFlag(query, objectGraph);
+        return false;
+    }
+
+    /**
+     * Reads all rows of the resultset, the entity loaders hash the entity data by key so each entity is only loaded once.
+     * @return the entity data of each root entity in the order that the root entities were first seen.
+     */
+    private LinkedList<Collection<EntityData>> assembleObjectGraphs(ResultSet resultSet, Statistics statistics) throws EntityStreamException {
+        LOG.debug("Reading all rows from ResultSet to assemble the object graphs...");
+        if (entityLoaders != null) {
+            entityLoaders.clearLoadedEntityData();
+        }
+        Map<EntityData, Set<EntityData>> graphs = new LinkedHashMap<>();
+        try {
+            do {
+                prepareEntityLoadersForNewRow(resultSet);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("PROCESSING ROW {} -------------------------------------", rowCount);
+                }
+
+                Iterator<EntityLoader> i = entityLoaders.iterator();
+                EntityLoader entityDataLoader = i.next();
+                EntityData root = entityDataLoader.isNotYetLoaded() ? entityDataLoader.load() : entityDataLoader.associateAsLoaded();
+                Set<EntityData> graph = graphs.get(root);
+                if (graph == null) {
+                    graph = new LinkedHashSet<>();
+                    graph.add(root);
+                    graphs.put(root, graph);
+                }
+
+                while(i.hasNext()) {
+                    entityDataLoader = i.next();
+                    if (entityDataLoader.isEntityThere()) {
+                        graph.add( entityDataLoader.isNotYetLoaded() ? entityDataLoader.load() : entityDataLoader.associateAsLoaded() );
+                    }
+                }
+                rowCount++;
+                statistics.addNumberOfRowsRead(1);
+            }
+            while(resultSet.next());
+        }
+        catch (SortJdbcException  | BarleyDBQueryException  | SQLException x) {
+            throw new EntityStreamException("Could not load Object Graph", x);
+        }
+        LOG.debug("Assembled {} object graphs, reached end of ResultSet...", graphs.size());
+        entityLoaders.logDeduplication();
+        return new LinkedList<>(graphs.values());
+    }
+
     private ObjectGraph prepareObjectGraphFromLoadedData(ObjectGraph objectGraph) {
         objectGraph.addAll( entityLoaders.getLoadedEntityData().values(), entityDataToQueryMap );
 
@@ -176,15 +324,37 @@ public class QueryExecution<T> {
         return objectGraph;
     }
 
-    private void prepareEntityLoadersForNewRow(ResultSet resultSet) {
+    private void prepareEntityLoadersForNewRow(ResultSet resultSet) throws BarleyDBQueryException {
         if (entityLoaders == null) {
-            entityLoaders = new EntityLoaders(entityContextServices, definitions, projection, resultSet, entityDataToQueryMap);
+            /*
+             * a cached template refers to the query objects of the query which created it.
+             */
+            Map<QueryObject<?>, QueryObject<?>> boundQueryObjects = null;
+            if (fromTemplateCache) {
+                boundQueryObjects = template.bindQueryObjects(fingerprint.getQueryObjects());
+            }
+            entityLoaders = new EntityLoaders(definitions, getDecoderPlan(), resultSet, deduplicateStrings, entityDataToQueryMap, boundQueryObjects);
         }
         else {
             entityLoaders.clearRowCache();
         }
     }
 
+    /**
+     * The decoder plan is compiled once and then used for every row of the query.
+     */
+    private DecoderPlan getDecoderPlan() throws BarleyDBQueryException {
+        if (decoderPlan == null) {
+            if (template != null) {
+                decoderPlan = template.getDecoderPlan(definitions, entityContextServices);
+            }
+            else {
+                decoderPlan = DecoderPlan.compile(projection, definitions, entityContextServices);
+            }
+        }
+        return decoderPlan;
+    }
+
     /**
      * Sets all ToMany relations which had query joins to 'fetched'
      * @param queryObject
@@ -209,7 +379,7 @@ public class QueryExecution<T> {
     }
 
     private Object getKey(EntityData entityData, EntityType entityType) {
-        return entityData.getData().get( entityType.getKeyNodeName() );
+        return entityData.getKey( entityType );
     }
 
 	public Map<EntityData,QueryObject<?>> getEntityToQueryMap() {
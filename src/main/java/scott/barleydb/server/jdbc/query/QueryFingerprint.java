@@ -0,0 +1,297 @@
+package scott.barleydb.server.jdbc.query;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import scott.barleydb.api.config.Definitions;
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.query.QCondition;
+import scott.barleydb.api.query.QExists;
+import scott.barleydb.api.query.QJoin;
+import scott.barleydb.api.query.QLogicalOp;
+import scott.barleydb.api.query.QMathOps;
+import scott.barleydb.api.query.QOrderBy;
+import scott.barleydb.api.query.QProperty;
+import scott.barleydb.api.query.QPropertyCondition;
+import scott.barleydb.api.query.QueryObject;
+import scott.barleydb.server.jdbc.query.QueryGenerator.Param;
+import scott.barleydb.server.jdbc.vendor.Database;
+
+/**
+ * The structure of a query object, independent of the parameter values.
+ *
+ * Two query objects with the same fingerprint generate the same SQL and projection,
+ * they differ only in the values bound to the prepared statement parameters.
+ *
+ * The fingerprint covers the joins, the projection, the shape of the condition tree (including exists sub-queries),
+ * the order by, the pagination and the for update clause.
+ *
+ * While walking the query the parameter values are collected in walk order, together with the offset of the values of
+ * each source (a condition or the pagination of the root query object), and each query object is given a position.
+ * The {@link QueryTemplate} maps the rendered parameters to walk order indexes through their source, so the order
+ * of the rendered parameters is only ever decided by the {@link QueryGenerator}.
+ *
+ * @author scott
+ *
+ */
+final class QueryFingerprint {
+
+    private final String key;
+    private final boolean cacheable;
+    private final List<QueryObject<?>> queryObjects;
+    private final List<Object> parameterValues;
+    private final Map<Object, Integer> sourceOffsets;
+
+    private QueryFingerprint(String key, boolean cacheable, List<QueryObject<?>> queryObjects, List<Object> parameterValues, Map<Object, Integer> sourceOffsets) {
+        this.key = key;
+        this.cacheable = cacheable;
+        this.queryObjects = queryObjects;
+        this.parameterValues = parameterValues;
+        this.sourceOffsets = sourceOffsets;
+    }
+
+    public static QueryFingerprint of(QueryObject<?> query, Database database, Definitions definitions) {
+        Builder builder = new Builder(database, definitions);
+        builder.appendQuery(query);
+        return new QueryFingerprint(builder.sb.toString(), builder.cacheable, builder.queryObjects, builder.parameterValues, builder.sourceOffsets);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return false if the query contains a construct which the fingerprint cannot describe.
+     */
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    /**
+     * @return the query objects in position order.
+     */
+    public List<QueryObject<?>> getQueryObjects() {
+        return queryObjects;
+    }
+
+    /**
+     * @return the parameter values in walk order.
+     */
+    public List<Object> getParameterValues() {
+        return parameterValues;
+    }
+
+    /**
+     * @return the walk order index of the rendered parameter or -1 if the fingerprint did not collect its value.
+     */
+    public int getParameterIndex(Param param) {
+        Integer offset = param.getSource() != null ? sourceOffsets.get(param.getSource()) : null;
+        if (offset == null || param.getSourceIndex() < 0) {
+            return -1;
+        }
+        int index = offset + param.getSourceIndex();
+        return index < parameterValues.size() ? index : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryFingerprint [" + key + "]";
+    }
+
+    private static final class Builder {
+        private final StringBuilder sb = new StringBuilder();
+        private final Map<QueryObject<?>, Integer> positions = new IdentityHashMap<>();
+        private final List<QueryObject<?>> queryObjects = new ArrayList<>();
+        private final List<Object> parameterValues = new ArrayList<>();
+        private final Map<Object, Integer> sourceOffsets = new IdentityHashMap<>();
+        private final Database database;
+        private final Definitions definitions;
+        private boolean cacheable = true;
+
+        Builder(Database database, Definitions definitions) {
+            this.database = database;
+            this.definitions = definitions;
+        }
+
+        private void appendQuery(QueryObject<?> query) {
+            sb.append('{');
+            sb.append(position(query));
+            sb.append(':');
+            sb.append(query.getTypeName());
+            appendProjection(query);
+            appendJoins(query);
+            if (query.getCondition() != null) {
+                sb.append(" where ");
+                appendCondition(query.getCondition());
+            }
+            if (!query.isSubQuery()) {
+                appendPagination(query);
+            }
+            for (QOrderBy orderBy: query.getOrderBy()) {
+                sb.append(" order ");
+                appendProperty(orderBy.getProperty());
+                sb.append(orderBy.isAscending() ? " asc" : " desc");
+            }
+            if (query.getForUpdate() != null) {
+                sb.append(" forupdate ");
+                sb.append(query.getForUpdate().getOptionalWaitInSeconds());
+            }
+            sb.append('}');
+        }
+
+        /**
+         * The seek values followed by the limit and offset values, with the root query object as their source.
+         */
+        private void appendPagination(QueryObject<?> query) {
+            sourceOffsets.put(query, parameterValues.size());
+            List<Object> seekAfter = query.getSeekAfter();
+            if (seekAfter != null) {
+                sb.append(" seek ");
+                sb.append(seekAfter.size());
+                parameterValues.addAll(seekAfter);
+            }
+            if (query.getLimit() != null || query.getOffset() != null) {
+                List<Integer> values = new ArrayList<>(2);
+                database.appendLimitAndOffset(sb, query.getLimit(), query.getOffset(), values);
+                parameterValues.addAll(values);
+            }
+        }
+
+        /**
+         * The projected properties of the query object.
+         */
+        private void appendProjection(QueryObject<?> query) {
+            sb.append(" select ");
+            sb.append(new TreeSet<>(query.getProjectedProperties()));
+        }
+
+        private void appendJoins(QueryObject<?> query) {
+            for (QJoin join: query.getJoins()) {
+                sb.append(" join(");
+                sb.append(join.getJoinType());
+                sb.append(' ');
+                sb.append(join.getFkeyProperty());
+                sb.append(' ');
+                QueryObject<?> to = join.getTo();
+                sb.append(position(to));
+                sb.append(':');
+                sb.append(to.getTypeName());
+                appendProjection(to);
+                appendJoins(to);
+                sb.append(')');
+            }
+        }
+
+        private void appendCondition(QCondition condition) {
+            if (condition instanceof QLogicalOp) {
+                QLogicalOp op = (QLogicalOp)condition;
+                sb.append('(');
+                appendCondition(op.getLeft());
+                sb.append(' ');
+                sb.append(op.getExpr());
+                sb.append(' ');
+                appendCondition(op.getRight());
+                sb.append(')');
+            }
+            else if (condition instanceof QPropertyCondition) {
+                appendPropertyCondition((QPropertyCondition)condition);
+            }
+            else if (condition instanceof QExists) {
+                QueryObject<?> subQuery = ((QExists)condition).getSubQueryObject();
+                sb.append("exists ");
+                QJoin subQueryJoin = subQuery.getSubQueryJoin();
+                if (subQueryJoin != null) {
+                    sb.append(position(subQueryJoin.getFrom()));
+                    sb.append('.');
+                    sb.append(subQueryJoin.getFkeyProperty());
+                }
+                appendQuery(subQuery);
+            }
+            else {
+                cacheable = false;
+                sb.append(condition.getClass().getName());
+            }
+        }
+
+        private void appendPropertyCondition(QPropertyCondition qpc) {
+            sourceOffsets.put(qpc, parameterValues.size());
+            appendProperty(qpc.getProperty());
+            sb.append(' ');
+            sb.append(qpc.getOperator());
+            Object value = qpc.getValue();
+            if ((qpc.getOperator() == QMathOps.IN  || qpc.getOperator() == QMathOps.NOT_IN) && value instanceof Collection) {
+                EntityType et = definitions.getEntityTypeMatchingInterface(qpc.getProperty().getQueryObject().getTypeName(), true);
+                NodeType nodeType = et.getNodeType(qpc.getProperty().getName(), true);
+                InList inList = InList.of(database, definitions, nodeType, (Collection<?>)value);
+                sb.append(" [");
+                sb.append(inList.getShape());
+                sb.append(']');
+                parameterValues.addAll(inList.getParameterValues());
+            }
+            else if (value instanceof StagedKeys) {
+                sb.append(" [staged ");
+                sb.append(((StagedKeys)value).getTableName());
+                sb.append(']');
+                parameterValues.add(((StagedKeys)value).getBatchId());
+            }
+            else if (value instanceof Collection) {
+                Collection<?> values = (Collection<?>)value;
+                sb.append(" [");
+                sb.append(values.size());
+                sb.append(']');
+                parameterValues.addAll(values);
+            }
+            else if (value instanceof QProperty<?>) {
+                sb.append(' ');
+                appendProperty((QProperty<?>)value);
+            }
+            else if (value != null) {
+                sb.append(" ?");
+                parameterValues.add(value);
+            }
+        }
+
+        private void appendProperty(QProperty<?> property) {
+            sb.append(position(property.getQueryObject()));
+            sb.append('.');
+            sb.append(property.getName());
+        }
+
+        private int position(QueryObject<?> queryObject) {
+            Integer position = positions.get(queryObject);
+            if (position == null) {
+                position = queryObjects.size();
+                positions.put(queryObject, position);
+                queryObjects.add(queryObject);
+            }
+            return position;
+        }
+    }
+}
@@ -22,7 +22,11 @@ package scott.barleydb.server.jdbc.query;
  * #L%
  */
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import scott.barleydb.api.config.Definitions;
 import scott.barleydb.api.config.EntityType;
@@ -46,10 +50,26 @@ public class QueryGenerator {
     public static class Param {
         private final NodeType nodeType;
         private final Object value;
+        private final Object source;
+        private final int sourceIndex;
 
+        /**
+         * @param nodeType the node type of the value or null for an integer parameter like a limit or offset.
+         * @param value
+         */
         public Param(NodeType nodeType, Object value) {
+            this(nodeType, value, null, -1);
+        }
+
+        /**
+         * @param source the part of the query object which the value comes from, a condition or the root query object for the pagination values.
+         * @param sourceIndex the position of the value within the values of the source.
+         */
+        public Param(NodeType nodeType, Object value, Object source, int sourceIndex) {
             this.nodeType = nodeType;
             this.value = (value instanceof QParameter<?>) ? ((QParameter<?>)value).getValue() : value;
+            this.source = source;
+            this.sourceIndex = sourceIndex;
         }
 
         public NodeType getNodeType() {
@@ -59,6 +79,17 @@ public class QueryGenerator {
         public Object getValue() {
             return value;
         }
+
+        /**
+         * @return the part of the query object which the value comes from or null if not known.
+         */
+        public Object getSource() {
+            return source;
+        }
+
+        public int getSourceIndex() {
+            return sourceIndex;
+        }
     }
 
     private final Database database;
@@ -85,21 +116,14 @@ public class QueryGenerator {
         else {
             sb.append(' ');
         }
-        sb.append("from ");
-        sb.append(database.formatTableName(entityType.getTableName()));
-        sb.append(" ");
-        sb.append(query.getAlias());
-        boolean hasInnerJoins = generateInnerJoinTableDeclarations(sb, query);
-        generateLeftOuterJoins(sb, query);
-        if (hasInnerJoins) {
-            sb.append('\n');
-            sb.append(initialIndent);
-            sb.append("where");
-            generateInnerJoinConditions(sb, query);
-        }
 
         if (query.isSubQuery()) {
+            boolean hasInnerJoins = generateFromClause(sb, entityType);
             if (hasInnerJoins) {
+                sb.append('\n');
+                sb.append(initialIndent);
+                sb.append("where");
+                generateInnerJoinConditions(sb, query);
                 sb.append('\n');
                 sb.append(initialIndent);
                 sb.append("AND ");
@@ -116,22 +140,26 @@ public class QueryGenerator {
             }
         }
         else {
-            if (query.getCondition() != null) {
-                if (hasInnerJoins) {
-                    sb.append('\n');
-                    sb.append(initialIndent);
-                    sb.append("AND ");
-                }
-                else {
-                    sb.append('\n');
-                    sb.append(initialIndent);
-                    sb.append("where ");
-                }
-                query.getCondition().visit(new ConditionRenderer(database, sb, definitions, params, initialIndent));
+            checkPagination();
+            /*
+             * with joins a limit or offset must apply to the root entities and not to the joined rows,
+             * so we select the page of root keys in a sub-query.
+             */
+            final boolean rootKeySubQuery = isRootKeySubQueryRequired(query);
+            generateFromClause(sb, entityType);
+            boolean hasWhere = generateWhereClause(sb, params, !rootKeySubQuery);
+            if (rootKeySubQuery) {
+                sb.append('\n');
+                sb.append(initialIndent);
+                sb.append(hasWhere ? "AND " : "where ");
+                generateRootKeySubQuery(sb, entityType, params);
             }
             if (!query.getOrderBy().isEmpty()) {
                 generateOrderBy(sb);
             }
+            if (!rootKeySubQuery) {
+                generateLimitAndOffset(sb, params);
+            }
             if (query.getForUpdate() != null) {
                 generateForUpdate(sb);
             }
@@ -139,6 +167,197 @@ public class QueryGenerator {
         return sb.toString();
     }
 
+    /**
+     * A root query with joins and a limit or offset selects the page of root keys in a sub-query.
+     */
+    private static boolean isRootKeySubQueryRequired(QueryObject<?> query) {
+        return (query.getLimit() != null || query.getOffset() != null) && !query.getJoins().isEmpty();
+    }
+
+    /**
+     * from table alias, inner join table declarations and left outer joins
+     * @return true if there are inner joins
+     */
+    private boolean generateFromClause(StringBuilder sb, EntityType entityType) throws IllegalQueryStateException {
+        sb.append("from ");
+        sb.append(database.formatTableName(entityType.getTableName()));
+        sb.append(" ");
+        sb.append(query.getAlias());
+        boolean hasInnerJoins = generateInnerJoinTableDeclarations(sb, query);
+        generateLeftOuterJoins(sb, query);
+        return hasInnerJoins;
+    }
+
+    /**
+     * Generates the where clause of the root query
+     * @return true if a where clause was generated
+     */
+    private boolean generateWhereClause(StringBuilder sb, List<Param> params, boolean includeSeekCondition) throws IllegalQueryStateException, ForUpdateNotSupportedException {
+        boolean hasWhere = false;
+        if (hasInnerJoins(query)) {
+            sb.append('\n');
+            sb.append(initialIndent);
+            sb.append("where");
+            generateInnerJoinConditions(sb, query);
+            hasWhere = true;
+        }
+        if (query.getCondition() != null) {
+            sb.append('\n');
+            sb.append(initialIndent);
+            sb.append(hasWhere ? "AND " : "where ");
+            if (includeSeekCondition && query.getSeekAfter() != null) {
+                //the seek condition is ANDed so the user condition needs brackets
+                sb.append('(');
+                query.getCondition().visit(new ConditionRenderer(database, sb, definitions, params, initialIndent));
+                sb.append(')');
+            }
+            else {
+                query.getCondition().visit(new ConditionRenderer(database, sb, definitions, params, initialIndent));
+            }
+            hasWhere = true;
+        }
+        if (includeSeekCondition && query.getSeekAfter() != null) {
+            sb.append('\n');
+            sb.append(initialIndent);
+            sb.append(hasWhere ? "AND " : "where ");
+            generateSeekCondition(sb, params);
+            hasWhere = true;
+        }
+        return hasWhere;
+    }
+
+    private static boolean hasInnerJoins(QueryObject<?> queryObject) {
+        for (QJoin qj: queryObject.getJoins()) {
+            if (qj.getJoinType() == JoinType.INNER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkPagination() throws IllegalQueryStateException {
+        if ((query.getLimit() != null || query.getOffset() != null) && !database.supportsLimitAndOffset()) {
+            throw new IllegalQueryStateException("Limit and offset not supported by " + database.getInfo());
+        }
+        List<Object> seekAfter = query.getSeekAfter();
+        if (seekAfter != null) {
+            if (seekAfter.size() != query.getOrderBy().size()) {
+                throw new IllegalQueryStateException("Seek after requires one value for each order by property, expected " + query.getOrderBy().size() + " but got " + seekAfter.size());
+            }
+            if (seekAfter.contains(null)) {
+                throw new IllegalQueryStateException("Seek after does not support null values");
+            }
+        }
+        if (query.getLimit() != null || query.getOffset() != null || seekAfter != null) {
+            /*
+             * a to many join repeats the root row, so the page would be counted in joined rows instead of root entities.
+             */
+            Set<QueryObject<?>> joinedThroughToMany = Collections.newSetFromMap(new IdentityHashMap<QueryObject<?>, Boolean>());
+            collectJoinedThroughToMany(query, false, joinedThroughToMany);
+            for (QOrderBy orderBy : query.getOrderBy()) {
+                if (joinedThroughToMany.contains(orderBy.getProperty().getQueryObject())) {
+                    throw new IllegalQueryStateException("Cannot order by " + getNodeType(orderBy).getShortId() + " which is joined through a to many relation, when using limit, offset or seek after");
+                }
+            }
+        }
+    }
+
+    private void collectJoinedThroughToMany(QueryObject<?> queryObject, boolean throughToMany, Set<QueryObject<?>> result) {
+        EntityType entityType = definitions.getEntityTypeMatchingInterface(queryObject.getTypeName(), true);
+        for (QJoin qj: queryObject.getJoins()) {
+            boolean toMany = throughToMany || entityType.getNodeType(qj.getFkeyProperty(), true).isOneToManyRelation();
+            if (toMany) {
+                result.add(qj.getTo());
+            }
+            collectJoinedThroughToMany(qj.getTo(), toMany, result);
+        }
+    }
+
+    /**
+     * Selects the page of root keys, the sub-query has the same joins and conditions as the outer query
+     * so that the rows of the root entities are filtered in the same way.
+     */
+    private void generateRootKeySubQuery(StringBuilder sb, EntityType entityType, List<Param> params) throws IllegalQueryStateException, ForUpdateNotSupportedException {
+        String alias = query.getAlias();
+        sb.append(alias);
+        sb.append('.');
+        sb.append(entityType.getKeyColumn());
+        sb.append(" in (select pg.pg_key from (select distinct ");
+        sb.append(alias);
+        sb.append('.');
+        sb.append(entityType.getKeyColumn());
+        sb.append(" as pg_key");
+        int i = 0;
+        for (QOrderBy orderby : query.getOrderBy()) {
+            sb.append(", ");
+            sb.append(getColumn(orderby));
+            sb.append(" as pg_o");
+            sb.append(i++);
+        }
+        sb.append('\n');
+        sb.append(initialIndent);
+        generateFromClause(sb, entityType);
+        generateWhereClause(sb, params, true);
+        if (!query.getOrderBy().isEmpty()) {
+            generateOrderBy(sb);
+        }
+        generateLimitAndOffset(sb, params);
+        sb.append(") pg)");
+    }
+
+    /**
+     * The keyset pagination condition, for order by (o1, o2, o3) it generates<br/>
+     * (o1 > ?) OR (o1 = ? AND o2 > ?) OR (o1 = ? AND o2 = ? AND o3 > ?)<br/>
+     * using &lt; for descending properties.<br/>
+     *<br/>
+     * The seek values are the first pagination values of the root query object.
+     */
+    private void generateSeekCondition(StringBuilder sb, List<Param> params) {
+        List<QOrderBy> orderBys = query.getOrderBy();
+        List<Object> seekAfter = query.getSeekAfter();
+        sb.append('(');
+        for (int i=0, n=orderBys.size(); i<n; i++) {
+            if (i > 0) {
+                sb.append(" OR ");
+            }
+            sb.append('(');
+            for (int j=0; j<i; j++) {
+                sb.append(getColumn(orderBys.get(j)));
+                sb.append(" = ? AND ");
+                params.add(new Param(getNodeType(orderBys.get(j)), seekAfter.get(j), query, j));
+            }
+            QOrderBy orderBy = orderBys.get(i);
+            sb.append(getColumn(orderBy));
+            sb.append(orderBy.isAscending() ? " > ?" : " < ?");
+            params.add(new Param(getNodeType(orderBy), seekAfter.get(i), query, i));
+            sb.append(')');
+        }
+        sb.append(')');
+    }
+
+    private void generateLimitAndOffset(StringBuilder sb, List<Param> params) {
+        if (query.getLimit() == null && query.getOffset() == null) {
+            return;
+        }
+        List<Integer> values = new LinkedList<>();
+        database.appendLimitAndOffset(sb, query.getLimit(), query.getOffset(), values);
+        //the limit and offset values follow the seek values
+        int sourceIndex = query.getSeekAfter() != null ? query.getSeekAfter().size() : 0;
+        for (Integer value: values) {
+            params.add(new Param(null, value, query, sourceIndex++));
+        }
+    }
+
+    private NodeType getNodeType(QOrderBy orderby) {
+        QueryObject<?> qo = orderby.getProperty().getQueryObject();
+        EntityType entityType = definitions.getEntityTypeMatchingInterface(qo.getTypeName(), true);
+        return entityType.getNodeType(orderby.getProperty().getName(), true);
+    }
+
+    private String getColumn(QOrderBy orderby) {
+        return orderby.getProperty().getQueryObject().getAlias() + '.' + getNodeType(orderby).getColumnName();
+    }
+
     private boolean generateInnerJoinTableDeclarations(StringBuilder sb, QueryObject<?> queryObject) {
         boolean foundOne = false;
         for (QJoin qj: queryObject.getJoins()) {
@@ -177,11 +396,7 @@ public class QueryGenerator {
     private void generateOrderBy(StringBuilder sb) {
         sb.append("\norder by ");
         for (QOrderBy orderby : query.getOrderBy()) {
-            QueryObject<?> qo = orderby.getProperty().getQueryObject();
-            EntityType entityType = definitions.getEntityTypeMatchingInterface(qo.getTypeName(), true);
-            sb.append(qo.getAlias());
-            sb.append('.');
-            sb.append(entityType.getNodeType(orderby.getProperty().getName(), true).getColumnName());
+            sb.append(getColumn(orderby));
             if (orderby.isAscending()) {
                 sb.append(" asc");
             }
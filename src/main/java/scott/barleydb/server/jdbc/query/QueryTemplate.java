@@ -0,0 +1,138 @@
+package scott.barleydb.server.jdbc.query;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import scott.barleydb.api.config.Definitions;
+import scott.barleydb.api.config.NodeType;
+import scott.barleydb.api.exception.execution.query.BarleyDBQueryException;
+import scott.barleydb.api.exception.execution.query.IllegalQueryStateException;
+import scott.barleydb.api.query.QueryObject;
+import scott.barleydb.server.jdbc.JdbcEntityContextServices;
+import scott.barleydb.server.jdbc.query.QueryGenerator.Param;
+
+/**
+ * The rendered SQL, projection and parameter layout of a query structure.
+ *
+ * A template is created from the first query execution with a given {@link QueryFingerprint},
+ * later executions of the same structure only need to bind their parameter values.
+ *
+ * The projection refers to the query objects of the first execution, these are mapped by position
+ * to the query objects of the executing query.
+ *
+ * Each rendered parameter refers to a value of the fingerprint by its walk order index,
+ * so a condition which is rendered twice (as in the root key sub-query) binds the same value twice.
+ *
+ * @author scott
+ *
+ */
+final class QueryTemplate {
+
+    private final String sql;
+    private final Projection projection;
+    private final NodeType parameterLayout[];
+    /**
+     * the walk order index of the fingerprint value for each parameter.
+     */
+    private final int valueIndexes[];
+    private final int numberOfValues;
+    private final List<QueryObject<?>> queryObjects;
+    private volatile DecoderPlan decoderPlan;
+
+    private QueryTemplate(String sql, Projection projection, NodeType parameterLayout[], int valueIndexes[], int numberOfValues, List<QueryObject<?>> queryObjects) {
+        this.sql = sql;
+        this.projection = projection;
+        this.parameterLayout = parameterLayout;
+        this.valueIndexes = valueIndexes;
+        this.numberOfValues = numberOfValues;
+        this.queryObjects = queryObjects;
+    }
+
+    /**
+     * @return the template or null if a rendered parameter does not come from a value of the fingerprint.
+     */
+    static QueryTemplate create(String sql, Projection projection, List<Param> params, QueryFingerprint fingerprint) {
+        NodeType parameterLayout[] = new NodeType[ params.size() ];
+        int valueIndexes[] = new int[ params.size() ];
+        int i = 0;
+        for (Param param: params) {
+            int index = fingerprint.getParameterIndex(param);
+            if (index == -1) {
+                return null;
+            }
+            parameterLayout[i] = param.getNodeType();
+            valueIndexes[i++] = index;
+        }
+        return new QueryTemplate(sql, projection, parameterLayout, valueIndexes, fingerprint.getParameterValues().size(), fingerprint.getQueryObjects());
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    public int getParameterCount() {
+        return parameterLayout.length;
+    }
+
+    /**
+     * Binds the parameter values of the executing query's fingerprint to the parameter layout
+     */
+    public void bindParameters(List<Object> parameterValues, List<Param> params) throws IllegalQueryStateException {
+        if (parameterValues.size() != numberOfValues) {
+            throw new IllegalQueryStateException("Query template expects " + numberOfValues + " parameter values, but " + parameterValues.size() + " were given");
+        }
+        for (int i=0; i<parameterLayout.length; i++) {
+            params.add(new Param(parameterLayout[i], parameterValues.get( valueIndexes[i] )));
+        }
+    }
+
+    /**
+     * @return a map from the template's query objects to the query objects of the executing query
+     */
+    public Map<QueryObject<?>, QueryObject<?>> bindQueryObjects(List<QueryObject<?>> executingQueryObjects) throws IllegalQueryStateException {
+        if (executingQueryObjects.size() != queryObjects.size()) {
+            throw new IllegalQueryStateException("Query template has " + queryObjects.size() + " query objects, but the query has " + executingQueryObjects.size());
+        }
+        Map<QueryObject<?>, QueryObject<?>> result = new IdentityHashMap<>();
+        for (int i=0, n=queryObjects.size(); i<n; i++) {
+            result.put(queryObjects.get(i), executingQueryObjects.get(i));
+        }
+        return result;
+    }
+
+    public DecoderPlan getDecoderPlan(Definitions definitions, JdbcEntityContextServices entityContextServices) throws BarleyDBQueryException {
+        DecoderPlan plan = decoderPlan;
+        if (plan == null) {
+            plan = decoderPlan = DecoderPlan.compile(projection, definitions, entityContextServices);
+        }
+        return plan;
+    }
+
+}
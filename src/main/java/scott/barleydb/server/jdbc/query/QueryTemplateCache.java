@@ -0,0 +1,141 @@
+package scott.barleydb.server.jdbc.query;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import scott.barleydb.server.jdbc.vendor.Database;
+
+/**
+ * A bounded, least recently used cache of query templates keyed on the
+ * database, namespace and query fingerprint.
+ *
+ * The cache is shared by all entity contexts of an environment.
+ *
+ * @author scott
+ *
+ */
+public class QueryTemplateCache {
+
+    public static final int DEFAULT_MAX_SIZE = 500;
+
+    private final int maxSize;
+    private final Map<Key, QueryTemplate> templates;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public QueryTemplateCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public QueryTemplateCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.templates = Collections.synchronizedMap(new LinkedHashMap<Key, QueryTemplate>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, QueryTemplate> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    QueryTemplate get(Database database, String namespace, QueryFingerprint fingerprint) {
+        if (!fingerprint.isCacheable()) {
+            return null;
+        }
+        QueryTemplate template = templates.get(new Key(database, namespace, fingerprint.getKey()));
+        if (template != null) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+        }
+        return template;
+    }
+
+    void put(Database database, String namespace, QueryFingerprint fingerprint, QueryTemplate template) {
+        if (fingerprint.isCacheable()) {
+            templates.put(new Key(database, namespace, fingerprint.getKey()), template);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        return templates.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void clear() {
+        templates.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "QueryTemplateCache [size=" + size() + ", maxSize=" + maxSize + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+
+    private static final class Key {
+        private final Database database;
+        private final String namespace;
+        private final String fingerprint;
+
+        Key(Database database, String namespace, String fingerprint) {
+            this.database = database;
+            this.namespace = namespace;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(database, namespace, fingerprint);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return database == other.database &&
+                    Objects.equals(namespace, other.namespace) &&
+                    fingerprint.equals(other.fingerprint);
+        }
+    }
+}
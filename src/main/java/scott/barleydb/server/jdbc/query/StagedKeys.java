@@ -0,0 +1,67 @@
+package scott.barleydb.server.jdbc.query;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+
+/**
+ * The value of an IN condition whose keys were staged into a temporary table.
+ *
+ * The condition is rendered as a sub-query on the staging table, so a large set of keys is joined against
+ * instead of being passed as query parameters.
+ *
+ * @see scott.barleydb.server.jdbc.vendor.Database#getKeyStagingTableName(scott.barleydb.api.config.NodeType)
+ * @author scott
+ *
+ */
+public final class StagedKeys {
+
+    private final String tableName;
+    private final int batchId;
+    private final int numberOfKeys;
+
+    public StagedKeys(String tableName, int batchId, int numberOfKeys) {
+        this.tableName = tableName;
+        this.batchId = batchId;
+        this.numberOfKeys = numberOfKeys;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return the batch which the keys were staged under.
+     */
+    public int getBatchId() {
+        return batchId;
+    }
+
+    public int getNumberOfKeys() {
+        return numberOfKeys;
+    }
+
+    @Override
+    public String toString() {
+        return "StagedKeys [" + tableName + ", batch " + batchId + ", " + numberOfKeys + " keys]";
+    }
+}
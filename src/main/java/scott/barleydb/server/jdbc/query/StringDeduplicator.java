@@ -0,0 +1,105 @@
+package scott.barleydb.server.jdbc.query;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.util.HashMap;
+
+/**
+ * A bounded intern table for the string values of a single column of a query result.
+ *
+ * Columns like status codes, currencies and countries repeat the same few values on every row,
+ * the JDBC driver returns a new String instance each time. Returning the first instance read
+ * means the loaded entity data retains each distinct value only once.
+ *
+ * The table lives as long as the result set is being read, it is not shared across queries or threads.
+ * A column which is not known to have low cardinality is sampled first, if too few values repeat
+ * the table is dropped and values are returned as is.
+ *
+ * @author scott
+ *
+ */
+final class StringDeduplicator {
+
+    /**
+     * the maximum number of distinct values held per column.
+     */
+    static final int MAX_ENTRIES = 4096;
+
+    /**
+     * the number of values sampled before deciding if an adaptive table is worth keeping.
+     */
+    static final int SAMPLE_SIZE = 512;
+
+    private final boolean adaptive;
+    private HashMap<String, String> table = new HashMap<>();
+    private int lookups;
+    private int hits;
+
+    /**
+     * @param adaptive if true the table is dropped if the sampled values do not repeat often enough.
+     */
+    StringDeduplicator(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public Object dedupe(Object value) {
+        if (table == null || !(value instanceof String)) {
+            return value;
+        }
+        String str = (String)value;
+        String existing = table.get(str);
+        lookups++;
+        if (existing != null) {
+            hits++;
+            return existing;
+        }
+        if (table.size() < MAX_ENTRIES) {
+            table.put(str, str);
+        }
+        if (adaptive && lookups % SAMPLE_SIZE == 0 && hits < lookups / 2) {
+            /*
+             * at least half of the values should repeat, otherwise the table
+             * only costs memory.
+             */
+            table = null;
+        }
+        return str;
+    }
+
+    public boolean isActive() {
+        return table != null;
+    }
+
+    public int getLookups() {
+        return lookups;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int size() {
+        return table != null ? table.size() : 0;
+    }
+}
@@ -56,7 +56,20 @@ public class ConnectionResources {
     }
 
     public static ConnectionResources set(EntityContext entityContext, Connection connection, Database database) {
-        ConnectionResources cr = new ConnectionResources(entityContext, connection, database);
+        return set(entityContext, connection, database, StatementCache.DEFAULT_MAX_SIZE);
+    }
+
+    public static ConnectionResources set(EntityContext entityContext, Connection connection, Database database, int statementCacheSize) {
+        ConnectionResources cr = new ConnectionResources(entityContext, connection, database, new StatementCache(statementCacheSize));
+        entityContext.setResource(ConnectionResources.class.getName(), cr);
+        return cr;
+    }
+
+    /**
+     * Associates the entity context with the same connection and statement cache as the given connection resources.
+     */
+    public static ConnectionResources join(EntityContext entityContext, ConnectionResources conRes) {
+        ConnectionResources cr = new ConnectionResources(entityContext, conRes.connection, conRes.database, conRes.statementCache);
         entityContext.setResource(ConnectionResources.class.getName(), cr);
         return cr;
     }
@@ -67,10 +80,17 @@ public class ConnectionResources {
 
     private final Database database;
 
+    private final StatementCache statementCache;
+
     public ConnectionResources(EntityContext entityContext, Connection connection, Database database) {
+        this(entityContext, connection, database, new StatementCache(StatementCache.DEFAULT_MAX_SIZE));
+    }
+
+    public ConnectionResources(EntityContext entityContext, Connection connection, Database database, StatementCache statementCache) {
         this.entityContexts.add(entityContext);
         this.connection = connection;
         this.database = database;
+        this.statementCache = statementCache;
     }
 
     public Collection<EntityContext> getEntityContexts() {
@@ -85,8 +105,27 @@ public class ConnectionResources {
         return database;
     }
 
+    /**
+     * The prepared statements cached for the connection.
+     */
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
     public void close() throws SQLException {
         removeFromEntityContexts();
+        try {
+            statementCache.close();
+        }
+        catch(SQLException x) {
+            try {
+                getConnection().close();
+            }
+            catch(SQLException x2) {
+                x.addSuppressed(x2);
+            }
+            throw x;
+        }
         getConnection().close();
     }
 
@@ -0,0 +1,241 @@
+package scott.barleydb.server.jdbc.resources;
+
+/*
+ * #%L
+ * BarleyDB
+ * %%
+ * Copyright (C) 2014 Scott Sinclair <scottysinclair@gmail.com>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A least recently used cache of prepared statements for a single connection.
+ *
+ * Statements are checked out while they are in use (for example while the resultset is being streamed)
+ * and checked back in afterwards, so the same SQL can be executed concurrently on the connection without one
+ * execution closing the resultset of another.
+ *
+ * All statements are closed when the cache is closed, which happens when the connection is released.
+ *
+ * @author scott
+ *
+ */
+public class StatementCache implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatementCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 50;
+
+    private final int maxSize;
+
+    /**
+     * The idle statements which can be reused.
+     */
+    private final LinkedHashMap<Key, CachedStatement> idle;
+
+    /**
+     * The statements which are currently in use
+     */
+    private final Map<PreparedStatement, CachedStatement> checkedOut = new IdentityHashMap<>();
+
+    private long hits;
+    private long misses;
+
+    public StatementCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.idle = new LinkedHashMap<Key, CachedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedStatement> eldest) {
+                if (size() > StatementCache.this.maxSize) {
+                    LOG.debug("Evicting prepared statement from cache {}", eldest.getKey().sql);
+                    closeQuietly(eldest.getValue().statement);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets a cached prepared statement or prepares a new one.
+     *
+     * The statement must be returned with {@link #checkIn(PreparedStatement)} once the caller is finished with it.
+     */
+    public synchronized PreparedStatement checkOut(Connection connection, String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        Key key = new Key(sql, resultSetType, resultSetConcurrency);
+        CachedStatement cs = idle.remove(key);
+        if (cs != null) {
+            hits++;
+        }
+        else {
+            misses++;
+            PreparedStatement ps = connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            cs = new CachedStatement(key, ps, ps.getFetchSize(), ps.getFetchDirection());
+        }
+        checkedOut.put(cs.statement, cs);
+        return cs.statement;
+    }
+
+    /**
+     * Returns the statement to the cache.
+     *
+     * @return false if the statement did not come from this cache, in which case the caller is responsible for closing it.
+     */
+    public synchronized boolean checkIn(PreparedStatement statement) throws SQLException {
+        CachedStatement cs = checkedOut.remove(statement);
+        if (cs == null) {
+            return false;
+        }
+        if (maxSize <= 0 || idle.containsKey(cs.key)) {
+            statement.close();
+            return true;
+        }
+        try {
+            statement.clearParameters();
+            if (statement.getFetchSize() != cs.defaultFetchSize) {
+                statement.setFetchSize(cs.defaultFetchSize);
+            }
+            if (statement.getFetchDirection() != cs.defaultFetchDirection) {
+                statement.setFetchDirection(cs.defaultFetchDirection);
+            }
+        }
+        catch(SQLException x) {
+            closeQuietly(statement);
+            throw x;
+        }
+        idle.put(cs.key, cs);
+        return true;
+    }
+
+    /**
+     * Removes the statement from the cache and closes it, used when the statement may be in a bad state.
+     */
+    public synchronized void discard(PreparedStatement statement) {
+        checkedOut.remove(statement);
+        closeQuietly(statement);
+    }
+
+    public synchronized int size() {
+        return idle.size() + checkedOut.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    @Override
+    public synchronized void close() throws SQLException {
+        SQLException toThrow = null;
+        for (CachedStatement cs: idle.values()) {
+            toThrow = close(cs.statement, toThrow);
+        }
+        for (CachedStatement cs: checkedOut.values()) {
+            toThrow = close(cs.statement, toThrow);
+        }
+        idle.clear();
+        checkedOut.clear();
+        if (toThrow != null) {
+            throw toThrow;
+        }
+    }
+
+    private static SQLException close(PreparedStatement statement, SQLException toThrow) {
+        try {
+            statement.close();
+        }
+        catch(SQLException x) {
+            if (toThrow == null) {
+                return x;
+            }
+            toThrow.addSuppressed(x);
+        }
+        return toThrow;
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        }
+        catch(SQLException x) {
+            LOG.warn("Error closing prepared statement", x);
+        }
+    }
+
+    private static final class CachedStatement {
+        private final Key key;
+        private final PreparedStatement statement;
+        private final int defaultFetchSize;
+        private final int defaultFetchDirection;
+
+        CachedStatement(Key key, PreparedStatement statement, int defaultFetchSize, int defaultFetchDirection) {
+            this.key = key;
+            this.statement = statement;
+            this.defaultFetchSize = defaultFetchSize;
+            this.defaultFetchDirection = defaultFetchDirection;
+        }
+    }
+
+    private static final class Key {
+        private final String sql;
+        private final int resultSetType;
+        private final int resultSetConcurrency;
+
+        Key(String sql, int resultSetType, int resultSetConcurrency) {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = sql.hashCode();
+            result = prime * result + resultSetType;
+            result = prime * result + resultSetConcurrency;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return resultSetType == other.resultSetType &&
+                    resultSetConcurrency == other.resultSetConcurrency &&
+                    sql.equals(other.sql);
+        }
+    }
+}
@@ -24,20 +24,31 @@ package scott.barleydb.test;
 
 import static org.junit.Assert.assertEquals;
 
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.example.acl.model.AccessArea;
 import org.example.acl.model.User;
+import org.example.etl.context.MiEntityContext;
 import org.example.etl.model.XmlMapping;
 import org.example.etl.model.XmlStructure;
 import org.example.etl.model.XmlSyntaxModel;
 import org.example.etl.model.SyntaxType;
 import org.junit.Test;
 
+import scott.barleydb.api.config.NodeType;
 import scott.barleydb.api.core.entity.Entity;
 import scott.barleydb.api.core.entity.EntityContext;
 import scott.barleydb.api.core.entity.ValueNode;
+import scott.barleydb.api.core.types.JdbcType;
 import scott.barleydb.api.persist.PersistAnalyser;
 import scott.barleydb.api.persist.PersistRequest;
 import scott.barleydb.server.jdbc.persist.DatabaseDataSet;
+import scott.barleydb.server.jdbc.persist.OperationGroup;
+import scott.barleydb.server.jdbc.vendor.Database;
+import scott.barleydb.server.jdbc.vendor.HsqlDatabase;
 
 public class TestDatabaseDataSet extends TestBase {
 
@@ -139,6 +150,103 @@ public class TestDatabaseDataSet extends TestBase {
         assertEquals(8, countEntitiesWithLazyFields(databaseDataSet.getOwnEntityContext()));
     }
 
+    /**
+     * Persists a syntax with many mappings in a new transaction using the given database
+     * and loads the mappings back with a database data set.
+     * @return the number of mappings persisted and the number loaded.
+     */
+    private int[] persistAndLoadMappings(Database database, int numberOfMappings) throws Exception {
+        entityContextServices.setDatabase(database);
+        EntityContext entityContext = new MiEntityContext(env);
+        entityContext.setAutocommit(false);
+        try {
+            XmlSyntaxModel syntaxModel = TestPersistence.buildSyntax(entityContext);
+            for (int i=0; i<numberOfMappings; i++) {
+                XmlMapping mapping = entityContext.newModel(XmlMapping.class);
+                mapping.setSyntax(syntaxModel);
+                mapping.setXpath("/many" + i);
+                mapping.setTargetFieldName("many" + i);
+                syntaxModel.getMappings().add(mapping);
+            }
+            entityContext.persist(new PersistRequest().save(syntaxModel));
+
+            List<Entity> mappings = new ArrayList<>();
+            for (Entity entity : entityContext.getEntities()) {
+                if (entity.getEntityType().getInterfaceName().equals(XmlMapping.class.getName())) {
+                    mappings.add(entity);
+                }
+            }
+            DatabaseDataSet databaseDataSet = new DatabaseDataSet(entityContext);
+            databaseDataSet.loadEntities(new OperationGroup(mappings), new OperationGroup(), new OperationGroup());
+            int loaded = 0;
+            for (Entity entity : databaseDataSet.getOwnEntityContext().getEntities()) {
+                if (entity.getEntityType().getInterfaceName().equals(XmlMapping.class.getName()) && !entity.isFetchRequired()) {
+                    loaded++;
+                }
+            }
+            return new int[]{ mappings.size(), loaded };
+        }
+        finally {
+            entityContext.rollback();
+            entityContextServices.setDatabase(null);
+        }
+    }
+
+    private static HsqlDatabase newHsqlDatabase(final boolean stageKeys) throws Exception {
+        try (Connection connection = dataSource.getConnection()) {
+            return new HsqlDatabase(connection.getMetaData()) {
+                @Override
+                public String getArrayElementTypeName(JdbcType jdbcType) {
+                    return null;
+                }
+                @Override
+                public String getKeyStagingTableName(NodeType keyNodeType) {
+                    return stageKeys && keyNodeType.getJdbcType() == JdbcType.BIGINT ? "bdb_keys_bigint" : null;
+                }
+                @Override
+                public String getCreateKeyStagingTableSql(NodeType keyNodeType) {
+                    //the table is created by the test
+                    return "select count(*) from bdb_keys_bigint";
+                }
+            };
+        }
+    }
+
+    private static void executeUpdate(String sql) throws Exception {
+        try (Connection connection = dataSource.getConnection();
+             Statement stmt = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            stmt.executeUpdate(sql);
+        }
+    }
+
+    @Test
+    public void testDatabaseDataSetLoadsManyKeysWithAnArray() throws Exception {
+        int[] result = persistAndLoadMappings(null, 1200);
+        assertEquals(1205, result[0]);
+        assertEquals(result[0], result[1]);
+    }
+
+    @Test
+    public void testDatabaseDataSetLoadsManyKeysInChunks() throws Exception {
+        int[] result = persistAndLoadMappings(newHsqlDatabase(false), 1200);
+        assertEquals(1205, result[0]);
+        assertEquals(result[0], result[1]);
+    }
+
+    @Test
+    public void testDatabaseDataSetLoadsManyKeysFromAStagingTable() throws Exception {
+        executeUpdate("create table bdb_keys_bigint (batch_id integer not null, key_value bigint not null)");
+        try {
+            int[] result = persistAndLoadMappings(newHsqlDatabase(true), 1200);
+            assertEquals(1205, result[0]);
+            assertEquals(result[0], result[1]);
+        }
+        finally {
+            executeUpdate("drop table bdb_keys_bigint");
+        }
+    }
+
     private int countLoadedEntities(EntityContext entityContext) {
         int count = 0;
         for (Entity entity : entityContext.getEntities()) {
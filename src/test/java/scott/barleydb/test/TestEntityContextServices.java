@@ -25,11 +25,15 @@ package scott.barleydb.test;
  * #L%
  */
 
+import java.sql.Connection;
+
 import javax.sql.DataSource;
 
 import scott.barleydb.api.core.Environment;
+import scott.barleydb.api.exception.execution.jdbc.SortJdbcException;
 import scott.barleydb.server.jdbc.JdbcEntityContextServices;
 import scott.barleydb.server.jdbc.persist.Persister;
+import scott.barleydb.server.jdbc.vendor.Database;
 
 public class TestEntityContextServices extends JdbcEntityContextServices {
 
@@ -39,6 +43,8 @@ public class TestEntityContextServices extends JdbcEntityContextServices {
 
     private PersisterFactory fac;
 
+    private Database database;
+
     public TestEntityContextServices(DataSource dataSource) {
         super(dataSource);
     }
@@ -47,6 +53,21 @@ public class TestEntityContextServices extends JdbcEntityContextServices {
         this.fac = fac;
     }
 
+    /**
+     * @param database the database to use for new connections, null for the detected database.
+     */
+    public void setDatabase(Database database) {
+        this.database = database;
+    }
+
+    @Override
+    public Database getDatabaseInfo(Connection connection) throws SortJdbcException {
+        if (database != null) {
+            return database;
+        }
+        return super.getDatabaseInfo(connection);
+    }
+
     @Override
     protected Persister newPersister(Environment env, String namespace) {
         if (fac != null) {
@@ -38,6 +38,7 @@ import java.util.UUID;
 
 import org.example.etl.model.XmlSyntaxModel;
 import org.example.etl.query.QXmlSyntaxModel;
+import org.junit.Assume;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -144,6 +145,60 @@ public class TestGarbageCollection extends TestBase {
         waitForEntitiesToBeCollected(uuids, false);
     }
 
+    @Test
+    public void testCollectedEntitiesAreReclaimedOffTheLookupPath() throws Exception {
+        serverEntityContext.setAllowGarbageCollection(true);
+
+        insert100FullSyntaxes();
+
+        serverEntityContext.clear();
+
+        long reclaimedBefore = serverEntityContext.getNumberOfReclaimedEntities();
+        QueryResult<XmlSyntaxModel> result = serverEntityContext.performQuery(new QXmlSyntaxModel());
+        Collection<UUID> uuids = new LinkedList<>();
+        Iterator<XmlSyntaxModel> i = result.getList().iterator();
+        while(i.hasNext()) {
+            uuids.add(i.next().getEntity().getUuid());
+        }
+        i = null;
+        result = null;
+
+        assertEquals(200, uuids.size());
+
+        /*
+         * lookups treat collected entities as missing without reclaiming them.
+         */
+        long until = System.currentTimeMillis() + (1000 * 3);
+        boolean collected = false;
+        while(!collected && System.currentTimeMillis() < until) {
+            System.gc();
+            Thread.sleep(100);
+            long sweeps = serverEntityContext.getNumberOfReclaimSweeps();
+            collected = true;
+            for (UUID uuid: uuids) {
+                if (serverEntityContext.getEntityByUuid(uuid, false) != null) {
+                    collected = false;
+                }
+            }
+            assertEquals(sweeps, serverEntityContext.getNumberOfReclaimSweeps());
+        }
+        //the JVM is free to ignore System.gc()
+        Assume.assumeTrue("Entities not collected", collected);
+
+        /*
+         * the collected entity infos are enqueued by the garbage collector after they are cleared.
+         */
+        long sweeps = serverEntityContext.getNumberOfReclaimSweeps();
+        until = System.currentTimeMillis() + (1000 * 3);
+        while(serverEntityContext.getNumberOfReclaimedEntities() - reclaimedBefore < uuids.size() && System.currentTimeMillis() < until) {
+            serverEntityContext.reclaimCollectedEntities();
+            Thread.sleep(50);
+        }
+        assertTrue(serverEntityContext.getNumberOfReclaimedEntities() - reclaimedBefore >= uuids.size());
+        assertTrue(serverEntityContext.getNumberOfReclaimSweeps() > sweeps);
+        assertTrue(serverEntityContext.isCompletelyEmpty());
+    }
+
     private void waitForEntitiesToBeCollected(Collection<UUID> uuids, boolean expectedCollection) throws Exception {
         int requiredCollected = uuids.size();
         long until = System.currentTimeMillis() + (1000 * 3);
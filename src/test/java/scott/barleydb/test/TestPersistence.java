@@ -29,6 +29,10 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -62,9 +66,16 @@ import scott.barleydb.api.core.entity.*;
 import scott.barleydb.api.exception.BarleyDBException;
 import scott.barleydb.api.exception.execution.persist.EntityMissingException;
 import scott.barleydb.api.exception.execution.persist.OptimisticLockMismatchException;
+import scott.barleydb.api.exception.execution.persist.PrimaryKeyExistsException;
+import scott.barleydb.api.exception.execution.persist.SortPersistException;
+import scott.barleydb.api.persist.PersistAnalyser;
 import scott.barleydb.api.persist.PersistRequest;
+import scott.barleydb.api.query.RuntimeProperties;
+import scott.barleydb.api.query.RuntimeProperties.PersistValidation;
+import scott.barleydb.server.jdbc.helper.PreparedStatementCache;
 import scott.barleydb.server.jdbc.persist.Persister;
 import scott.barleydb.server.jdbc.resources.ConnectionResources;
+import scott.barleydb.server.jdbc.vendor.HsqlDatabase;
 import scott.barleydb.test.TestEntityContextServices.PersisterFactory;
 
 @RunWith(Parameterized.class)
@@ -656,6 +667,562 @@ public class TestPersistence extends TestRemoteClientBase {
         return (Long) ((ProxyController) object).getEntity().getOptimisticLock().getValue();
     }
 
+    /**
+     * Persists the request with a persister which records the entities remaining in the update group,
+     * which are the entities actually updated in the database.
+     */
+    private List<String> persistAndGetUpdatedEntities(PersistRequest persistRequest) throws Exception {
+        final List<String> updated = new ArrayList<>();
+        entityContextServices.setPersisterFactory(new PersisterFactory() {
+            @Override
+            public Persister newPersister(Environment env, String namespace) {
+                return new Persister(env, namespace, entityContextServices) {
+                    @Override
+                    public void persist(PersistAnalyser analyser, RuntimeProperties props) throws SortPersistException {
+                        super.persist(analyser, props);
+                        for (Entity entity: analyser.getUpdateGroup().getEntities()) {
+                            updated.add(describe(entity));
+                        }
+                    }
+                };
+            }
+        });
+        try {
+            theEntityContext.persist(persistRequest);
+        }
+        finally {
+            entityContextServices.setPersisterFactory(null);
+        }
+        return updated;
+    }
+
+    private static String describe(Entity entity) {
+        return entity.getEntityType().getInterfaceShortName() + ":" + entity.getKey().getValue();
+    }
+
+    private static XmlSyntaxModel loadSyntax(EntityContext entityContext, String name) throws Exception {
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.joinToMappings();
+        qsyntax.where(qsyntax.name().equal(name));
+        return entityContext.performQuery(qsyntax).getList().get(0);
+    }
+
+    private static HsqlDatabase newHsqlDatabase(final int maxParametersPerStatement) throws Exception {
+        try (Connection connection = dataSource.getConnection()) {
+            return new HsqlDatabase(connection.getMetaData()) {
+                @Override
+                public int getMaxParametersPerStatement() {
+                    return maxParametersPerStatement;
+                }
+            };
+        }
+    }
+
+    /**
+     * Persists the request and returns the statistics of the persist.
+     */
+    private Statistics persistAndGetStatistics(EntityContext entityContext, PersistRequest persistRequest, RuntimeProperties runtimeProperties) throws Exception {
+        final Statistics statistics = new Statistics();
+        entityContextServices.setPersisterFactory(new PersisterFactory() {
+            @Override
+            public Persister newPersister(Environment env, String namespace) {
+                return new Persister(env, namespace, entityContextServices) {
+                    @Override
+                    public void persist(PersistAnalyser analyser, RuntimeProperties props) throws SortPersistException {
+                        analyser.getEntityContext().getStatistics().clear();
+                        super.persist(analyser, props);
+                        statistics.add(analyser.getEntityContext().getStatistics());
+                    }
+                };
+            }
+        });
+        try {
+            entityContext.persist(persistRequest, runtimeProperties);
+        }
+        finally {
+            entityContextServices.setPersisterFactory(null);
+        }
+        return statistics;
+    }
+
+    /**
+     * Inserts new mappings for the syntax in their own entity context and returns the insert statistics of the persist.
+     */
+    private Statistics insertMappings(int numberOfMappings) throws Exception {
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        if (!theEntityContext.getAutocommit()) {
+            theEntityContext.commit();
+        }
+        EntityContext entityContext = new MiEntityContext(env);
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.name().equal("Scott's SyntaxModel"));
+        XmlSyntaxModel syntax = entityContext.performQuery(qsyntax).getList().get(0);
+
+        PersistRequest persistRequest = new PersistRequest();
+        for (int i=0; i<numberOfMappings; i++) {
+            XmlMapping mapping = entityContext.newModel(XmlMapping.class);
+            mapping.setSyntax(syntax);
+            mapping.setXpath("/new" + i);
+            mapping.setTargetFieldName("new" + i);
+            persistRequest.save(mapping);
+        }
+
+        Statistics statistics = persistAndGetStatistics(entityContext, persistRequest, null);
+
+        QXmlSyntaxModel qsyntaxWithMappings = new QXmlSyntaxModel();
+        qsyntaxWithMappings.joinToMappings();
+        qsyntaxWithMappings.where(qsyntaxWithMappings.name().equal("Scott's SyntaxModel"));
+        assertEquals(numberOfMappings + 3, new MiEntityContext(env).performQuery(qsyntaxWithMappings).getList().get(0).getMappings().size());
+        return statistics;
+    }
+
+    @Test
+    public void testMultiRowInsertsAreSplitIntoFullAndPowerOfTwoChunks() throws Exception {
+        assertEquals(256, ConnectionResources.getMandatoryForPersist(serverEntityContext).getDatabase().getMaxRowsPerInsert());
+        /*
+         * 519 rows are inserted as 256 + 256 + 4 + 2 + 1
+         */
+        Statistics statistics = insertMappings(256 * 2 + 7);
+        assertEquals(5, statistics.getNumberOfBatchInserts());
+        assertEquals(519, statistics.getNumberOfRecordInserts());
+        assertEquals(256, statistics.getLargestBatchSize());
+    }
+
+    @Test
+    public void testMultiRowInsertsRespectTheParameterLimit() throws Exception {
+        int columns = PreparedStatementCache.getInsertColumnCount(toEntity(theEntityContext.newModel(XmlMapping.class)));
+        entityContextServices.setDatabase(newHsqlDatabase(columns * 10 + columns - 1));
+        try {
+            /*
+             * at most 10 rows fit in a statement, 25 rows are inserted as 10 + 10 + 4 + 1
+             */
+            Statistics statistics = insertMappings(25);
+            assertEquals(4, statistics.getNumberOfBatchInserts());
+            assertEquals(25, statistics.getNumberOfRecordInserts());
+            assertEquals(10, statistics.getLargestBatchSize());
+        }
+        finally {
+            entityContextServices.setDatabase(null);
+        }
+    }
+
+    @Test
+    public void testBatchesAreSplitByTheMaximumBatchSize() throws Exception {
+        insertMappings(25);
+
+        EntityContext entityContext = new MiEntityContext(env);
+        XmlSyntaxModel syntax = loadSyntax(entityContext, "Scott's SyntaxModel");
+        List<XmlMapping> newMappings = new ArrayList<>();
+        for (XmlMapping mapping: syntax.getMappings()) {
+            if (mapping.getXpath().startsWith("/new")) {
+                newMappings.add(mapping);
+            }
+        }
+        assertEquals(25, newMappings.size());
+
+        /*
+         * 25 updates are executed as 10 + 10 + 5, the owning syntax may also get an optimistic lock update.
+         */
+        PersistRequest persistRequest = new PersistRequest();
+        for (XmlMapping mapping: newMappings) {
+            mapping.setXpath(mapping.getXpath() + "-updated");
+            persistRequest.update(mapping);
+        }
+        Statistics statistics = persistAndGetStatistics(entityContext, persistRequest, new RuntimeProperties().maxBatchSize(10));
+        assertTrue(statistics.getNumberOfBatchUpdates() >= 3);
+        assertTrue(statistics.getNumberOfRecordUpdates() >= 25);
+        assertEquals(10, statistics.getLargestBatchSize());
+
+        persistRequest = new PersistRequest();
+        for (XmlMapping mapping: newMappings) {
+            persistRequest.delete(mapping);
+        }
+        statistics = persistAndGetStatistics(entityContext, persistRequest, new RuntimeProperties().maxBatchSize(10));
+        assertEquals(3, statistics.getNumberOfBatchDeletes());
+        assertEquals(25, statistics.getNumberOfRecordDeletes());
+        assertEquals(10, statistics.getLargestBatchSize());
+
+        assertEquals(3, loadSyntax(new MiEntityContext(env), "Scott's SyntaxModel").getMappings().size());
+    }
+
+    @Test
+    public void testFailingMultiRowInsertIsAttributedToTheExistingEntity() throws Exception {
+        XmlSyntaxModel syntaxModel = buildSyntax();
+        theEntityContext.persist(new PersistRequest().save(syntaxModel));
+        Long existingMappingId = syntaxModel.getMappings().get(0).getId();
+        if (!theEntityContext.getAutocommit()) {
+            theEntityContext.commit();
+        }
+
+        theEntityContext.clear();
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.name().equal("Scott's SyntaxModel"));
+        XmlSyntaxModel syntax = theEntityContext.performQuery(qsyntax).getList().get(0);
+
+        /*
+         * four new mappings are inserted by a single statement, the third one has the key of an existing mapping.
+         */
+        PersistRequest persistRequest = new PersistRequest();
+        for (int i=0; i<4; i++) {
+            XmlMapping mapping = i == 2 ?
+                    theEntityContext.newModel(XmlMapping.class, existingMappingId, EntityConstraint.mustNotExistInDatabase()) :
+                    theEntityContext.newModel(XmlMapping.class);
+            mapping.setSyntax(syntax);
+            mapping.setXpath("/new" + i);
+            mapping.setTargetFieldName("new" + i);
+            persistRequest.save(mapping);
+        }
+        try {
+            theEntityContext.persist(persistRequest);
+            fail("expected PrimaryKeyExistsException");
+        }
+        catch(PrimaryKeyExistsException x) {
+            assertEquals(existingMappingId, x.getKey());
+        }
+    }
+
+    /**
+     * Persists the request with a persister which changes the uuid column of the syntax in the database
+     * just before the JDBC statements are executed, without changing its optimistic lock.
+     */
+    private void persistWithSneakUuidUpdate(PersistRequest persistRequest, RuntimeProperties props, final Long syntaxId) throws Exception {
+        entityContextServices.setPersisterFactory(new PersisterFactory() {
+            @Override
+            public Persister newPersister(Environment env, String namespace) {
+                return new Persister(env, namespace, entityContextServices) {
+                    @Override
+                    protected void preJdbcWorkHook() {
+                        try (Connection connection = dataSource.getConnection();
+                             PreparedStatement ps = connection.prepareStatement("update SS_SYNTAX_MODEL set UUID = 'sneaky' where ID = ?")) {
+                            connection.setAutoCommit(true);
+                            ps.setLong(1, syntaxId);
+                            assertEquals(1, ps.executeUpdate());
+                        }
+                        catch (SQLException x) {
+                            throw new IllegalStateException("Error in test harness, performing sneak update", x);
+                        }
+                    }
+                };
+            }
+        });
+        try {
+            theEntityContext.persist(persistRequest, props);
+        }
+        finally {
+            entityContextServices.setPersisterFactory(null);
+        }
+    }
+
+    @Test
+    public void testUpdateChangedColumnsOnlyWritesTheChangedColumnsAndTheOptimisticLock() throws Exception {
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        if (!theEntityContext.getAutocommit()) {
+            theEntityContext.commit();
+        }
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+        Long optimisticLock = getOptimisticLock(syntax);
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        persistWithSneakUuidUpdate(new PersistRequest().save(syntax), new RuntimeProperties().updateChangedColumnsOnly(true), syntax.getId());
+
+        /*
+         * the name and the optimistic lock were written, the uuid column was not.
+         */
+        XmlSyntaxModel reloaded = loadSyntax(theEntityContext.newEntityContextSharingTransaction(), "Scott's SyntaxModel - updated");
+        assertEquals("sneaky", reloaded.getUuid());
+        assertEquals(getOptimisticLock(syntax), getOptimisticLock(reloaded));
+        assertTrue(getOptimisticLock(reloaded) >= optimisticLock);
+    }
+
+    @Test
+    public void testUpdateChangedColumnsOnlyUpdatesJustTheOptimisticLockOfAnOwner() throws Exception {
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        if (!theEntityContext.getAutocommit()) {
+            theEntityContext.commit();
+        }
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+
+        /*
+         * the syntax is unchanged, only its optimistic lock is updated because its mapping changed.
+         */
+        syntax.getMappings().get(0).setXpath("/updated");
+        persistWithSneakUuidUpdate(new PersistRequest().save(syntax), new RuntimeProperties().updateChangedColumnsOnly(true), syntax.getId());
+
+        XmlSyntaxModel reloaded = loadSyntax(theEntityContext.newEntityContextSharingTransaction(), "Scott's SyntaxModel");
+        assertEquals("sneaky", reloaded.getUuid());
+        assertEquals(getOptimisticLock(syntax), getOptimisticLock(reloaded));
+        boolean updatedMapping = false;
+        for (XmlMapping mapping: reloaded.getMappings()) {
+            updatedMapping |= "/updated".equals(mapping.getXpath());
+        }
+        assertTrue(updatedMapping);
+    }
+
+    private void renameSyntaxAsOtherUser(String name, String newName) throws Exception {
+        EntityContext otherUser = theEntityContext.newEntityContextSharingTransaction();
+        XmlSyntaxModel otherSyntax = loadSyntax(otherUser, name);
+        otherSyntax.setName(newName);
+        otherUser.persist(new PersistRequest().save(otherSyntax));
+    }
+
+    private void deleteSyntaxAsOtherUser(String name) throws Exception {
+        EntityContext otherUser = theEntityContext.newEntityContextSharingTransaction();
+        otherUser.persist(new PersistRequest().delete(loadSyntax(otherUser, name)));
+    }
+
+    private boolean syntaxExists(String name) throws Exception {
+        QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+        qsyntax.where(qsyntax.name().equal(name));
+        return !theEntityContext.newEntityContextSharingTransaction().performQuery(qsyntax).getList().isEmpty();
+    }
+
+    private boolean supportsBatchUpdateCounts() throws Exception {
+        return ConnectionResources.getMandatoryForPersist(serverEntityContext).getDatabase().supportsBatchUpdateCounts();
+    }
+
+    @Test
+    public void testOptimisticLockValidationUpdatesAndDeletes() throws Exception {
+        RuntimeProperties props = new RuntimeProperties().persistValidation(PersistValidation.OPTIMISTIC_LOCK);
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        theEntityContext.persist(new PersistRequest().save(syntax), props);
+        assertTrue(syntaxExists("Scott's SyntaxModel - updated"));
+
+        theEntityContext.persist(new PersistRequest().delete(syntax), props);
+        assertFalse(syntaxExists("Scott's SyntaxModel - updated"));
+    }
+
+    @Test
+    public void testOptimisticLockValidationDetectsConcurrentUpdate() throws Exception {
+        RuntimeProperties props = new RuntimeProperties().persistValidation(PersistValidation.OPTIMISTIC_LOCK);
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+        renameSyntaxAsOtherUser("Scott's SyntaxModel", "Scott's SyntaxModel - other user");
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        try {
+            theEntityContext.persist(new PersistRequest().save(syntax), props);
+            fail("expected OptimisticLockMismatchException");
+        }
+        catch (OptimisticLockMismatchException x) {
+            assertEquals(toEntity(syntax).getKey().getValue(), x.getEntity().getKey().getValue());
+        }
+    }
+
+    @Test
+    public void testOptimisticLockValidationDetectsMissingEntity() throws Exception {
+        RuntimeProperties props = new RuntimeProperties().persistValidation(PersistValidation.OPTIMISTIC_LOCK);
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+        deleteSyntaxAsOtherUser("Scott's SyntaxModel");
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        try {
+            theEntityContext.persist(new PersistRequest().save(syntax), props);
+            fail("expected EntityMissingException");
+        }
+        catch (EntityMissingException x) {
+            assertEquals(syntax.getId(), x.getKey());
+        }
+    }
+
+    @Test
+    public void testUpdateCountsValidationUpdatesAndDeletes() throws Exception {
+        RuntimeProperties props = new RuntimeProperties().persistValidation(PersistValidation.UPDATE_COUNTS);
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        theEntityContext.persist(new PersistRequest().save(syntax), props);
+        assertTrue(syntaxExists("Scott's SyntaxModel - updated"));
+
+        theEntityContext.persist(new PersistRequest().delete(syntax), props);
+        assertFalse(syntaxExists("Scott's SyntaxModel - updated"));
+    }
+
+    /**
+     * Nothing is reloaded before the update, the zero update count makes handleUpdateNoop reload the syntax.
+     */
+    @Test
+    public void testUpdateCountsValidationDetectsConcurrentUpdateOnUpdate() throws Exception {
+        if (!supportsBatchUpdateCounts()) {
+            return;
+        }
+        RuntimeProperties props = new RuntimeProperties().persistValidation(PersistValidation.UPDATE_COUNTS);
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+        renameSyntaxAsOtherUser("Scott's SyntaxModel", "Scott's SyntaxModel - other user");
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        try {
+            theEntityContext.persist(new PersistRequest().save(syntax), props);
+            fail("expected OptimisticLockMismatchException");
+        }
+        catch (OptimisticLockMismatchException x) {
+            assertEquals(toEntity(syntax).getKey().getValue(), x.getEntity().getKey().getValue());
+        }
+    }
+
+    @Test
+    public void testUpdateCountsValidationDetectsMissingEntityOnUpdate() throws Exception {
+        if (!supportsBatchUpdateCounts()) {
+            return;
+        }
+        RuntimeProperties props = new RuntimeProperties().persistValidation(PersistValidation.UPDATE_COUNTS);
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+        deleteSyntaxAsOtherUser("Scott's SyntaxModel");
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        try {
+            theEntityContext.persist(new PersistRequest().save(syntax), props);
+            fail("expected EntityMissingException");
+        }
+        catch (EntityMissingException x) {
+            assertEquals(syntax.getId(), x.getKey());
+        }
+    }
+
+    /**
+     * The zero update count of the delete makes handleDeleteNoop reload the syntax.
+     */
+    @Test
+    public void testUpdateCountsValidationDetectsConcurrentUpdateOnDelete() throws Exception {
+        if (!supportsBatchUpdateCounts()) {
+            return;
+        }
+        RuntimeProperties props = new RuntimeProperties().persistValidation(PersistValidation.UPDATE_COUNTS);
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+        renameSyntaxAsOtherUser("Scott's SyntaxModel", "Scott's SyntaxModel - other user");
+
+        try {
+            theEntityContext.persist(new PersistRequest().delete(syntax), props);
+            fail("expected OptimisticLockMismatchException");
+        }
+        catch (OptimisticLockMismatchException x) {
+            assertEquals(toEntity(syntax).getKey().getValue(), x.getEntity().getKey().getValue());
+        }
+        assertTrue(syntaxExists("Scott's SyntaxModel - other user"));
+    }
+
+    @Test
+    public void testEntityUnchangedSinceLoadIsNotReloaded() throws Exception {
+        if (getter.testingRemoteClient()) {
+            /*
+             * the entities reaching the server are deserialized copies which do not track their changes.
+             */
+            return;
+        }
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+        Long optimisticLock = getOptimisticLock(syntax);
+
+        /*
+         * another user updates the syntax, reloading our syntax would now fail the optimistic lock check.
+         */
+        EntityContext otherUser = theEntityContext.newEntityContextSharingTransaction();
+        XmlSyntaxModel otherSyntax = loadSyntax(otherUser, "Scott's SyntaxModel");
+        otherSyntax.setName("Scott's SyntaxModel - other user");
+        otherUser.persist(new PersistRequest().save(otherSyntax));
+
+        assertTrue(persistAndGetUpdatedEntities(new PersistRequest().save(syntax)).isEmpty());
+        assertEquals(optimisticLock, getOptimisticLock(syntax));
+    }
+
+    @Test
+    public void testEntityChangedSinceLoadIsWritten() throws Exception {
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        assertTrue(toEntity(syntax).isModified());
+        assertEquals(Arrays.asList(describe(toEntity(syntax))), persistAndGetUpdatedEntities(new PersistRequest().save(syntax)));
+
+        XmlSyntaxModel reloaded = loadSyntax(theEntityContext.newEntityContextSharingTransaction(), "Scott's SyntaxModel - updated");
+        assertEquals(syntax.getId(), reloaded.getId());
+        assertEquals(getOptimisticLock(syntax), getOptimisticLock(reloaded));
+    }
+
+    @Test
+    public void testValueChangedBackToTheOriginalIsNotWritten() throws Exception {
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+        Long optimisticLock = getOptimisticLock(syntax);
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        assertTrue(toEntity(syntax).isModified());
+        syntax.setName("Scott's SyntaxModel");
+        assertFalse(toEntity(syntax).isModified());
+
+        assertTrue(persistAndGetUpdatedEntities(new PersistRequest().save(syntax)).isEmpty());
+        assertEquals(optimisticLock, getOptimisticLock(syntax));
+    }
+
+    @Test
+    public void testChangedOwnedEntityForcesOptimisticLockUpdateOfItsOwner() throws Exception {
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+        XmlMapping mapping = syntax.getMappings().get(0);
+
+        /*
+         * the syntax itself is unchanged, but it owns the mapping so its optimistic lock must be updated.
+         */
+        mapping.setXpath("/updated");
+        assertFalse(toEntity(syntax).isModified());
+        List<String> updated = persistAndGetUpdatedEntities(new PersistRequest().save(syntax));
+        assertEquals(2, updated.size());
+        assertTrue(updated.contains(describe(toEntity(syntax))));
+        assertTrue(updated.contains(describe(toEntity(mapping))));
+
+        XmlSyntaxModel reloaded = loadSyntax(theEntityContext.newEntityContextSharingTransaction(), "Scott's SyntaxModel");
+        assertEquals(getOptimisticLock(syntax), getOptimisticLock(reloaded));
+    }
+
+    @Test
+    public void testSecondSaveAfterASuccessfulPersistIsSkipped() throws Exception {
+        theEntityContext.persist(new PersistRequest().save(buildSyntax()));
+        theEntityContext.clear();
+        XmlSyntaxModel syntax = loadSyntax(theEntityContext, "Scott's SyntaxModel");
+
+        syntax.setName("Scott's SyntaxModel - updated");
+        theEntityContext.persist(new PersistRequest().save(syntax));
+        assertFalse(toEntity(syntax).isModified());
+        Long optimisticLock = getOptimisticLock(syntax);
+
+        assertTrue(persistAndGetUpdatedEntities(new PersistRequest().save(syntax)).isEmpty());
+        assertEquals(optimisticLock, getOptimisticLock(syntax));
+
+        if (getter.testingRemoteClient()) {
+            return;
+        }
+        /*
+         * the persist reset the change tracking, so even a concurrent update is not noticed by saving the unchanged syntax.
+         */
+        EntityContext otherUser = theEntityContext.newEntityContextSharingTransaction();
+        XmlSyntaxModel otherSyntax = loadSyntax(otherUser, "Scott's SyntaxModel - updated");
+        otherSyntax.setName("Scott's SyntaxModel - other user");
+        otherUser.persist(new PersistRequest().save(otherSyntax));
+
+        assertTrue(persistAndGetUpdatedEntities(new PersistRequest().save(syntax)).isEmpty());
+        assertEquals(optimisticLock, getOptimisticLock(syntax));
+    }
+
     @Test
     public void testDeleteSyntax1() throws Exception {
         /*
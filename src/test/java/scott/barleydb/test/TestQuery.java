@@ -23,26 +23,75 @@ package scott.barleydb.test;
  */
 
 import org.example.acl.query.QUser;
+import org.example.PlatformSpec;
+import org.example.etl.context.MiEntityContext;
 import org.example.etl.model.*;
 import org.example.etl.query.*;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
+import scott.barleydb.api.config.EntityType;
+import scott.barleydb.api.core.Environment;
 import scott.barleydb.api.core.QueryBatcher;
+import scott.barleydb.api.core.entity.Entity;
+import scott.barleydb.api.core.entity.EntityConstraint;
 import scott.barleydb.api.core.entity.EntityContext;
+import scott.barleydb.api.core.entity.EntityState;
+import scott.barleydb.api.core.entity.MemoryFootprint;
+import scott.barleydb.api.core.entity.Node;
+import scott.barleydb.api.core.entity.PrimitiveValueNode;
+import scott.barleydb.api.core.entity.ValueNode;
+import scott.barleydb.api.core.proxy.EntityProxy;
+import scott.barleydb.api.core.proxy.ProxyFactory;
+import scott.barleydb.api.core.types.JavaType;
+import scott.barleydb.api.core.types.JdbcType;
+import scott.barleydb.api.core.types.Nullable;
+import scott.barleydb.api.exception.execution.query.IllegalQueryStateException;
+import scott.barleydb.api.exception.model.ProxyCreationException;
+import scott.barleydb.api.persist.PersistRequest;
+import scott.barleydb.api.query.QueryObject;
+import scott.barleydb.api.query.RuntimeProperties;
+import scott.barleydb.api.specification.KeyGenSpec;
+import scott.barleydb.api.specification.NodeSpec;
 import scott.barleydb.api.stream.DataStream;
+import scott.barleydb.api.stream.EntityData;
+import scott.barleydb.api.stream.EntityDataSchema;
 import scott.barleydb.api.stream.ObjectInputStream;
+import scott.barleydb.api.stream.QueryEntityDataInputStream;
+import scott.barleydb.api.stream.QueryResultItem;
+import scott.barleydb.api.stream.RangePartitionedSpliterator;
+import scott.barleydb.bootstrap.EnvironmentDef;
 import scott.barleydb.server.jdbc.query.QueryResult;
-
+import scott.barleydb.server.jdbc.resources.ConnectionResources;
+import scott.barleydb.server.jdbc.resources.StatementCache;
+import scott.barleydb.server.jdbc.vendor.HsqlDatabase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static scott.barleydb.api.query.JoinType.INNER;
 import static scott.barleydb.api.query.JoinType.LEFT_OUTER;
 
@@ -166,6 +215,205 @@ public class TestQuery extends TestRemoteClientBase {
    }
 
 
+   @Test
+   public void testSyntaxModelQueryWithLimitOffsetAndSeek() throws Exception {
+      /*
+       * the mappings are a 1:N join, the limit must apply to the syntax models
+       */
+      QXmlSyntaxModel qxsm = new QXmlSyntaxModel();
+      qxsm.joinToMappings();
+      qxsm.orderBy(qxsm.id(), true);
+      qxsm.limit(1);
+      QueryResult<XmlSyntaxModel> firstPage = theEntityContext.performQuery(qxsm);
+      assertEquals(1, firstPage.getList().size());
+
+      qxsm = new QXmlSyntaxModel();
+      qxsm.joinToMappings();
+      qxsm.orderBy(qxsm.id(), true);
+      qxsm.offset(1).limit(1);
+      QueryResult<XmlSyntaxModel> secondPage = theEntityContext.performQuery(qxsm);
+      assertEquals(1, secondPage.getList().size());
+      assertTrue(firstPage.getList().get(0).getId() < secondPage.getList().get(0).getId());
+
+      qxsm = new QXmlSyntaxModel();
+      qxsm.orderBy(qxsm.id(), true);
+      qxsm.seekAfter(firstPage.getList().get(0).getId());
+      qxsm.limit(1);
+      QueryResult<XmlSyntaxModel> seekPage = theEntityContext.performQuery(qxsm);
+      assertEquals(1, seekPage.getList().size());
+      assertEquals(secondPage.getList().get(0).getId(), seekPage.getList().get(0).getId());
+   }
+
+   @Test
+   public void testCachedQueryTemplateBindsTheValuesOfEachQuery() throws Exception {
+      /*
+       * the condition is rendered twice, in the root key sub-query and in the outer query,
+       * the cached template must bind the values of the executing query to both.
+       */
+      env.getQueryTemplateCache().clear();
+      long hits = env.getQueryTemplateCache().getHitCount();
+      for (String name: Arrays.asList("syntax-xml-1", "syntax-xml-2", "syntax-xml-1")) {
+         QXmlSyntaxModel qxsm = new QXmlSyntaxModel();
+         qxsm.joinToMappings();
+         qxsm.where(qxsm.name().equal(name));
+         qxsm.orderBy(qxsm.id(), true);
+         qxsm.limit(1);
+         List<XmlSyntaxModel> result = theEntityContext.performQuery(qxsm).getList();
+         assertEquals(1, result.size());
+         assertEquals(name, result.get(0).getName());
+         assertEquals(3, result.get(0).getMappings().size());
+      }
+      assertEquals(hits + 2, env.getQueryTemplateCache().getHitCount());
+   }
+
+   private static List<Long> queryMappingIds(EntityContext entityContext, Set<Long> ids, boolean not) throws Exception {
+      QXmlMapping qm = new QXmlMapping();
+      qm.where(not ? qm.id().notIn(ids) : qm.id().in(ids));
+      qm.orderBy(qm.id(), true);
+      List<Long> result = new ArrayList<>();
+      for (XmlMapping mapping: entityContext.performQuery(qm).getList()) {
+         result.add(mapping.getId());
+      }
+      return result;
+   }
+
+   private static Set<Long> ids(Long ...ids) {
+      return new HashSet<>(Arrays.asList(ids));
+   }
+
+   @Test
+   public void testInListsAreBoundAsArrays() throws Exception {
+      env.getQueryTemplateCache().clear();
+      assertEquals(Arrays.asList(2L), queryMappingIds(theEntityContext, ids(2L), false));
+      /*
+       * the statement does not depend on the number of values.
+       */
+      long hits = env.getQueryTemplateCache().getHitCount();
+      assertEquals(Arrays.asList(1L, 3L, 5L), queryMappingIds(theEntityContext, ids(1L, 3L, 5L), false));
+      assertEquals(Arrays.asList(1L, 2L, 4L, 6L), queryMappingIds(theEntityContext, ids(1L, 2L, 4L, 6L), false));
+      assertEquals(hits + 2, env.getQueryTemplateCache().getHitCount());
+
+      assertEquals(Arrays.asList(2L, 4L, 6L), queryMappingIds(theEntityContext, ids(1L, 3L, 5L, 100L), true));
+      assertEquals(Collections.emptyList(), queryMappingIds(theEntityContext, ids(), false));
+      assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), queryMappingIds(theEntityContext, ids(), true));
+   }
+
+   @Test
+   public void testInListsAreSplitIntoPaddedBuckets() throws Exception {
+      final HsqlDatabase database;
+      try (Connection connection = dataSource.getConnection()) {
+         database = new HsqlDatabase(connection.getMetaData()) {
+            @Override
+            public String getArrayElementTypeName(JdbcType jdbcType) {
+               return null;
+            }
+            @Override
+            public int getMaxInListSize() {
+               return 4;
+            }
+         };
+      }
+      entityContextServices.setDatabase(database);
+      try {
+         EntityContext entityContext = new MiEntityContext(env);
+         env.getQueryTemplateCache().clear();
+         /*
+          * 3 and 4 values are bound by the same statement, the 3 values are padded to 4.
+          */
+         assertEquals(Arrays.asList(1L, 3L, 5L), queryMappingIds(entityContext, ids(1L, 3L, 5L), false));
+         long hits = env.getQueryTemplateCache().getHitCount();
+         assertEquals(Arrays.asList(1L, 2L, 4L, 6L), queryMappingIds(entityContext, ids(1L, 2L, 4L, 6L), false));
+         assertEquals(hits + 1, env.getQueryTemplateCache().getHitCount());
+
+         /*
+          * 6 values are split into a chunk of 4 and a chunk of 2.
+          */
+         assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), queryMappingIds(entityContext, ids(1L, 2L, 3L, 4L, 5L, 6L), false));
+         assertEquals(Arrays.asList(2L), queryMappingIds(entityContext, ids(1L, 3L, 4L, 5L, 6L), true));
+         assertEquals(Collections.emptyList(), queryMappingIds(entityContext, ids(), false));
+      }
+      finally {
+         entityContextServices.setDatabase(null);
+      }
+   }
+
+   @Test
+   public void testQueryStatementsAreReusedWithinTheTransaction() throws Exception {
+      StatementCache statementCache = ConnectionResources.get(theEntityContext).getStatementCache();
+      for (String name: Arrays.asList("syntax-xml-1", "syntax-xml-2")) {
+         QXmlSyntaxModel qxsm = new QXmlSyntaxModel();
+         qxsm.where(qxsm.name().equal(name));
+         long hits = statementCache.getHitCount();
+         List<XmlSyntaxModel> result = theEntityContext.performQuery(qxsm).getList();
+         assertEquals(1, result.size());
+         assertEquals(name, result.get(0).getName());
+         if (name.equals("syntax-xml-2")) {
+            assertEquals(hits + 1, statementCache.getHitCount());
+         }
+      }
+      assertTrue(statementCache.size() > 0);
+   }
+
+   @Test
+   public void testHashGraphAssemblyBuildsTheSameGraphs() throws Exception {
+      List<String> rowOrder = loadSyntaxGraphs(new RuntimeProperties().hashGraphAssembly(false));
+      theEntityContext.clear();
+      List<String> byKey = loadSyntaxGraphs(new RuntimeProperties().hashGraphAssembly(true));
+      assertEquals(2, rowOrder.size());
+      assertEquals(rowOrder, byKey);
+   }
+
+   private List<String> loadSyntaxGraphs(RuntimeProperties props) throws Exception {
+      QXmlSyntaxModel qxsm = new QXmlSyntaxModel();
+      qxsm.joinToUser();
+      qxsm.joinToStructure();
+      qxsm.joinToMappings();
+      qxsm.orderBy(qxsm.id(), true);
+      List<String> graphs = new ArrayList<>();
+      for (XmlSyntaxModel syntax: theEntityContext.performQuery(qxsm, props).getList()) {
+         graphs.add(describe(syntax));
+      }
+      return graphs;
+   }
+
+   private static String describe(XmlSyntaxModel syntax) {
+      List<String> xpaths = new ArrayList<>();
+      for (XmlMapping mapping: syntax.getMappings()) {
+         xpaths.add(mapping.getXpath());
+      }
+      Collections.sort(xpaths);
+      return syntax.getName() + " " + syntax.getUser().getName() + " " + syntax.getStructure().getName() + " " + xpaths;
+   }
+
+   @Test
+   public void testOrderingByToManyJoinIsRejectedWithLimit() throws Exception {
+      /*
+       * each syntax model row is repeated for each mapping, so the page cannot be selected by the mapping columns
+       */
+      QXmlSyntaxModel qxsm = new QXmlSyntaxModel();
+      QXmlMapping qmapping = qxsm.joinToMappings();
+      qxsm.orderBy(qmapping.xpath(), true);
+      qxsm.limit(1);
+      try {
+         theEntityContext.performQuery(qxsm);
+         fail("expected IllegalQueryStateException");
+      }
+      catch(IllegalQueryStateException x) {
+         //expected
+      }
+
+      /*
+       * ordering by a to one join is fine
+       */
+      qxsm = new QXmlSyntaxModel();
+      QUser quser = qxsm.joinToUser();
+      qxsm.joinToMappings();
+      qxsm.orderBy(quser.name(), true);
+      qxsm.orderBy(qxsm.id(), true);
+      qxsm.limit(1);
+      assertEquals(1, theEntityContext.performQuery(qxsm).getList().size());
+   }
+
    @Test
     public void testSyntaxModelComplexQuery() throws Exception {
         System.out.println();
@@ -652,6 +900,619 @@ public class TestQuery extends TestRemoteClientBase {
         assertEquals(autoCommitMode, serverEntityContext.getAutocommit());
     }
 
+    @Test
+    public void testParallelBatchQuery() throws Exception {
+        /*
+         * parallel execution only applies outside of a transaction.
+         */
+        EntityContext entityContext = new MiEntityContext(env);
+        QXmlSyntaxModel syntax1 = new QXmlSyntaxModel();
+        syntax1.joinToMappings();
+        syntax1.where(syntax1.name().equal("syntax-xml-1"));
+        QXmlSyntaxModel syntax2 = new QXmlSyntaxModel();
+        syntax2.joinToMappings();
+        syntax2.where(syntax2.name().equal("syntax-xml-2"));
+        QTemplate templatesQuery = new QTemplate();
+        templatesQuery.joinToBusinessType();
+
+        QueryBatcher qBatch = new QueryBatcher();
+        qBatch.addQuery(syntax1, syntax2, templatesQuery);
+        entityContext.performQueries(qBatch, new RuntimeProperties().parallelQueryConnections(3));
+
+        /*
+         * the results are in batcher order.
+         */
+        List<XmlSyntaxModel> result1 = qBatch.getResult(0, XmlSyntaxModel.class).getList();
+        assertEquals(1, result1.size());
+        assertEquals("syntax-xml-1", result1.get(0).getName());
+        assertEquals(3, result1.get(0).getMappings().size());
+        List<XmlSyntaxModel> result2 = qBatch.getResult(1, XmlSyntaxModel.class).getList();
+        assertEquals(1, result2.size());
+        assertEquals("syntax-xml-2", result2.get(0).getName());
+        assertEquals(3, result2.get(0).getMappings().size());
+        assertEquals(theEntityContext.performQuery(new QTemplate()).getList().size(), qBatch.getResult(2, Template.class).getList().size());
+        assertTrue(entityContext.getAutocommit());
+    }
+
+   @Test
+   public void testAsyncQueries() throws Exception {
+      EntityContext ctx = new MiEntityContext(env);
+      QXmlSyntaxModel syntax = new QXmlSyntaxModel();
+      syntax.joinToMappings();
+      syntax.where(syntax.name().equal("syntax-xml-1"));
+      CompletableFuture<QueryResult<XmlSyntaxModel>> future = ctx.performQueryAsync(syntax);
+
+      QueryBatcher qBatch = new QueryBatcher();
+      qBatch.addQuery(new QXmlSyntaxModel(), new QTemplate());
+      CompletableFuture<QueryBatcher> batchFuture = ctx.performQueriesAsync(qBatch);
+
+      /*
+       * the caller's context and query batcher are only changed by the merge.
+       */
+      QueryResult<XmlSyntaxModel> asyncResult = future.get(30, TimeUnit.SECONDS);
+      QueryBatcher asyncResults = batchFuture.get(30, TimeUnit.SECONDS);
+      assertTrue(ctx.isCompletelyEmpty());
+      assertTrue(qBatch.getResults().isEmpty());
+      assertNotSame(ctx, asyncResult.getEntityContext());
+
+      QueryResult<XmlSyntaxModel> merged = ctx.mergeQueryResult(asyncResult);
+      assertSame(ctx, merged.getEntityContext());
+      List<XmlSyntaxModel> result = merged.getList();
+      assertEquals(1, result.size());
+      assertEquals("syntax-xml-1", result.get(0).getName());
+      assertEquals(3, result.get(0).getMappings().size());
+      assertSame(result.get(0), ctx.getModel(XmlSyntaxModel.class, 1L, true));
+
+      ctx.mergeQueryResults(asyncResults, qBatch);
+      assertSame(ctx, qBatch.getResult(0, XmlSyntaxModel.class).getEntityContext());
+      assertEquals(ctx.performQuery(new QXmlSyntaxModel()).getList().size(), qBatch.getResult(0, XmlSyntaxModel.class).getList().size());
+      assertEquals(ctx.performQuery(new QTemplate()).getList().size(), qBatch.getResult(1, Template.class).getList().size());
+   }
+
+   @Test
+   public void testAsyncQueryFailureCompletesTheFuture() throws Exception {
+      QXmlSyntaxModel qxsm = new QXmlSyntaxModel();
+      QXmlMapping qmapping = qxsm.joinToMappings();
+      qxsm.orderBy(qmapping.xpath(), true);
+      qxsm.limit(1);
+      try {
+         theEntityContext.performQueryAsync(qxsm).get(30, TimeUnit.SECONDS);
+         fail("expected IllegalQueryStateException");
+      }
+      catch(ExecutionException x) {
+         assertTrue(x.getCause() instanceof IllegalQueryStateException);
+      }
+   }
+
+   @Test
+   public void testParallelStreamedQuery() throws Exception {
+      List<Long> ids = new ArrayList<>();
+      try (Stream<XmlMapping> stream = theEntityContext.streamObjectQueryParallel(new QXmlMapping(), null, false, 4)) {
+         stream.map(XmlMapping::getId).forEachOrdered(ids::add);
+      }
+      Collections.sort(ids);
+      assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), ids);
+
+      QXmlMapping qmapping = new QXmlMapping();
+      qmapping.where(qmapping.xpath().equal("no-such-xpath"));
+      try (Stream<XmlMapping> stream = theEntityContext.streamObjectQueryParallel(qmapping, null, false, 4)) {
+         assertEquals(0, stream.count());
+      }
+   }
+
+   /**
+    * A spec with a DATE primary key, for partitioning by date.
+    */
+   public static class DateKeySpec extends PlatformSpec {
+      public DateKeySpec() {
+         super("org.example.datekeys");
+      }
+
+      @Override
+      public String createFullyQualifiedModelClassName(Class<?> entityDefinition) {
+         return DatedRate.class.getName();
+      }
+
+      @scott.barleydb.build.specification.staticspec.Entity("DK_RATE")
+      public static class Rate {
+         public static NodeSpec day = datePrimaryKey();
+
+         public static NodeSpec name = name();
+      }
+
+      private static NodeSpec datePrimaryKey() {
+         NodeSpec spec = new NodeSpec();
+         spec.setColumnName("RATE_DAY");
+         spec.setJavaType(JavaType.SQL_DATE);
+         spec.setJdbcType(JdbcType.DATE);
+         spec.setPrimaryKey(true);
+         spec.setKeyGenSpec(KeyGenSpec.CLIENT);
+         spec.setNullable(Nullable.NOT_NULL);
+         return spec;
+      }
+   }
+
+   public interface DatedRate {
+      java.sql.Date getDay();
+      String getName();
+   }
+
+   @Test
+   public void testParallelStreamedQueryWithADateKey() throws Exception {
+      /*
+       * the rates live in their own database, loaded through dynamic proxies
+       */
+      EnvironmentDef envDef = EnvironmentDef.build()
+            .withDataSource()
+               .withDriver(db.getDriverClassName())
+               .withUser(db.getUser())
+               .withPassword(db.getPassword())
+               .withUrl("jdbc:hsqldb:mem:datekeys")
+               .end()
+            .withSpecs(DateKeySpec.class)
+            .withNoClasses()
+            .withDroppingSchema(true)
+            .withSchemaCreation(true);
+      Environment dateEnv = envDef.create();
+      dateEnv.getDefinitions("org.example.datekeys").registerProxyFactory(new ProxyFactory() {
+         private static final long serialVersionUID = 1L;
+         @Override
+         public <T> T newProxy(Entity entity) throws ProxyCreationException {
+            try {
+               return EntityProxy.generateProxy(DatedRate.class.getClassLoader(), entity);
+            }
+            catch(ClassNotFoundException x) {
+               throw new ProxyCreationException("Could not create proxy for " + entity, x);
+            }
+         }
+      });
+
+      LocalDate first = LocalDate.of(2020, 1, 1);
+      try (Connection connection = envDef.getDataSource().getConnection();
+           PreparedStatement ps = connection.prepareStatement("insert into DK_RATE (RATE_DAY, NAME) values (?, ?)")) {
+         for (int i=0; i<40; i++) {
+            ps.setDate(1, java.sql.Date.valueOf(first.plusDays(i)));
+            ps.setString(2, "rate" + i);
+            ps.addBatch();
+         }
+         ps.executeBatch();
+      }
+
+      /*
+       * the millisecond midpoint of a date range falls during a day, each day must still be streamed exactly once.
+       */
+      List<LocalDate> days = new ArrayList<>();
+      EntityContext ctx = new EntityContext(dateEnv, "org.example.datekeys");
+      try (Stream<DatedRate> stream = ctx.streamObjectQueryParallel(new QueryObject<DatedRate>(DatedRate.class), null, false, 8)) {
+         stream.map(rate -> rate.getDay().toLocalDate()).forEachOrdered(days::add);
+      }
+      Collections.sort(days);
+      assertEquals(40, days.size());
+      for (int i=0; i<40; i++) {
+         assertEquals(first.plusDays(i), days.get(i));
+      }
+   }
+
+   @Test
+   public void testRangePartitionsCoverTheFullKeyRange() throws Exception {
+      /*
+       * each partition streams its own key range, the width of the full range overflows a long.
+       */
+      RangePartitionedSpliterator<long[]> spliterator = new RangePartitionedSpliterator<>(
+            (fromKey, toKey) -> new DataStream<long[]>() {
+               private boolean read;
+               @Override
+               public long[] read() {
+                  if (read) {
+                     return null;
+                  }
+                  read = true;
+                  return new long[]{fromKey, toKey};
+               }
+               @Override
+               public void close() {}
+            }, Long.MIN_VALUE, Long.MAX_VALUE, 4);
+      assertEquals(Long.MAX_VALUE, spliterator.estimateSize());
+
+      List<Spliterator<long[]>> partitions = new ArrayList<>();
+      partitions.add(spliterator);
+      for (int i=0; i<partitions.size(); i++) {
+         Spliterator<long[]> lowerHalf;
+         while((lowerHalf = partitions.get(i).trySplit()) != null) {
+            partitions.add(lowerHalf);
+         }
+      }
+      assertEquals(4, partitions.size());
+
+      List<long[]> ranges = new ArrayList<>();
+      for (Spliterator<long[]> partition: partitions) {
+         partition.forEachRemaining(ranges::add);
+      }
+      ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+      assertEquals(4, ranges.size());
+      assertEquals(Long.MIN_VALUE, ranges.get(0)[0]);
+      assertEquals(Long.MAX_VALUE, ranges.get(ranges.size() - 1)[1]);
+      for (int i=1; i<ranges.size(); i++) {
+         assertTrue(ranges.get(i - 1)[0] <= ranges.get(i - 1)[1]);
+         assertEquals(ranges.get(i - 1)[1] + 1, ranges.get(i)[0]);
+      }
+      spliterator.close();
+   }
+
+   @Test
+   public void testEntitiesAreFoundByKeyPerEntityType() throws Exception {
+      EntityContext ctx = new MiEntityContext(env);
+      //only the keys are held by the test
+      ctx.setAllowGarbageCollection(false);
+      List<Long> keys = new ArrayList<>();
+      for (long key = -1000; key <= 1000; key++) {
+         keys.add(key * 7919);
+      }
+      keys.add(Long.MIN_VALUE);
+      keys.add(Long.MAX_VALUE);
+      for (Long key: keys) {
+         ctx.newModel(XmlMapping.class, key, EntityConstraint.noConstraints());
+      }
+      /*
+       * the same key of another entity type is a different entity.
+       */
+      XmlSyntaxModel syntax = ctx.newModel(XmlSyntaxModel.class, 0L, EntityConstraint.noConstraints());
+      assertSame(syntax, ctx.getModel(XmlSyntaxModel.class, 0L, true));
+      assertEquals(0L, (long)ctx.getModel(XmlMapping.class, 0L, true).getId());
+
+      for (Long key: keys) {
+         assertEquals(key, ctx.getModel(XmlMapping.class, key, true).getId());
+      }
+      assertNull(ctx.getModel(XmlMapping.class, 1L, false));
+
+      /*
+       * removing every other key must leave the rest of the probe sequences intact.
+       */
+      for (int i=0; i<keys.size(); i+=2) {
+         ctx.remove(ctx.getModel(XmlMapping.class, keys.get(i), true).getEntity());
+      }
+      for (int i=0; i<keys.size(); i++) {
+         XmlMapping mapping = ctx.getModel(XmlMapping.class, keys.get(i), false);
+         if (i % 2 == 0) {
+            assertNull(mapping);
+         }
+         else {
+            assertEquals(keys.get(i), mapping.getId());
+         }
+      }
+
+      /*
+       * an entity is found by its key once the key is set.
+       */
+      XmlMapping mapping = ctx.newModel(XmlMapping.class, null, EntityConstraint.noConstraints());
+      mapping.getEntity().getKey().setValue(1L);
+      assertSame(mapping, ctx.getModel(XmlMapping.class, 1L, true));
+
+      ctx.removeAll(XmlMapping.class);
+      assertNull(ctx.getModel(XmlMapping.class, 1L, false));
+      assertSame(syntax, ctx.getModel(XmlSyntaxModel.class, 0L, true));
+   }
+
+   @Test
+   public void testPrimitiveValueNodes() throws Exception {
+      QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+      qsyntax.where(qsyntax.name().equal("syntax-xml-1"));
+      XmlSyntaxModel syntax = theEntityContext.performQuery(qsyntax).getSingleResult();
+      Entity entity = syntax.getEntity();
+
+      ValueNode modifiedAt = entity.getChild("modifiedAt", ValueNode.class, true);
+      assertTrue(modifiedAt instanceof PrimitiveValueNode);
+      assertEquals((long)syntax.getModifiedAt(), modifiedAt.getLongValue());
+      assertEquals((long)syntax.getId(), entity.getKey().getLongValue());
+      //enum nodes keep the boxed value
+      assertFalse(entity.getChild("structureType", ValueNode.class, true) instanceof PrimitiveValueNode);
+
+      modifiedAt.setLongValue(Long.MIN_VALUE);
+      assertFalse(modifiedAt.isNull());
+      assertEquals(Long.valueOf(Long.MIN_VALUE), syntax.getModifiedAt());
+      //the value is only held as a primitive, each read boxes it again
+      assertNotSame(syntax.getModifiedAt(), syntax.getModifiedAt());
+
+      modifiedAt.setValue(null);
+      assertTrue(modifiedAt.isNull());
+      assertNull(syntax.getModifiedAt());
+      try {
+         modifiedAt.getLongValue();
+         fail("expected IllegalStateException");
+      }
+      catch(IllegalStateException x) {}
+   }
+
+   @Test
+   public void testLeastRecentlyUsedCleanEntitiesAreUnloaded() throws Exception {
+      EntityContext ctx = new MiEntityContext(env);
+      ctx.setAllowGarbageCollection(false);
+      ctx.setMaxLoadedEntities(3);
+
+      QXmlMapping qmapping = new QXmlMapping();
+      qmapping.orderBy(qmapping.id(), true);
+      List<XmlMapping> mappings = ctx.performQuery(qmapping).getList();
+      assertEquals(6, mappings.size());
+      assertEquals(3, countLoaded(mappings));
+      assertEquals(3, ctx.getNumberOfEvictedEntities());
+
+      ctx.setMaxLoadedEntities(0);
+      mappings = ctx.performQuery(qmapping).getList();
+      assertEquals(6, countLoaded(mappings));
+      List<String> xpaths = new ArrayList<>();
+      for (XmlMapping mapping: mappings) {
+         xpaths.add(mapping.getXpath());
+      }
+
+      /*
+       * the modified mapping is kept and the most recently read mapping is kept.
+       */
+      mappings.get(0).setXpath("changed");
+      mappings.get(5).getXpath();
+      ctx.setMaxLoadedEntities(2);
+      assertEquals(4, ctx.evictIfOverBudget());
+      assertEquals(7, ctx.getNumberOfEvictedEntities());
+      assertTrue(mappings.get(0).getEntity().isLoaded());
+      assertTrue(mappings.get(5).getEntity().isLoaded());
+      assertEquals(2, countLoaded(mappings));
+
+      /*
+       * an unloaded entity keeps it's identity and is fetched again on access.
+       */
+      assertSame(mappings.get(1), ctx.getModel(XmlMapping.class, mappings.get(1).getId(), true));
+      assertEquals(xpaths.get(1), mappings.get(1).getXpath());
+      assertTrue(mappings.get(1).getEntity().isLoaded());
+      assertEquals("changed", mappings.get(0).getXpath());
+   }
+
+   private static int countLoaded(List<XmlMapping> mappings) {
+      int count = 0;
+      for (XmlMapping mapping: mappings) {
+         if (mapping.getEntity().isLoaded()) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   @Test
+   public void testMemoryFootprintByEntityType() throws Exception {
+      EntityContext ctx = new MiEntityContext(env);
+      ctx.setAllowGarbageCollection(false);
+      assertEquals(0, ctx.getMemoryFootprint().getTotalEntities());
+
+      QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+      qsyntax.joinToMappings();
+      List<XmlSyntaxModel> syntaxes = ctx.performQuery(qsyntax).getList();
+      assertEquals(2, syntaxes.size());
+
+      MemoryFootprint footprint = ctx.getMemoryFootprint();
+      MemoryFootprint.TypeFootprint mappings = footprint.getType(XmlMapping.class.getName());
+      assertEquals(6, mappings.getEntities());
+      assertEquals(6, mappings.getEntities(EntityState.LOADED));
+      assertTrue(mappings.getEstimatedBytes() > 0);
+      MemoryFootprint.TypeFootprint syntaxTypes = footprint.getType(XmlSyntaxModel.class.getName());
+      assertEquals(2, syntaxTypes.getEntities(EntityState.LOADED));
+      //the result list holds the proxies of the syntaxes
+      assertEquals(2, syntaxTypes.getProxies());
+      assertTrue(footprint.toString().contains(XmlMapping.class.getName()));
+
+      int totalEntities = 0;
+      long totalBytes = 0;
+      for (MemoryFootprint.TypeFootprint type: footprint.getTypes()) {
+         totalEntities += type.getEntities();
+         totalBytes += type.getEstimatedBytes();
+      }
+      assertEquals(ctx.size(), totalEntities);
+      assertEquals(totalBytes, footprint.getTotalEstimatedBytes());
+
+      /*
+       * loading more entities increases the estimate.
+       */
+      ctx.performQuery(new QTemplate());
+      assertTrue(ctx.getMemoryFootprint().getTotalEstimatedBytes() > totalBytes);
+   }
+
+   @Test
+   public void testRepeatedStringsAreDeduplicated() throws Exception {
+      QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+      qsyntax.where(qsyntax.name().equal("syntax-xml-1"));
+      XmlSyntaxModel syntax = theEntityContext.performQuery(qsyntax).getSingleResult();
+      PersistRequest request = new PersistRequest();
+      for (int i=0; i<60; i++) {
+         XmlMapping mapping = theEntityContext.newModel(XmlMapping.class);
+         mapping.setSyntax(syntax);
+         mapping.setXpath("/dedup" + i);
+         mapping.setTargetFieldName("target" + (i % 3));
+         request.save(mapping);
+      }
+      theEntityContext.persist(request);
+
+      EntityContext reader = theEntityContext.newEntityContextSharingTransaction();
+      QXmlMapping qmapping = new QXmlMapping();
+      qmapping.orderBy(qmapping.id(), true);
+      List<XmlMapping> mappings = reader.performQuery(qmapping, new RuntimeProperties().deduplicateStrings(true)).getList();
+
+      String targets[] = new String[3];
+      int i = 0;
+      for (XmlMapping mapping: mappings) {
+         if (!mapping.getXpath().startsWith("/dedup")) {
+            continue;
+         }
+         assertEquals("/dedup" + i, mapping.getXpath());
+         assertEquals("target" + (i % 3), mapping.getTargetFieldName());
+         if (targets[i % 3] == null) {
+            targets[i % 3] = mapping.getTargetFieldName();
+         }
+         assertSame(targets[i % 3], mapping.getTargetFieldName());
+         i++;
+      }
+      assertEquals(60, i);
+   }
+
+   @Test
+   public void testStreamedEntityDataIsCompact() throws Exception {
+      QXmlMapping qmapping = new QXmlMapping();
+      qmapping.orderBy(qmapping.id(), true);
+      EntityType mappingType = theEntityContext.getDefinitions().getEntityTypeMatchingInterface(XmlMapping.class.getName(), true);
+      List<EntityData> rows = new ArrayList<>();
+      try (QueryEntityDataInputStream in = theEntityContext.streamQueryEntityData(qmapping, null)) {
+         QueryResultItem item;
+         while((item = in.read()) != null) {
+            for (EntityData entityData: item.getObjectGraph().getEntityData()) {
+               if (entityData.getEntityType().equals(mappingType.getInterfaceName())) {
+                  rows.add(entityData);
+               }
+            }
+         }
+      }
+      assertEquals(6, rows.size());
+
+      /*
+       * every row of the query shares the schema of the entity loader.
+       */
+      EntityDataSchema schema = rows.get(0).getSchema();
+      int xpathSlot = schema.getSlot("xpath");
+      assertTrue(xpathSlot != -1);
+      long id = 1;
+      for (EntityData entityData: rows) {
+         assertTrue(entityData.isCompact());
+         assertSame(schema, entityData.getSchema());
+         assertEquals(id++, entityData.getKey(mappingType));
+         assertEquals(entityData.getValue(xpathSlot), entityData.getValue("xpath"));
+      }
+
+      /*
+       * the map view converts the data.
+       */
+      EntityData entityData = rows.get(0);
+      Object xpath = entityData.getValue("xpath");
+      assertEquals(xpath, entityData.getData().get("xpath"));
+      assertFalse(entityData.isCompact());
+      assertEquals(schema.size(), entityData.getData().size());
+      assertEquals(1L, entityData.getKey(mappingType));
+      assertEquals(xpath, entityData.getValue("xpath"));
+   }
+
+   @Test
+   public void testSecondaryIndexes() throws Exception {
+      EntityContext ctx = new MiEntityContext(env);
+      ctx.setAllowGarbageCollection(false);
+      assertTrue(ctx.addIndex(XmlMapping.class, "syntax"));
+      assertFalse(ctx.addIndex(XmlMapping.class, "syntax"));
+
+      QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+      qsyntax.joinToMappings();
+      qsyntax.orderBy(qsyntax.id(), true);
+      List<XmlSyntaxModel> syntaxes = ctx.performQuery(qsyntax).getList();
+      XmlSyntaxModel syntax1 = syntaxes.get(0);
+      XmlSyntaxModel syntax2 = syntaxes.get(1);
+
+      //by the referenced proxy, entity or key
+      assertEquals(ids(1L, 2L, 3L), mappingIds(ctx.getByIndex(XmlMapping.class, "syntax", syntax1)));
+      assertEquals(ids(4L, 5L, 6L), mappingIds(ctx.getByIndex(XmlMapping.class, "syntax", syntax2.getEntity())));
+      assertEquals(ids(4L, 5L, 6L), mappingIds(ctx.getByIndex(XmlMapping.class, "syntax", 2L)));
+      assertTrue(ctx.getByIndex(XmlMapping.class, "syntax", 99L).isEmpty());
+
+      /*
+       * an index declared later covers the entities already in the context.
+       */
+      assertTrue(ctx.addIndex(XmlMapping.class, "targetFieldName"));
+      XmlMapping mapping1 = ctx.getModel(XmlMapping.class, 1L, true);
+      assertEquals(ids(1L), mappingIds(ctx.getByIndex(XmlMapping.class, "targetFieldName", "tfn11")));
+
+      mapping1.setTargetFieldName("tfn21");
+      mapping1.setSyntax(syntax2);
+      assertTrue(ctx.getByIndex(XmlMapping.class, "targetFieldName", "tfn11").isEmpty());
+      assertEquals(ids(1L, 4L), mappingIds(ctx.getByIndex(XmlMapping.class, "targetFieldName", "tfn21")));
+      assertEquals(ids(2L, 3L), mappingIds(ctx.getByIndex(XmlMapping.class, "syntax", syntax1)));
+      assertEquals(ids(1L, 4L, 5L, 6L), mappingIds(ctx.getByIndex(XmlMapping.class, "syntax", syntax2)));
+
+      /*
+       * new entities are indexed before they have a key, removed entities are dropped.
+       */
+      XmlMapping newMapping = ctx.newModel(XmlMapping.class);
+      newMapping.setSyntax(syntax1);
+      assertEquals(3, ctx.getByIndex(XmlMapping.class, "syntax", syntax1).size());
+      assertTrue(ctx.getByIndex(XmlMapping.class, "syntax", syntax1).contains(newMapping));
+      ctx.remove(ctx.getModel(XmlMapping.class, 2L, true).getEntity());
+      assertEquals(2, ctx.getByIndex(XmlMapping.class, "syntax", syntax1).size());
+
+      try {
+         ctx.getByIndex(XmlMapping.class, "xpath", "sfn11");
+         fail("expected IllegalStateException");
+      }
+      catch(IllegalStateException x) {}
+   }
+
+   private static Set<Long> mappingIds(Collection<XmlMapping> mappings) {
+      Set<Long> ids = new HashSet<>();
+      for (XmlMapping mapping: mappings) {
+         ids.add(mapping.getId());
+      }
+      return ids;
+   }
+
+   @Test
+   public void testDecodedColumnValues() throws Exception {
+      /*
+       * decodes strings, enums, timestamps as longs, foreign keys and null foreign keys across joined tables.
+       */
+      QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+      qsyntax.joinToUser();
+      qsyntax.joinToStructure();
+      QXmlMapping qmapping = qsyntax.joinToMappings();
+      qsyntax.where(qsyntax.name().equal("syntax-xml-1"));
+      qsyntax.orderBy(qmapping.id(), true);
+      XmlSyntaxModel syntax = theEntityContext.performQuery(qsyntax).getSingleResult();
+
+      assertEquals(Long.valueOf(1L), syntax.getId());
+      assertEquals("syntax-xml-1", syntax.getName());
+      assertEquals("UUID", syntax.getUuid());
+      assertEquals(StructureType.XML, syntax.getStructureType());
+      assertEquals(SyntaxType.ROOT, syntax.getSyntaxType());
+      assertEquals(Long.valueOf(Timestamp.valueOf("2014-01-01 00:00:00").getTime()), syntax.getModifiedAt());
+      assertEquals("Scott", syntax.getUser().getName());
+      assertEquals(Long.valueOf(1L), syntax.getStructure().getId());
+
+      List<XmlMapping> mappings = syntax.getMappings();
+      assertEquals(3, mappings.size());
+      for (int i=0; i<3; i++) {
+         XmlMapping mapping = mappings.get(i);
+         assertEquals(Long.valueOf(i + 1), mapping.getId());
+         assertEquals("tfn1" + (i + 1), mapping.getTargetFieldName());
+         assertEquals("sfn1" + (i + 1), mapping.getXpath());
+         assertSame(syntax, mapping.getSyntax());
+      }
+      assertNull(mappings.get(0).getSubSyntax());
+      assertEquals(Long.valueOf(2L), mappings.get(2).getSubSyntax().getId());
+   }
+
+   @Test
+   public void testEntityNodesAreIndexedByNodeType() throws Exception {
+      QXmlSyntaxModel qsyntax = new QXmlSyntaxModel();
+      qsyntax.where(qsyntax.name().equal("syntax-xml-1"));
+      Entity entity = theEntityContext.performQuery(qsyntax).getSingleResult().getEntity();
+      EntityType entityType = entity.getEntityType();
+
+      int count = 0;
+      for (Node child: entity.getChildren()) {
+         assertEquals(count, entityType.getNodeType(child.getName(), true).getIndex());
+         assertSame(child, entity.getChild(count));
+         assertSame(child, entity.getChild(child.getName()));
+         count++;
+      }
+      assertEquals(entityType.getNodeTypeCount(), count);
+      assertSame(entity.getKey(), entity.getChild(entityType.getKeyNodeName()));
+
+      assertNull(entity.getChild("noSuchNode"));
+      try {
+         entity.getChild("noSuchNode", ValueNode.class, true);
+         fail("expected IllegalStateException");
+      }
+      catch(IllegalStateException x) {}
+   }
+
     @Test
     public void testNullQueryParameter() throws Exception {
         QSyntaxModel qsyntax = new QSyntaxModel();